@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
+import com.microsoft.jenkins.containeragents.util.Constants;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import com.microsoft.jenkins.containeragents.volumes.CacheVolume;
+import hudson.model.Node;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pools of persistent volume claims for the {@link CacheVolume}s of the templates of a {@link KubernetesCloud}.
+ *
+ * <p>The lease of a claim is kept as a label on the claim itself, so that it survives a restart. A claim whose
+ * lease names an agent Jenkins no longer has is free again, once no pod of the namespace mounts it any more. A
+ * new pod gets the free claim that was used last, i.e. the warmest one. A pool without a free claim grows up to
+ * the maximum of its volume, beyond that the pod starts without the cache. Free claims above the maximum, e.g.
+ * after it has been lowered, are deleted least recently used first.</p>
+ */
+public class CacheClaimPool {
+    private static final Logger LOGGER = Logger.getLogger(CacheClaimPool.class.getName());
+
+    // a pod got a warm claim, a new claim, or none because the pool is at its maximum
+    public static final String HIT_METRIC = "kubernetes.cache.hit";
+    public static final String MISS_METRIC = "kubernetes.cache.miss";
+    public static final String EXHAUSTED_METRIC = "kubernetes.cache.exhausted";
+    public static final String EVICTED_METRIC = "kubernetes.cache.evicted";
+
+    static final String POOL_LABEL_KEY = "jenkins-cache-pool";
+
+    static final String LEASE_LABEL_KEY = "jenkins-cache-agent";
+
+    static final String LAST_USED_ANNOTATION = "jenkins-cache-last-used";
+
+    private final KubernetesCloud cloud;
+
+    CacheClaimPool(KubernetesCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Leases a claim of the pool of the given volume of the template to the agent.
+     *
+     * @return the name of the claim, null if the pod has to start without the cache
+     */
+    public synchronized String lease(PodTemplate template, int index, CacheVolume volume, String agentName) {
+        String pool = getPoolName(template, index);
+        try {
+            KubernetesClient client = cloud.connect();
+            List<PersistentVolumeClaim> claims = client.persistentVolumeClaims().inNamespace(cloud.getNamespace())
+                    .withLabel(POOL_LABEL_KEY, pool).list().getItems();
+            List<PersistentVolumeClaim> free = findFree(claims,
+                    NodeCapacityTracker.forCloud(cloud).getMountedClaims(cloud.getNamespace()));
+            String leaseValue = AzureContainerUtils.toLabelValue(agentName);
+
+            String claimName;
+            if (!free.isEmpty()) {
+                claimName = free.remove(free.size() - 1).getMetadata().getName();
+                client.persistentVolumeClaims().inNamespace(cloud.getNamespace()).withName(claimName).edit()
+                        .editMetadata()
+                            .addToLabels(LEASE_LABEL_KEY, leaseValue)
+                            .addToAnnotations(LAST_USED_ANNOTATION, String.valueOf(System.currentTimeMillis()))
+                        .endMetadata()
+                        .done();
+                ContainerMetrics.increment(HIT_METRIC);
+            } else if (claims.size() < volume.getMaxClaims()) {
+                claimName = AzureContainerUtils.generateName(pool, Constants.KUBERNETES_RANDOM_NAME_LENGTH);
+                client.persistentVolumeClaims().inNamespace(cloud.getNamespace())
+                        .create(buildClaim(claimName, pool, leaseValue, volume));
+                ContainerMetrics.increment(MISS_METRIC);
+            } else {
+                LOGGER.log(Level.INFO, "CacheClaimPool: all {0} claims of pool {1} are leased, {2} starts without "
+                        + "cache", new Object[]{claims.size(), pool, agentName});
+                ContainerMetrics.increment(EXHAUSTED_METRIC);
+                return null;
+            }
+            evict(client, free, claims.size() - volume.getMaxClaims());
+            LOGGER.log(Level.FINE, "CacheClaimPool: leased claim {0} to {1}", new Object[]{claimName, agentName});
+            return claimName;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "CacheClaimPool: cannot lease a claim of pool {0}, {1} starts without cache: "
+                    + "{2}", new Object[]{pool, agentName, e.getMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Returns the claims leased to the agent, once its pod is gone.
+     */
+    public synchronized void release(String agentName) {
+        try {
+            KubernetesClient client = cloud.connect();
+            List<PersistentVolumeClaim> claims = client.persistentVolumeClaims().inNamespace(cloud.getNamespace())
+                    .withLabel(LEASE_LABEL_KEY, AzureContainerUtils.toLabelValue(agentName)).list().getItems();
+            for (PersistentVolumeClaim claim : claims) {
+                client.persistentVolumeClaims().inNamespace(cloud.getNamespace())
+                        .withName(claim.getMetadata().getName()).edit()
+                        .editMetadata()
+                            .removeFromLabels(LEASE_LABEL_KEY)
+                            .addToAnnotations(LAST_USED_ANNOTATION, String.valueOf(System.currentTimeMillis()))
+                        .endMetadata()
+                        .done();
+            }
+        } catch (Exception e) {
+            // the lease of an agent that is gone ends anyway with the next lease of the pool
+            LOGGER.log(Level.WARNING, "CacheClaimPool: cannot release the claims of {0}: {1}",
+                    new Object[]{agentName, e.getMessage()});
+        }
+    }
+
+    /**
+     * The free claims, least recently used first. The pod of an agent that is gone may still be terminating, its
+     * claim only becomes free once no pod mounts it.
+     *
+     * @param mounted the claims mounted by the pods of the namespace
+     */
+    static List<PersistentVolumeClaim> findFree(List<PersistentVolumeClaim> claims, Set<String> mounted) {
+        Set<String> liveAgents = getLiveAgents();
+        List<PersistentVolumeClaim> free = new ArrayList<>();
+        for (PersistentVolumeClaim claim : claims) {
+            if (claim.getMetadata().getDeletionTimestamp() != null
+                    || mounted.contains(claim.getMetadata().getName())) {
+                continue;
+            }
+            Map<String, String> labels = claim.getMetadata().getLabels();
+            String lease = labels == null ? null : labels.get(LEASE_LABEL_KEY);
+            if (StringUtils.isBlank(lease) || !liveAgents.contains(lease)) {
+                free.add(claim);
+            }
+        }
+        Collections.sort(free, new Comparator<PersistentVolumeClaim>() {
+            @Override
+            public int compare(PersistentVolumeClaim a, PersistentVolumeClaim b) {
+                return Long.compare(getLastUsed(a), getLastUsed(b));
+            }
+        });
+        return free;
+    }
+
+    private void evict(KubernetesClient client, List<PersistentVolumeClaim> free, int excess) {
+        for (int i = 0; i < excess && i < free.size(); i++) {
+            String claimName = free.get(i).getMetadata().getName();
+            LOGGER.log(Level.INFO, "CacheClaimPool: evicting least recently used claim {0}", claimName);
+            client.persistentVolumeClaims().inNamespace(cloud.getNamespace()).withName(claimName).delete();
+            ContainerMetrics.increment(EVICTED_METRIC);
+        }
+    }
+
+    private PersistentVolumeClaim buildClaim(String claimName, String pool, String leaseValue, CacheVolume volume) {
+        return new PersistentVolumeClaimBuilder()
+                .withNewMetadata()
+                    .withName(claimName)
+                    .addToLabels(POOL_LABEL_KEY, pool)
+                    .addToLabels(PodTemplate.INSTANCE_LABEL_KEY, PodTemplate.getInstanceLabelValue())
+                    .addToLabels(LEASE_LABEL_KEY, leaseValue)
+                    .addToAnnotations(LAST_USED_ANNOTATION, String.valueOf(System.currentTimeMillis()))
+                .endMetadata()
+                .withNewSpec()
+                    .withAccessModes("ReadWriteOnce")
+                    .withStorageClassName(StringUtils.defaultIfBlank(volume.getStorageClassName(), null))
+                    .withNewResources()
+                        .addToRequests("storage", new Quantity(volume.getSize()))
+                    .endResources()
+                .endSpec()
+                .build();
+    }
+
+    private static long getLastUsed(PersistentVolumeClaim claim) {
+        Map<String, String> annotations = claim.getMetadata().getAnnotations();
+        try {
+            return annotations == null ? 0 : Long.parseLong(annotations.get(LAST_USED_ANNOTATION));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Set<String> getLiveAgents() {
+        Set<String> result = new HashSet<>();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins != null) {
+            for (Node node : jenkins.getNodes()) {
+                if (node instanceof KubernetesAgent) {
+                    result.add(AzureContainerUtils.toLabelValue(node.getNodeName()));
+                }
+            }
+        }
+        return result;
+    }
+
+    String getPoolName(PodTemplate template, int index) {
+        // a DNS subdomain, unlike a label value it takes no upper case or underscores
+        return AzureContainerUtils.toLabelValue((cloud.getDisplayName() + "-" + template.getName() + "-cache-"
+                + index).toLowerCase().replace('_', '-'));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.strategy.DemandForecaster;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically logs the {@link ContainerMetrics}, with the cache hit rate, the error of the demand forecast and,
+ * per Kubernetes cloud, the pod deletion backlog and the nodes that have the template images. The metrics only
+ * live in memory, this log is where they can be read.
+ */
+@Extension
+public class ContainerMetricsTask extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(ContainerMetricsTask.class.getName());
+
+    static final long RECURRENCE_PERIOD_IN_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(ContainerMetricsTask.class.getName() + ".periodMinutes", 15));
+
+    private static final double PERCENT = 100.0;
+
+    public ContainerMetricsTask() {
+        super("Container Agents Metrics Task");
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null || !LOGGER.isLoggable(Level.INFO)) {
+            return;
+        }
+        Map<String, Object> metrics = ContainerMetrics.snapshot();
+        if (!metrics.isEmpty()) {
+            LOGGER.log(Level.INFO, "Container agents metrics: {0}", metrics);
+        }
+
+        long hits = ContainerMetrics.getCount(CacheClaimPool.HIT_METRIC);
+        long leases = hits + ContainerMetrics.getCount(CacheClaimPool.MISS_METRIC)
+                + ContainerMetrics.getCount(CacheClaimPool.EXHAUSTED_METRIC);
+        if (leases > 0) {
+            LOGGER.log(Level.INFO, "Container agents cache hit rate: {0}% of {1} leases",
+                    new Object[]{Math.round(hits * PERCENT / leases), leases});
+        }
+
+        long samples = ContainerMetrics.getCount(DemandForecaster.SAMPLES_METRIC);
+        if (samples > 0) {
+            LOGGER.log(Level.INFO, "Container agents demand forecast: mean absolute error {0} executors, "
+                            + "mean demand {1} executors over {2} samples",
+                    new Object[]{
+                        (double) ContainerMetrics.getCount(DemandForecaster.ABSOLUTE_ERROR_METRIC) / samples,
+                        (double) ContainerMetrics.getCount(DemandForecaster.ACTUAL_METRIC) / samples,
+                        samples,
+                    });
+        }
+
+        for (KubernetesCloud cloud : instance.clouds.getAll(KubernetesCloud.class)) {
+            StringBuilder images = new StringBuilder();
+            for (Map.Entry<String, List<String>> entry : cloud.getImagePrePuller().getCachedNodes().entrySet()) {
+                images.append(' ').append(entry.getKey()).append(" on ").append(entry.getValue().size())
+                        .append(" nodes,");
+            }
+            LOGGER.log(Level.INFO, "Container agents cloud {0}: {1} pods waiting for deletion, images cached:{2}",
+                    new Object[]{cloud.getDisplayName(), cloud.getPodDeletionQueue().getBacklog(),
+                        images.length() == 0 ? " none" : images.substring(0, images.length() - 1)});
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
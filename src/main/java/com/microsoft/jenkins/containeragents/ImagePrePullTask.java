@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically brings the image pre-pull DaemonSet of every Kubernetes cloud in line with its templates.
+ * Clouds that do not pre-pull are only connected to while DaemonSets of theirs may be left to remove.
+ */
+@Extension
+public class ImagePrePullTask extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(ImagePrePullTask.class.getName());
+
+    private static final int RECURRENCE_PERIOD_IN_MILLIS = 5 * 60 * 1000;
+
+    public ImagePrePullTask() {
+        super("Kubernetes Image Pre-pull Task");
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        for (KubernetesCloud cloud : instance.clouds.getAll(KubernetesCloud.class)) {
+            ImagePrePuller prePuller = cloud.getImagePrePuller();
+            if (!prePuller.isSyncNeeded()) {
+                continue;
+            }
+            try {
+                prePuller.sync();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to sync pre-pulled images of cloud " + cloud.getDisplayName(), e);
+            }
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
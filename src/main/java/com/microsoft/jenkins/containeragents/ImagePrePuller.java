@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.ContainerImage;
+import io.fabric8.kubernetes.api.model.IntOrString;
+import io.fabric8.kubernetes.api.model.LocalObjectReference;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.Secret;
+import io.fabric8.kubernetes.api.model.Toleration;
+import io.fabric8.kubernetes.api.model.extensions.DaemonSet;
+import io.fabric8.kubernetes.api.model.extensions.DaemonSetBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the images of the pod templates of a {@link KubernetesCloud} pulled on the nodes they may run on,
+ * through DaemonSets with one idle container per image. The templates are grouped by their node selector,
+ * specified node and tolerations, each group gets a DaemonSet with the same constraints as its pods.
+ *
+ * <p>Nodes added by an autoscaler get the DaemonSet pod first and so pull the images before the first agent
+ * lands on them. A changed image set rolls the DaemonSet, images no longer used by any template drop out of it
+ * and are left to the image garbage collection of the kubelet.</p>
+ */
+public class ImagePrePuller {
+    private static final Logger LOGGER = Logger.getLogger(ImagePrePuller.class.getName());
+
+    static final String NAME_PREFIX = "jenkins-prepull-";
+
+    static final String IMAGES_ANNOTATION = "jenkins-prepull-images";
+
+    static final String COMPONENT_LABEL_KEY = "jenkins-component";
+
+    static final String COMPONENT_LABEL_VALUE = "prepull";
+
+    static final String CLOUD_LABEL_KEY = "jenkins-cloud";
+
+    static final String GROUP_LABEL_KEY = "jenkins-prepull-group";
+
+    private static final int GROUP_HASH_LENGTH = 8;
+
+    // keeps the container alive with any shell, an image without one still gets pulled and merely restarts
+    private static final String[] IDLE_COMMAND = {"sh", "-c", "while true; do sleep 3600; done"};
+
+    private static final String MAX_UNAVAILABLE = "25%";
+
+    private final KubernetesCloud cloud;
+
+    private volatile Map<String, List<String>> cachedNodes = Collections.emptyMap();
+
+    // unknown until the first sync, DaemonSets may be left from before a restart
+    private volatile boolean hasDaemonSets = true;
+
+    ImagePrePuller(KubernetesCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Whether {@link #sync()} has anything to do, i.e. pre-pulling is on or DaemonSets of it may be left over
+     * from when it was on.
+     */
+    public boolean isSyncNeeded() {
+        return cloud.isPrePullImages() || hasDaemonSets;
+    }
+
+    /**
+     * Creates, rolls or removes the DaemonSets to match the templates, then refreshes which nodes have which
+     * image.
+     */
+    public void sync() throws Exception {
+        KubernetesClient client = cloud.connect();
+        String namespace = cloud.getNamespace();
+        String name = getDaemonSetName();
+
+        // templates by their scheduling constraints, and all images
+        Map<String, List<PodTemplate>> groups = new TreeMap<>();
+        Set<String> images = new TreeSet<>();
+        for (PodTemplate template : cloud.getTemplates()) {
+            if (StringUtils.isNotBlank(template.getImage())) {
+                groups.computeIfAbsent(getGroupKey(template), key -> new ArrayList<>()).add(template);
+                images.add(template.getImage().trim());
+            }
+        }
+
+        Set<String> wanted = new TreeSet<>();
+        if (cloud.isPrePullImages() && !images.isEmpty()) {
+            Set<String> pullSecrets = getPullSecrets(client, namespace);
+            for (Map.Entry<String, List<PodTemplate>> group : groups.entrySet()) {
+                String groupHash = DigestUtils.sha1Hex(group.getKey()).substring(0, GROUP_HASH_LENGTH);
+                String groupName = name + "-" + groupHash;
+                wanted.add(groupName);
+
+                Set<String> groupImages = new TreeSet<>();
+                for (PodTemplate template : group.getValue()) {
+                    groupImages.add(template.getImage().trim());
+                }
+                String hash = DigestUtils.sha1Hex(StringUtils.join(groupImages, ',') + '|'
+                        + StringUtils.join(pullSecrets, ','));
+                DaemonSet existing = client.extensions().daemonSets().inNamespace(namespace).withName(groupName)
+                        .get();
+                Map<String, String> annotations = existing == null ? null : existing.getMetadata().getAnnotations();
+                if (annotations == null || !hash.equals(annotations.get(IMAGES_ANNOTATION))) {
+                    LOGGER.log(Level.INFO, "ImagePrePuller: {0} DaemonSet {1} for images {2}",
+                            new Object[]{existing == null ? "creating" : "rolling", groupName, groupImages});
+                    client.extensions().daemonSets().inNamespace(namespace).createOrReplace(
+                            buildDaemonSet(groupName, groupHash, hash, groupImages, pullSecrets,
+                                    group.getValue().get(0)));
+                }
+            }
+        }
+
+        for (DaemonSet daemonSet : client.extensions().daemonSets().inNamespace(namespace)
+                .withLabel(CLOUD_LABEL_KEY, name).list().getItems()) {
+            String daemonSetName = daemonSet.getMetadata().getName();
+            if (!wanted.contains(daemonSetName)) {
+                LOGGER.log(Level.INFO, "ImagePrePuller: removing DaemonSet {0}", daemonSetName);
+                client.extensions().daemonSets().inNamespace(namespace).withName(daemonSetName).delete();
+            }
+        }
+        hasDaemonSets = !wanted.isEmpty();
+
+        cachedNodes = wanted.isEmpty()
+                ? Collections.<String, List<String>>emptyMap()
+                : findCachedNodes(client.nodes().list().getItems(), images);
+    }
+
+    private Set<String> getPullSecrets(KubernetesClient client, String namespace) {
+        Set<String> pullSecrets = new LinkedHashSet<>();
+        for (PodTemplate template : cloud.getTemplates()) {
+            for (PodImagePullSecrets secret : template.getImagePullSecrets()) {
+                pullSecrets.add(secret.getName());
+            }
+            if (!template.getPrivateRegistryCredentials().isEmpty()) {
+                // the same secret the agent pods of the template are created with
+                String secretName = cloud.getDisplayName() + "-" + template.getName();
+                Secret secret = template.buildSecret(namespace, secretName, template.getPrivateRegistryCredentials());
+                client.secrets().inNamespace(namespace).createOrReplace(secret);
+                pullSecrets.add(secretName);
+            }
+        }
+        return pullSecrets;
+    }
+
+    /**
+     * The scheduling constraints of the pods of the template, templates with the same key share a DaemonSet.
+     */
+    static String getGroupKey(PodTemplate template) {
+        StringBuilder key = new StringBuilder(getNodeSelector(template).toString());
+        for (Toleration toleration : template.getTolerationList()) {
+            key.append('|').append(toleration.getKey()).append(',').append(toleration.getOperator()).append(',')
+                    .append(toleration.getValue()).append(',').append(toleration.getEffect());
+        }
+        return key.toString();
+    }
+
+    /**
+     * The node selector of the template, a specified node as the selector of its host name.
+     */
+    private static Map<String, String> getNodeSelector(PodTemplate template) {
+        Map<String, String> result = new TreeMap<>(template.getNodeSelectorMap());
+        if (StringUtils.isNotBlank(template.getSpecifyNode())) {
+            result.put(PodScheduling.HOSTNAME_LABEL, template.getSpecifyNode().trim());
+        }
+        return result;
+    }
+
+    DaemonSet buildDaemonSet(String name, String groupHash, String hash, Set<String> images,
+                             Set<String> pullSecrets, PodTemplate template) {
+        Map<String, String> labels = new TreeMap<>();
+        labels.put(COMPONENT_LABEL_KEY, COMPONENT_LABEL_VALUE);
+        labels.put(CLOUD_LABEL_KEY, getDaemonSetName());
+        labels.put(GROUP_LABEL_KEY, groupHash);
+
+        Map<String, Quantity> requests = new HashMap<>();
+        requests.put("cpu", new Quantity("1m"));
+        requests.put("memory", new Quantity("8Mi"));
+
+        List<Container> containers = new ArrayList<>();
+        int index = 0;
+        for (String image : images) {
+            containers.add(new ContainerBuilder()
+                    .withName("image-" + index++)
+                    .withImage(image)
+                    .withImagePullPolicy("IfNotPresent")
+                    .withCommand(IDLE_COMMAND)
+                    .withNewResources()
+                        .withRequests(requests)
+                    .endResources()
+                    .build());
+        }
+        List<LocalObjectReference> secrets = new ArrayList<>();
+        for (String secret : pullSecrets) {
+            secrets.add(new LocalObjectReference(secret));
+        }
+        Map<String, String> nodeSelector = getNodeSelector(template);
+
+        return new DaemonSetBuilder()
+                .withNewMetadata()
+                    .withName(name)
+                    .withLabels(labels)
+                    .addToAnnotations(IMAGES_ANNOTATION, hash)
+                .endMetadata()
+                .withNewSpec()
+                    .withNewSelector()
+                        .withMatchLabels(labels)
+                    .endSelector()
+                    .withNewUpdateStrategy()
+                        .withType("RollingUpdate")
+                        .withNewRollingUpdate()
+                            .withMaxUnavailable(new IntOrString(MAX_UNAVAILABLE))
+                        .endRollingUpdate()
+                    .endUpdateStrategy()
+                    .withNewTemplate()
+                        .withNewMetadata()
+                            .withLabels(labels)
+                        .endMetadata()
+                        .withNewSpec()
+                            .withContainers(containers)
+                            .withImagePullSecrets(secrets)
+                            .withNodeSelector(nodeSelector.isEmpty() ? null : nodeSelector)
+                            .withTolerations(template.getTolerationList())
+                            .withTerminationGracePeriodSeconds(0L)
+                        .endSpec()
+                    .endTemplate()
+                .endSpec()
+                .build();
+    }
+
+    static Map<String, List<String>> findCachedNodes(List<Node> nodes, Set<String> images) {
+        Map<String, List<String>> result = new TreeMap<>();
+        for (String image : images) {
+            result.put(image, new ArrayList<String>());
+        }
+        for (Node node : nodes) {
+            if (node.getStatus() == null || node.getStatus().getImages() == null) {
+                continue;
+            }
+            for (ContainerImage nodeImage : node.getStatus().getImages()) {
+                for (String image : images) {
+                    if (matches(nodeImage.getNames(), image)
+                            && !result.get(image).contains(node.getMetadata().getName())) {
+                        result.get(image).add(node.getMetadata().getName());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether one of the names a node reports for an image is the template image, the node names being fully
+     * qualified, e.g. {@code docker.io/library/maven:3} for {@code maven:3}.
+     */
+    static boolean matches(List<String> names, String image) {
+        if (names == null) {
+            return false;
+        }
+        String tagged = image.contains("@") || image.substring(image.lastIndexOf('/') + 1).contains(":")
+                ? image : image + ":latest";
+        for (String name : names) {
+            if (name.equals(tagged) || name.endsWith("/" + tagged)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The nodes that have each template image, as of the last {@link #sync()}.
+     */
+    public Map<String, List<String>> getCachedNodes() {
+        return cachedNodes;
+    }
+
+    String getDaemonSetName() {
+        // a DNS subdomain, unlike a label value it takes no upper case or underscores
+        return AzureContainerUtils.toLabelValue((NAME_PREFIX + cloud.getDisplayName()).toLowerCase().replace('_', '-'));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.aci.AciCloud;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically corrects the in-memory instance counters of every cloud against the cluster and ARM.
+ */
+@Extension
+public class InstanceCapReconcileTask extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(InstanceCapReconcileTask.class.getName());
+
+    private static final int RECURRENCE_PERIOD_IN_MILLIS = 5 * 60 * 1000;
+
+    public InstanceCapReconcileTask() {
+        super("Container Agents Instance Cap Reconcile Task");
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        for (KubernetesCloud cloud : instance.clouds.getAll(KubernetesCloud.class)) {
+            try {
+                cloud.reconcileInstanceCaps();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to reconcile instance caps of cloud " + cloud.getDisplayName(), e);
+            }
+        }
+        for (AciCloud cloud : instance.clouds.getAll(AciCloud.class)) {
+            try {
+                cloud.reconcileInstanceCaps();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to reconcile instance caps of cloud " + cloud.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
@@ -34,6 +34,8 @@ import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,15 +52,20 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
 
     private final String launchType;
 
+    private final String templateName;
+
     private String host;
 
+    // volume index -> persistent volume claim leased for a cache volume of the template
+    private Map<Integer, String> cacheClaims;
+
     @DataBoundConstructor
     public KubernetesAgent(KubernetesCloud cloud, PodTemplate template)
             throws Descriptor.FormException, IOException {
         super(generateAgentName(template),
                 template.getDescription(),
                 template.getRootFs(),
-                1,
+                template.getNumExecutors(),
                 Mode.NORMAL,
                 template.getLabel(),
                 template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)
@@ -70,6 +77,7 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
         sshCredentialsId = template.getSshCredentialsId();
         sshPort = template.getSshPort();
         launchType = template.getLaunchMethodType();
+        templateName = template.getName();
     }
 
     @Override
@@ -79,8 +87,7 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
 
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-        final Computer computer = toComputer();
-        if (computer == null || StringUtils.isEmpty(cloudName)) {
+        if (StringUtils.isEmpty(cloudName)) {
             return;
         }
         final Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
@@ -93,13 +100,14 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
             listener.fatalError(msg);
             return;
         }
+        ((KubernetesCloud) cloud).getInstanceCapStrategy().released(getTemplateName());
+
+        final Computer computer = toComputer();
+        if (computer == null) {
+            return;
+        }
 
-        Computer.threadPoolForRemoting.execute(new Runnable() {
-            @Override
-            public void run() {
-                ((KubernetesCloud) cloud).deletePod(name);
-            }
-        });
+        ((KubernetesCloud) cloud).deletePod(name);
     }
 
     static String generateAgentName(PodTemplate template) {
@@ -110,6 +118,10 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
         return cloudName;
     }
 
+    public String getTemplateName() {
+        return StringUtils.defaultString(templateName);
+    }
+
     @Override
     public StandardUsernameCredentials getSshCredential() throws IllegalArgumentException {
         StandardUsernameCredentials credentials = CredentialsMatchers.firstOrNull(
@@ -141,6 +153,17 @@ public class KubernetesAgent extends AbstractCloudSlave implements ISSHLaunchabl
         return StringUtils.defaultString(host);
     }
 
+    public synchronized void setCacheClaim(int volumeIndex, String claimName) {
+        if (cacheClaims == null) {
+            cacheClaims = new HashMap<>();
+        }
+        cacheClaims.put(volumeIndex, claimName);
+    }
+
+    public synchronized String getCacheClaim(int volumeIndex) {
+        return cacheClaims == null ? null : cacheClaims.get(volumeIndex);
+    }
+
     public void setHost(String host) {
         this.host = host;
     }
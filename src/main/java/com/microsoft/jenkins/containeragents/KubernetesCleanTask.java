@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import jenkins.model.Jenkins;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.lang.StringUtils;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the agent pods of this Jenkins that no longer have a node, e.g. because their delete failed or
+ * Jenkins restarted while they were provisioned.
+ *
+ * <p>Each cycle lists the pods of every namespace once, selected by the agent and instance labels, and queues
+ * at most {@link #MAX_DELETES_PER_CYCLE} orphans on the {@link PodDeletionQueue} of their cloud. The pods are
+ * listed in pages of {@link #PAGE_SIZE}, which the Kubernetes client of this version cannot ask for, so the list
+ * goes through its HTTP client.</p>
+ */
+@Extension
+public class KubernetesCleanTask extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(KubernetesCleanTask.class.getName());
+
+    public static final String ORPHANS_METRIC = "kubernetes.reaper.orphans";
+    public static final String CYCLE_METRIC = "kubernetes.reaper.cycle";
+    public static final String LIST_FAILED_METRIC = "kubernetes.reaper.listFailed";
+
+    private static final long RECURRENCE_PERIOD_IN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // younger pods may still be between the creation of their node and the pod
+    static final long MIN_POD_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int MAX_DELETES_PER_CYCLE = 100;
+
+    static final int PAGE_SIZE = 500;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public KubernetesCleanTask() {
+        super("Kubernetes Period Clean Task");
+    }
+
+    @Override
+    public void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        // one list per namespace, however many clouds point to it
+        Map<String, KubernetesCloud> namespaces = new LinkedHashMap<>();
+        for (KubernetesCloud cloud : instance.clouds.getAll(KubernetesCloud.class)) {
+            if (StringUtils.isNotBlank(cloud.getNamespace()) && !namespaces.containsKey(cloud.getConnectionKey())) {
+                namespaces.put(cloud.getConnectionKey(), cloud);
+            }
+        }
+        if (namespaces.isEmpty()) {
+            return;
+        }
+
+        Set<String> liveAgents = getLiveAgents(instance);
+        int budget = MAX_DELETES_PER_CYCLE;
+        for (KubernetesCloud cloud : namespaces.values()) {
+            if (budget <= 0) {
+                LOGGER.log(Level.INFO, "KubernetesCleanTask: delete budget used up, continuing next cycle");
+                break;
+            }
+            budget -= clean(cloud, liveAgents, budget, PAGE_SIZE, System.currentTimeMillis());
+        }
+        ContainerMetrics.record(CYCLE_METRIC, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Queues the deletes of at most {@code budget} orphans of the namespace of the cloud and returns how many.
+     */
+    int clean(KubernetesCloud cloud, Set<String> liveAgents, int budget, int pageSize, long now) {
+        int deleted = 0;
+        try {
+            KubernetesClient client = cloud.connect();
+            String continueToken = null;
+            do {
+                JsonNode page = listPods(client, cloud.getNamespace(), pageSize, continueToken);
+                for (JsonNode pod : page.path("items")) {
+                    if (deleted >= budget) {
+                        break;
+                    }
+                    String podName = pod.path("metadata").path("name").asText();
+                    if (liveAgents.contains(podName)
+                            || !isOldEnough(pod.path("metadata").path("creationTimestamp").asText(), now)) {
+                        continue;
+                    }
+                    LOGGER.log(Level.INFO, "KubernetesCleanTask: deleting orphan pod {0} in namespace {1}",
+                            new Object[]{podName, cloud.getNamespace()});
+                    cloud.getPodDeletionQueue().delete(podName);
+                    deleted++;
+                }
+                // API servers before 1.9 ignore the limit and return all pods without a continue token
+                continueToken = StringUtils.defaultIfEmpty(page.path("metadata").path("continue").asText(), null);
+            } while (continueToken != null && deleted < budget);
+        } catch (Exception e) {
+            ContainerMetrics.increment(LIST_FAILED_METRIC);
+            LOGGER.log(Level.WARNING, "KubernetesCleanTask: failed to list pods of namespace {0}: {1}",
+                    new Object[]{cloud.getNamespace(), e.getMessage()});
+        }
+        ContainerMetrics.add(ORPHANS_METRIC, deleted);
+        return deleted;
+    }
+
+    /**
+     * A page of the agent pods of this Jenkins in the namespace.
+     */
+    private static JsonNode listPods(KubernetesClient client, String namespace, int pageSize, String continueToken)
+            throws IOException {
+        OkHttpClient http = ((HttpClientAware) client).getHttpClient();
+        HttpUrl.Builder url = HttpUrl.parse(client.getMasterUrl().toString()).newBuilder()
+                .addPathSegments("api/v1/namespaces").addPathSegment(namespace).addPathSegment("pods")
+                .addQueryParameter("labelSelector", PodTemplate.LABEL_KEY + "=" + PodTemplate.LABEL_VALUE + ","
+                        + PodTemplate.INSTANCE_LABEL_KEY + "=" + PodTemplate.getInstanceLabelValue())
+                .addQueryParameter("limit", String.valueOf(pageSize));
+        if (continueToken != null) {
+            url.addQueryParameter("continue", continueToken);
+        }
+        try (Response response = http.newCall(new Request.Builder().url(url.build()).build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("listing pods returned " + response.code());
+            }
+            return MAPPER.readTree(response.body().byteStream());
+        }
+    }
+
+    static boolean isOldEnough(String created, long now) {
+        if (StringUtils.isBlank(created)) {
+            return false;
+        }
+        try {
+            return now - new DateTime(created).getMillis() >= MIN_POD_AGE_MILLIS;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static Set<String> getLiveAgents(Jenkins instance) {
+        Set<String> result = new HashSet<>();
+        for (Node node : instance.getNodes()) {
+            if (node instanceof KubernetesAgent) {
+                result.add(node.getNodeName());
+            }
+        }
+        for (Computer computer : instance.getComputers()) {
+            if (computer instanceof KubernetesComputer) {
+                result.add(computer.getName());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
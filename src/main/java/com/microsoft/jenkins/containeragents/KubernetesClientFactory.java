@@ -15,7 +15,24 @@ import io.fabric8.kubernetes.client.KubernetesClient;
 import java.io.File;
 import java.io.IOException;
 
-public final class KubernetesClientFactory {
+/**
+ * Creates the Kubernetes clients. An instance creates the client of a {@link KubernetesCloud}, the cloud uses
+ * {@link #DEFAULT} unless it is given another one, e.g. by a test against a fake API server.
+ */
+public class KubernetesClientFactory {
+
+    public static final KubernetesClientFactory DEFAULT = new KubernetesClientFactory();
+
+    /**
+     * Creates the client of the cloud, looking its cluster up in Azure.
+     */
+    public KubernetesClient create(KubernetesCloud cloud) throws Exception {
+        return KubernetesService.getKubernetesClient(cloud.getAzureCredentialsId(),
+                cloud.getResourceGroup(),
+                KubernetesCloud.getServiceNameWithoutOrchestra(cloud.getServiceName()),
+                cloud.getNamespace(),
+                cloud.getAcsCredentialsId());
+    }
 
     static KubernetesClient buildWithConfigFile(File configFile) throws IOException {
         System.setProperty(Config.KUBERNETES_KUBECONFIG_FILE, configFile.getPath());
@@ -36,7 +53,7 @@ public final class KubernetesClientFactory {
         return new DefaultKubernetesClient(builder.build());
     }
 
-    private KubernetesClientFactory() {
-        // hide constructor
+    protected KubernetesClientFactory() {
+
     }
 }
@@ -17,9 +17,14 @@ import com.microsoft.azure.management.resources.GenericResource;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsConstants;
 import com.microsoft.jenkins.containeragents.helper.AzureContainerServiceCredentials;
+import com.microsoft.jenkins.containeragents.helper.ProvisioningScheduler;
+import com.microsoft.jenkins.containeragents.strategy.InstanceCapStrategy;
 import com.microsoft.jenkins.containeragents.strategy.ProvisionRetryStrategy;
 import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
 import com.microsoft.jenkins.containeragents.util.Constants;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import com.microsoft.jenkins.containeragents.volumes.CacheVolume;
+import com.microsoft.jenkins.containeragents.volumes.PodVolume;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -27,17 +32,18 @@ import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.api.model.Secret;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang3.time.StopWatch;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -52,9 +58,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -80,162 +88,262 @@ public class KubernetesCloud extends Cloud {
 
     private int startupTimeout;           // in minutes
 
+    private int maxInstances;
+
+    private int maxConcurrentProvisions;
+
+    private int maxPreProvisioned;
+
+    private Integer podDeletionGracePeriod;   // in seconds, null for the default of the pod
+
+    private boolean prePullImages;
+
     private List<PodTemplate> templates = new ArrayList<>();
 
+    private static final int THREAD_POOL_SIZE = 10;
+
     private static ExecutorService threadPool;
 
     private transient volatile KubernetesClient client;
 
     private transient ProvisionRetryStrategy provisionRetryStrategy = new ProvisionRetryStrategy();
 
+    private transient volatile InstanceCapStrategy instanceCapStrategy;
+
+    private transient volatile PodDeletionQueue podDeletionQueue;
+
+    private transient volatile ImagePrePuller imagePrePuller;
+
+    private transient volatile CacheClaimPool cacheClaimPool;
+
+    private transient volatile KubernetesClientFactory clientFactory;
+
     @DataBoundConstructor
     public KubernetesCloud(String name) {
         super(name);
     }
 
-    private KubernetesClient connect() throws Exception {
+    KubernetesClient connect() throws Exception {
         if (client == null) {
             synchronized (this) {
                 if (client == null) {
-                    client = KubernetesService.getKubernetesClient(azureCredentialsId,
-                            resourceGroup,
-                            getServiceNameWithoutOrchestra(serviceName),
-                            namespace,
-                            acsCredentialsId);
+                    client = getClientFactory().create(this);
                 }
             }
         }
         return client;
     }
 
-    private class ProvisionCallback implements Callable<Node> {
+    KubernetesClientFactory getClientFactory() {
+        KubernetesClientFactory factory = clientFactory;
+        return factory == null ? KubernetesClientFactory.DEFAULT : factory;
+    }
 
-        private final PodTemplate template;
+    void setClientFactory(KubernetesClientFactory clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * Provisioning of one agent as a chain of short steps on the {@link ProvisioningScheduler}: create the pod,
+     * wait for it to run, then wait for the agent to come online.
+     */
+    private class Provisioning {
 
         private static final int RETRY_INTERVAL = 1000;
 
-        ProvisionCallback(PodTemplate template) {
+        private final PodTemplate template;
+
+        private final NodeCapacityTracker.Reservation reservation;
+
+        private final NamespaceQuotaTracker.Reservation quotaReservation;
+
+        private final Map<String, String> properties = Collections.synchronizedMap(new HashMap<String, String>());
+
+        private volatile KubernetesAgent slave;
+
+        private volatile String podId;
+
+        private volatile long deadline;
+
+        private volatile PodStartupDiagnosis diagnosis;
+
+        private volatile List<String> imageNodes = Collections.emptyList();
+
+        Provisioning(PodTemplate template,
+                     NodeCapacityTracker.Reservation reservation,
+                     NamespaceQuotaTracker.Reservation quotaReservation) {
             this.template = template;
+            this.reservation = reservation;
+            this.quotaReservation = quotaReservation;
         }
 
-        @Override
-        public Node call() throws Exception {
-            KubernetesAgent slave = null;
-            final Map<String, String> properties = new HashMap<>();
+        CompletableFuture<Node> start() {
+            return ProvisioningScheduler.withPermit(() -> ProvisioningScheduler.submit(this::createPod)
+                    .thenCompose(created -> waitForRunning())
+                    .thenCompose(running -> connectAgent())
+                    .thenApply(online -> (Node) slave))
+                    .whenComplete((node, error) -> finish(error));
+        }
 
-            try {
-                slave = new KubernetesAgent(KubernetesCloud.this, template);
-
-                LOGGER.log(Level.INFO, "Adding Jenkins node: {0}", slave.getNodeName());
-                Jenkins.getInstance().addNode(slave);
-
-                // build AI properties
-                properties.put(AppInsightsConstants.AZURE_SUBSCRIPTION_ID,
-                        AzureCredentials.getServicePrincipal(azureCredentialsId).getSubscriptionId());
-                properties.put(Constants.AI_ACS_CREDENTIALS_TYPE,
-                        KubernetesService.lookupSshCredentials(acsCredentialsId) != null
-                                ? Constants.AI_ACS_TYPE_SSH
-                                : Constants.AI_ACS_TYPE_CONFIG);
-                properties.put(Constants.AI_CONTAINER_NAME, slave.getNodeName());
-
-                //Build Secret
-                Secret registrySecret = null;
-                String secretName = null;
-                if (!template.getPrivateRegistryCredentials().isEmpty()) {
-                    secretName = name + "-" + template.getName();
-                    registrySecret = template.buildSecret(namespace,
-                            secretName,
-                            template.getPrivateRegistryCredentials());
+        private Boolean createPod() throws Exception {
+            slave = new KubernetesAgent(KubernetesCloud.this, template);
+            getInstanceCapStrategy().createStarted(template.getName(), slave.getNodeName());
+
+            LOGGER.log(Level.INFO, "Adding Jenkins node: {0}", slave.getNodeName());
+            Jenkins.getInstance().addNode(slave);
+
+            // build AI properties
+            properties.put(AppInsightsConstants.AZURE_SUBSCRIPTION_ID,
+                    AzureCredentials.getServicePrincipal(azureCredentialsId).getSubscriptionId());
+            properties.put(Constants.AI_ACS_CREDENTIALS_TYPE,
+                    KubernetesService.lookupSshCredentials(acsCredentialsId) != null
+                            ? Constants.AI_ACS_TYPE_SSH
+                            : Constants.AI_ACS_TYPE_CONFIG);
+            properties.put(Constants.AI_CONTAINER_NAME, slave.getNodeName());
+
+            //Build Secret
+            Secret registrySecret = null;
+            String secretName = null;
+            if (!template.getPrivateRegistryCredentials().isEmpty()) {
+                secretName = name + "-" + template.getName();
+                registrySecret = template.buildSecret(namespace,
+                        secretName,
+                        template.getPrivateRegistryCredentials());
+            }
+
+            for (int i = 0; i < template.getVolumes().size(); i++) {
+                if (template.getVolumes().get(i) instanceof CacheVolume) {
+                    slave.setCacheClaim(i, getCacheClaimPool().lease(template, i,
+                            (CacheVolume) template.getVolumes().get(i), slave.getNodeName()));
                 }
+            }
 
-                //Build Pod
-                Pod pod = template.buildPod(slave, secretName);
-                String podId = pod.getMetadata().getName();
+            //Build Pod
+            try {
+                imageNodes = NodeCapacityTracker.forCloud(KubernetesCloud.this).getNodesWithImage(template.getImage());
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "KubernetesCloud: cannot look up the nodes with image {0}: {1}",
+                        new Object[]{template.getImage(), e.getMessage()});
+            }
+            Pod pod = template.buildPod(slave, secretName, imageNodes);
+            podId = pod.getMetadata().getName();
+            reservation.bind(namespace, podId);
 
-                StopWatch stopwatch = new StopWatch();
-                stopwatch.start();
-                try (KubernetesClient k8sClient = connect()) {
+            deadline = startupTimeout > 0
+                    ? System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(startupTimeout) : 0;
+            KubernetesClient k8sClient = connect();
+            properties.put(Constants.AI_ACS_MASTER_FQDN, k8sClient.getMasterUrl().toString());
 
-                    properties.put(Constants.AI_ACS_MASTER_FQDN, k8sClient.getMasterUrl().toString());
+            if (registrySecret != null) {
+                k8sClient.secrets().inNamespace(namespace).createOrReplace(registrySecret);
+            }
 
-                    if (registrySecret != null) {
-                        k8sClient.secrets().inNamespace(namespace).createOrReplace(registrySecret);
-                    }
+            k8sClient.pods().inNamespace(getNamespace()).create(pod);
+            quotaReservation.commit(podId);
+            LOGGER.log(Level.INFO, "KubernetesCloud: Pending Pod: {0}", podId);
+            return Boolean.TRUE;
+        }
 
-                    k8sClient.pods().inNamespace(getNamespace()).create(pod);
-                    LOGGER.log(Level.INFO, "KubernetesCloud: Pending Pod: {0}", podId);
-                    // wait the pod to be running
-                    KubernetesService.waitPodToRunning(k8sClient,
-                            podId,
-                            namespace,
-                            stopwatch,
-                            RETRY_INTERVAL,
-                            startupTimeout);
-                    LOGGER.log(Level.INFO, "KubernetesCloud: Pod {0} is running successfully,"
-                            + "waiting to be online", podId);
-
-                    if (template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)) {
-                        //wait JNLP to online
-                        waitToOnline(slave, podId, stopwatch);
-                    } else {
-                        addHost(slave, client, podId);
-                        Computer computer = slave.toComputer();
-                        if (computer == null) {
-                            throw new IllegalStateException(Messages.Kubernetes_Pod_Deleted());
-                        }
-                        computer.connect(false).get();
-                    }
+        private CompletableFuture<Boolean> waitForRunning() {
+            diagnosis = new PodStartupDiagnosis(podId);
+            try {
+                diagnosis.watchEvents(connect(), namespace);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "KubernetesCloud: cannot watch events of pod {0}", podId);
+            }
+            return ProvisioningScheduler.poll(() -> {
+                Pod pod = connect().pods().inNamespace(namespace).withName(podId).get();
+                diagnosis.check(pod);
+                if (!KubernetesService.isPodRunning(pod)) {
+                    return null;
                 }
+                LOGGER.log(Level.INFO, "KubernetesCloud: Pod {0} is running successfully,"
+                        + "waiting to be online", podId);
+                ContainerMetrics.increment(imageNodes.contains(pod.getSpec().getNodeName())
+                        ? PodScheduling.IMAGE_CACHED_METRIC : PodScheduling.IMAGE_PULLED_METRIC);
+                return Boolean.TRUE;
+            }, RETRY_INTERVAL, deadline, this::timeout);
+        }
+
+        private CompletableFuture<Boolean> connectAgent() {
+            if (template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)) {
+                //wait JNLP to online
+                return ProvisioningScheduler.poll(this::isOnline, RETRY_INTERVAL, deadline, this::timeout);
+            }
+            return ProvisioningScheduler.submit(() -> {
+                addHost(slave, connect(), podId);
+                Computer computer = slave.toComputer();
+                if (computer == null) {
+                    throw new IllegalStateException(Messages.Kubernetes_Pod_Deleted());
+                }
+                return computer.connect(false);
+            }).thenCompose(launch -> ProvisioningScheduler.await(launch, RETRY_INTERVAL))
+                    .thenApply(launched -> Boolean.TRUE);
+        }
 
-                provisionRetryStrategy.success(template.getName());
-                ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "Provision", properties);
+        private Boolean isOnline() throws Exception {
+            Pod podTemp = connect().pods().inNamespace(namespace).withName(podId).get();
+            if (!podTemp.getStatus().getPhase().equals("Running")) {
+                throw new IllegalStateException(Messages.Kubernetes_Pod_Start_Failed(podId,
+                        podTemp.getStatus().getPhase()));
+            }
+            if (slave.getComputer() == null) {
+                throw new IllegalStateException(Messages.Kubernetes_Pod_Deleted());
+            }
+            return slave.getComputer().isOnline() ? Boolean.TRUE : null;
+        }
+
+        private TimeoutException timeout() {
+            return new TimeoutException(Messages.Kubernetes_pod_Start_Time_Exceed(podId, startupTimeout));
+        }
 
-                return slave;
-            } catch (Exception ex) {
+        private void finish(Throwable error) {
+            try {
+                if (error == null) {
+                    provisionRetryStrategy.success(template.getName());
+                    ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "Provision", properties);
+                    return;
+                }
+                Throwable ex = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
                 LOGGER.log(Level.WARNING, "Error in provisioning; slave={0}, template={1}: {2}",
                         new Object[] {slave, template, ex});
 
-                properties.put("Message", ex.getMessage());
+                properties.put("Message", String.valueOf(ex.getMessage()));
                 ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "ProvisionFailed", properties);
 
                 if (slave != null) {
                     LOGGER.log(Level.INFO, "Removing Jenkins node: {0}", slave.getNodeName());
                     try {
                         slave.terminate();
-                    } catch (IOException e) {
+                    } catch (IOException | InterruptedException e) {
                         LOGGER.log(Level.WARNING, "Error in cleaning up the slave node " + slave.getNodeName(), e);
                     }
+                } else {
+                    getInstanceCapStrategy().released(template.getName());
                 }
-                provisionRetryStrategy.failure(template.getName());
-                throw ex;
-            }
-        }
-
-        private void waitToOnline(KubernetesAgent slave, String podId, StopWatch stopwatch) throws Exception {
-            while (true) {
-                if (isTimeout(stopwatch.getTime())) {
-                    throw new TimeoutException(Messages.Kubernetes_pod_Start_Time_Exceed(podId, startupTimeout));
-                }
-                Pod podTemp = client.pods().inNamespace(namespace).withName(podId).get();
-                if (!podTemp.getStatus().getPhase().equals("Running")) {
-                    throw new IllegalStateException(Messages.Kubernetes_Pod_Start_Failed(podId,
-                            podTemp.getStatus().getPhase()));
+                if (NamespaceQuotaTracker.isQuotaExceeded(ex)) {
+                    // Not a template problem, the quota frees up again as soon as other agents terminate.
+                    quotaReservation.rejected();
+                } else {
+                    provisionRetryStrategy.failure(template.getName(), ex.getMessage());
                 }
-                if (slave.getComputer() == null) {
-                    throw new IllegalStateException(Messages.Kubernetes_Pod_Deleted());
+            } finally {
+                if (diagnosis != null) {
+                    diagnosis.close();
                 }
-                if (slave.getComputer().isOnline()) {
-                    break;
-                }
-                Thread.sleep(RETRY_INTERVAL);
+                reservation.release();
+                quotaReservation.release();
+                getInstanceCapStrategy().createFinished(template.getName(),
+                        slave == null ? null : slave.getNodeName());
             }
         }
 
-        private void addHost(KubernetesAgent slave,
+        private void addHost(KubernetesAgent agent,
                              KubernetesClient kubernetesClient,
-                             String podId) throws IOException {
-            slave.setHost(kubernetesClient.pods().inNamespace(namespace).withName(podId).get().getStatus().getPodIP());
-            slave.save();
+                             String pod) throws IOException {
+            agent.setHost(kubernetesClient.pods().inNamespace(namespace).withName(pod).get().getStatus().getPodIP());
+            agent.save();
         }
     }
 
@@ -244,11 +352,57 @@ public class KubernetesCloud extends Cloud {
         try {
             LOGGER.info("Excess workload after pending Spot instances: " + excessWorkload);
             List<NodeProvisioner.PlannedNode> r = new ArrayList<>();
-            PodTemplate template = findFirstPodTemplateBy(label);
-            LOGGER.info("Template: " + template.getDisplayName());
-            for (int i = 1; i <= excessWorkload; i++) {
-                r.add(new NodeProvisioner.PlannedNode(template.getDisplayName(),
-                        Computer.threadPoolForRemoting.submit(new ProvisionCallback(template)), 1));
+            NodeCapacityTracker capacityTracker = NodeCapacityTracker.forCloud(this);
+            NamespaceQuotaTracker quotaTracker = NamespaceQuotaTracker.forCloud(this);
+            InstanceCapStrategy capStrategy = getInstanceCapStrategy();
+            int remaining = excessWorkload;
+            for (PodTemplate template : findPodTemplatesBy(label)) {
+                if (remaining <= 0) {
+                    break;
+                }
+                if (!provisionRetryStrategy.isEnabled(template.getName())) {
+                    LOGGER.log(Level.FINE, "Template {0} backs off after a failed provision: {1}", new Object[]{
+                            template.getName(), provisionRetryStrategy.getLastCause(template.getName())});
+                    continue;
+                }
+                // the workload is in executors, an agent of the template brings several of them
+                int executors = template.getNumExecutors();
+                int granted = capStrategy.tryAcquire(template.getName(), getInstanceCap(), template.getInstanceCap(),
+                        (remaining + executors - 1) / executors);
+                if (granted == 0) {
+                    continue;
+                }
+                LOGGER.info("Template: " + template.getName());
+                List<NamespaceQuotaTracker.Reservation> quotaReservations = Collections.emptyList();
+                List<NodeCapacityTracker.Reservation> reservations = Collections.emptyList();
+                int started = 0;
+                try {
+                    // Only admit the pods that fit the namespace quota and can be scheduled now, the rest is left
+                    // to other templates or clouds and will be requested again by NodeProvisioner once capacity
+                    // frees up.
+                    quotaReservations = quotaTracker.reserve(template, label, granted);
+                    reservations = capacityTracker.reserve(template, quotaReservations.size());
+                    for (int i = 0; i < reservations.size(); i++) {
+                        r.add(new NodeProvisioner.PlannedNode(template.getDisplayName(),
+                                new Provisioning(template, reservations.get(i), quotaReservations.get(i)).start(),
+                                executors));
+                        started++;
+                        remaining -= executors;
+                    }
+                } finally {
+                    // everything not handed to a Provisioning, also when reserving the quota or a node failed
+                    for (int i = started; i < quotaReservations.size(); i++) {
+                        quotaReservations.get(i).release();
+                    }
+                    for (int i = started; i < reservations.size(); i++) {
+                        reservations.get(i).release();
+                    }
+                    capStrategy.cancel(template.getName(), granted - started);
+                }
+            }
+            if (remaining > 0) {
+                LOGGER.log(Level.INFO, "KubernetesCloud: deferring {0} executors for label {1}, no quota or room left",
+                        new Object[]{remaining, label});
             }
             return r;
         } catch (KubernetesClientException e) {
@@ -268,8 +422,24 @@ public class KubernetesCloud extends Cloud {
 
     @Override
     public boolean canProvision(Label label) {
-        final PodTemplate template = findFirstPodTemplateBy(label);
-        return template != null && provisionRetryStrategy.isEnabled(template.getName());
+        InstanceCapStrategy capStrategy = getInstanceCapStrategy();
+        for (PodTemplate template : findPodTemplatesBy(label)) {
+            if (provisionRetryStrategy.isEnabled(template.getName())
+                    && capStrategy.canProvision(template.getName(), getInstanceCap(), template.getInstanceCap())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<PodTemplate> findPodTemplatesBy(Label label) {
+        List<PodTemplate> result = new ArrayList<>();
+        for (PodTemplate t : getTemplates()) {
+            if (label == null || label.matches(t.getLabelSet())) {
+                result.add(t);
+            }
+        }
+        return result;
     }
 
     public PodTemplate findFirstPodTemplateBy(Label label) {
@@ -281,37 +451,192 @@ public class KubernetesCloud extends Cloud {
         return null;
     }
 
+    public InstanceCapStrategy getInstanceCapStrategy() {
+        if (instanceCapStrategy == null) {
+            synchronized (this) {
+                if (instanceCapStrategy == null) {
+                    // Seed from the agents Jenkins already knows about, the periodic reconcile does the rest.
+                    Map<String, List<String>> agents = new HashMap<>();
+                    Jenkins jenkins = Jenkins.getInstanceOrNull();
+                    if (jenkins != null) {
+                        for (Node node : jenkins.getNodes()) {
+                            if (node instanceof KubernetesAgent
+                                    && name.equals(((KubernetesAgent) node).getCloudName())) {
+                                addAgent(agents, ((KubernetesAgent) node).getTemplateName(), node.getNodeName());
+                            }
+                        }
+                    }
+                    InstanceCapStrategy strategy = new InstanceCapStrategy();
+                    strategy.reconcile(agents);
+                    instanceCapStrategy = strategy;
+                }
+            }
+        }
+        return instanceCapStrategy;
+    }
+
+    /**
+     * Resets the instance counters to the agent pods that actually exist in the namespace.
+     */
+    public void reconcileInstanceCaps() throws Exception {
+        Map<String, String> templateNames = new HashMap<>();
+        for (PodTemplate template : getTemplates()) {
+            templateNames.put(AzureContainerUtils.toLabelValue(template.getName()), template.getName());
+        }
+        Map<String, List<String>> agents = new HashMap<>();
+        // only the pods of this Jenkins, another one may share the namespace
+        List<Pod> pods = connect().pods().inNamespace(namespace)
+                .withLabel(PodTemplate.LABEL_KEY, PodTemplate.LABEL_VALUE)
+                .withLabel(PodTemplate.INSTANCE_LABEL_KEY, PodTemplate.getInstanceLabelValue()).list().getItems();
+        for (Pod pod : pods) {
+            String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+            if ("Succeeded".equals(phase) || "Failed".equals(phase) || pod.getMetadata().getLabels() == null) {
+                continue;
+            }
+            String templateName = templateNames.get(pod.getMetadata().getLabels().get(PodTemplate.TEMPLATE_LABEL_KEY));
+            if (templateName != null) {
+                addAgent(agents, templateName, pod.getMetadata().getName());
+            }
+        }
+        getInstanceCapStrategy().reconcile(agents);
+    }
+
+    /**
+     * Brings the agents loaded from the configuration in line with their pods, from a single pod list:
+     * agents whose pod is gone or finished are removed, SSH agents whose pod runs are reconnected.
+     */
+    public void reconcileAgents() throws Exception {
+        List<KubernetesAgent> agents = new ArrayList<>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof KubernetesAgent && name.equals(((KubernetesAgent) node).getCloudName())) {
+                agents.add((KubernetesAgent) node);
+            }
+        }
+        if (agents.isEmpty()) {
+            return;
+        }
+        Map<String, Pod> pods = new HashMap<>();
+        for (Pod pod : connect().pods().inNamespace(namespace)
+                .withLabel(PodTemplate.LABEL_KEY, PodTemplate.LABEL_VALUE).list().getItems()) {
+            pods.put(pod.getMetadata().getName(), pod);
+        }
+        for (final KubernetesAgent agent : agents) {
+            final Pod pod = pods.get(agent.getNodeName());
+            getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    reconcileAgent(agent, pod);
+                }
+            });
+        }
+    }
+
+    static void reconcileAgent(KubernetesAgent agent, Pod pod) {
+        String phase = pod == null || pod.getStatus() == null ? null : pod.getStatus().getPhase();
+        try {
+            if (pod == null || "Succeeded".equals(phase) || "Failed".equals(phase)) {
+                LOGGER.log(Level.INFO, "KubernetesCloud: removing agent {0}, its pod is {1}",
+                        new Object[]{agent.getNodeName(), pod == null ? "gone" : phase});
+                agent.terminate();
+                ContainerMetrics.increment(RestartReconciler.PRUNED_METRIC);
+                return;
+            }
+            Computer computer = agent.toComputer();
+            if ("Running".equals(phase) && agent.isSshLaunchType() && computer != null && computer.isOffline()) {
+                agent.setHost(pod.getStatus().getPodIP());
+                agent.save();
+                computer.connect(false);
+                ContainerMetrics.increment(RestartReconciler.RECONNECTED_METRIC);
+            }
+            // JNLP agents reconnect by themselves, pending pods are left to the retention strategy
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "KubernetesCloud: failed to reconcile agent " + agent.getNodeName(), e);
+        }
+    }
+
+    private static void addAgent(Map<String, List<String>> agents, String templateName, String agentName) {
+        List<String> names = agents.get(templateName);
+        if (names == null) {
+            names = new ArrayList<>();
+            agents.put(templateName, names);
+        }
+        names.add(agentName);
+    }
+
+    /**
+     * Queues the pod for deletion, deletes are sent in batches by the {@link PodDeletionQueue}.
+     */
     public void deletePod(String podName) {
         LOGGER.log(Level.INFO, "Terminating container instance for slave {0}", podName);
-        final Map<String, String> properties = new HashMap<>();
-
-        try (KubernetesClient client = connect()) {
-            properties.put(Constants.AI_CONTAINER_NAME, podName);
+        getPodDeletionQueue().delete(podName);
+    }
 
-            boolean result = client.pods().inNamespace(namespace).withName(podName).delete();
+    void podDeleted(String podName) {
+        final Map<String, String> properties = new HashMap<>();
+        properties.put(Constants.AI_CONTAINER_NAME, podName);
+        ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "Deleted", properties);
+        try {
+            NamespaceQuotaTracker.forCloud(this).podDeleted(podName);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to release quota of pod {0}: {1}", new Object[]{podName, e});
+        }
+        if (hasCacheVolumes()) {
+            getCacheClaimPool().release(podName);
+        }
+        LOGGER.log(Level.INFO, "Terminated Kubernetes instance for slave {0}", podName);
+    }
 
-            ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "Deleted", properties);
+    private boolean hasCacheVolumes() {
+        for (PodTemplate template : getTemplates()) {
+            for (PodVolume volume : template.getVolumes()) {
+                if (volume instanceof CacheVolume) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-            if (result) {
-                LOGGER.log(Level.INFO, "Terminated Kubernetes instance for slave {0}", podName);
-            } else {
-                LOGGER.log(Level.WARNING, "Failed to terminate pod for slave " + podName);
+    public CacheClaimPool getCacheClaimPool() {
+        if (cacheClaimPool == null) {
+            synchronized (this) {
+                if (cacheClaimPool == null) {
+                    cacheClaimPool = new CacheClaimPool(this);
+                }
             }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Failed to terminate pod for slave " + podName, e);
+        }
+        return cacheClaimPool;
+    }
 
-            properties.put("Message", e.getMessage());
-            ContainerPlugin.sendEvent(Constants.AI_CONTAINER_AGENT, "DeletedFailed", properties);
+    public ImagePrePuller getImagePrePuller() {
+        if (imagePrePuller == null) {
+            synchronized (this) {
+                if (imagePrePuller == null) {
+                    imagePrePuller = new ImagePrePuller(this);
+                }
+            }
         }
+        return imagePrePuller;
     }
 
-    private boolean isTimeout(long elapsedTime) {
-        return AzureContainerUtils.isTimeout(startupTimeout, elapsedTime);
+    public PodDeletionQueue getPodDeletionQueue() {
+        if (podDeletionQueue == null) {
+            synchronized (this) {
+                if (podDeletionQueue == null) {
+                    podDeletionQueue = new PodDeletionQueue(this);
+                }
+            }
+        }
+        return podDeletionQueue;
     }
 
+    /**
+     * Bounded pool for blocking cleanup work, provisioning itself runs on the {@link ProvisioningScheduler}.
+     */
     public static synchronized ExecutorService getThreadPool() {
         if (KubernetesCloud.threadPool == null) {
-            KubernetesCloud.threadPool = Executors.newCachedThreadPool();
+            KubernetesCloud.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "KubernetesCloud"));
         }
         return KubernetesCloud.threadPool;
     }
@@ -380,6 +705,57 @@ public class KubernetesCloud extends Cloud {
         this.startupTimeout = startupTimeout;
     }
 
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    @DataBoundSetter
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    public int getMaxConcurrentProvisions() {
+        return maxConcurrentProvisions;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentProvisions(int maxConcurrentProvisions) {
+        this.maxConcurrentProvisions = maxConcurrentProvisions;
+    }
+
+    public Integer getPodDeletionGracePeriod() {
+        return podDeletionGracePeriod;
+    }
+
+    // bound from text, so that an empty field keeps the default instead of becoming 0
+    @DataBoundSetter
+    public void setPodDeletionGracePeriod(String podDeletionGracePeriod) {
+        this.podDeletionGracePeriod = StringUtils.isBlank(podDeletionGracePeriod)
+                ? null : Integer.valueOf(podDeletionGracePeriod.trim());
+    }
+
+    public boolean isPrePullImages() {
+        return prePullImages;
+    }
+
+    @DataBoundSetter
+    public void setPrePullImages(boolean prePullImages) {
+        this.prePullImages = prePullImages;
+    }
+
+    public int getMaxPreProvisioned() {
+        return maxPreProvisioned;
+    }
+
+    @DataBoundSetter
+    public void setMaxPreProvisioned(int maxPreProvisioned) {
+        this.maxPreProvisioned = maxPreProvisioned;
+    }
+
+    public InstanceCapStrategy.InstanceCap getInstanceCap() {
+        return new InstanceCapStrategy.InstanceCap(maxInstances, maxConcurrentProvisions);
+    }
+
     public String getMasterFqdn() {
         return masterFqdn;
     }
@@ -388,6 +764,11 @@ public class KubernetesCloud extends Cloud {
         return client;
     }
 
+    String getConnectionKey() {
+        return StringUtils.join(new Object[]{azureCredentialsId, resourceGroup, serviceName, namespace,
+                acsCredentialsId}, '|');
+    }
+
     private Object readResolve() {
         this.provisionRetryStrategy = new ProvisionRetryStrategy();
         return this;
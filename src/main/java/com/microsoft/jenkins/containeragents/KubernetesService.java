@@ -18,7 +18,6 @@ import com.microsoft.azure.management.Azure;
 import com.microsoft.jenkins.azurecommons.remote.SSHClient;
 import com.microsoft.jenkins.containeragents.util.Constants;
 import hudson.security.ACL;
-import io.fabric8.kubernetes.api.model.ContainerState;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import jenkins.model.Jenkins;
@@ -157,31 +156,31 @@ public final class KubernetesService {
             }
 
             Pod pod = client.pods().inNamespace(namespace).withName(podName).get();
-            String status = pod.getStatus().getPhase();
-            if (status.equals("Running")) {
+            if (isPodRunning(pod)) {
                 break;
-            } else if (status.equals("Pending") || status.equals("PodInitializing")) {
-                if (pod.getStatus().getContainerStatuses() != null
-                        && !pod.getStatus().getContainerStatuses().isEmpty()) {
-                    ContainerState containerState = pod.getStatus().getContainerStatuses().get(0).getState();
-                    if (containerState.getTerminated() != null) {
-                        throw new IllegalStateException(Messages.Kubernetes_Container_Terminated(containerState
-                                .getTerminated().getMessage()));
-                    }
-                    if (containerState.getWaiting() != null
-                            && containerState.getWaiting().getReason().equals("ImagePullBackOff")) {
-                        throw new IllegalStateException(Messages.Kubernetes_Container_Image_Pull_Backoff(containerState
-                                .getWaiting().getMessage()));
-                    }
-                }
-                try {
-                    Thread.sleep(retryInterval);
-                } catch (InterruptedException ex) {
-                    // do nothing
-                }
-            } else {
-                throw new IllegalStateException(Messages.Kubernetes_Container_Not_Running(status));
             }
+            try {
+                Thread.sleep(retryInterval);
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+    }
+
+    /**
+     * Whether the pod runs, {@code false} while it is still starting.
+     *
+     * @throws IllegalStateException if the pod will not come up
+     */
+    public static boolean isPodRunning(Pod pod) {
+        String status = pod.getStatus().getPhase();
+        if (status.equals("Running")) {
+            return true;
+        } else if (status.equals("Pending") || status.equals("PodInitializing")) {
+            PodStartupDiagnosis.checkStatuses(pod);
+            return false;
+        } else {
+            throw new IllegalStateException(Messages.Kubernetes_Container_Not_Running(status));
         }
     }
 
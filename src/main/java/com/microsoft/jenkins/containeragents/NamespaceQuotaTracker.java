@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import hudson.model.Label;
+import io.fabric8.kubernetes.api.model.LimitRange;
+import io.fabric8.kubernetes.api.model.LimitRangeItem;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceQuota;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local view of the ResourceQuotas and LimitRanges of the agent namespace.
+ *
+ * <p>Quota is reserved locally before a pod is created, so that a burst of provisions cannot overrun it.
+ * Demand that does not fit is not failed: the labels are remembered and their node provisioners are woken up
+ * as soon as quota is given back by a terminated agent or by the quota controller.</p>
+ */
+public class NamespaceQuotaTracker {
+    private static final Logger LOGGER = Logger.getLogger(NamespaceQuotaTracker.class.getName());
+
+    private static final Map<String, NamespaceQuotaTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    static final String PODS = "pods";
+    static final String REQUESTS_CPU = "requests.cpu";
+    static final String REQUESTS_MEMORY = "requests.memory";
+    static final String LIMITS_CPU = "limits.cpu";
+    static final String LIMITS_MEMORY = "limits.memory";
+
+    private final String key;
+
+    private final KubernetesClient client;
+
+    private final String namespace;
+
+    // quota name -> hard limits and used amounts
+    private final Map<String, Map<String, Long>> hard = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> used = new ConcurrentHashMap<>();
+
+    private final Map<String, LimitRange> limitRanges = new ConcurrentHashMap<>();
+
+    private final Map<Reservation, Boolean> reservations = new ConcurrentHashMap<>();
+
+    // usage of created pods, so that it can be credited back as soon as the pod is deleted
+    private final Map<String, Map<String, Long>> createdPods = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> credits = new ConcurrentHashMap<>();
+
+    private final Set<Label> deferredLabels = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean synced;
+
+    private Watch quotaWatch;
+
+    private Watch limitRangeWatch;
+
+    NamespaceQuotaTracker(String key, KubernetesClient client, String namespace) {
+        this.key = key;
+        this.client = client;
+        this.namespace = namespace;
+    }
+
+    public static NamespaceQuotaTracker forCloud(KubernetesCloud cloud) throws Exception {
+        String key = cloud.getConnectionKey();
+        NamespaceQuotaTracker tracker = TRACKERS.get(cloud.getDisplayName());
+        if (tracker != null && tracker.key.equals(key)) {
+            return tracker;
+        }
+        synchronized (TRACKERS) {
+            tracker = TRACKERS.get(cloud.getDisplayName());
+            if (tracker == null || !tracker.key.equals(key)) {
+                if (tracker != null) {
+                    tracker.close();
+                }
+                tracker = new NamespaceQuotaTracker(key, cloud.getClientFactory().create(cloud), cloud.getNamespace());
+                TRACKERS.put(cloud.getDisplayName(), tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Reserves quota for at most {@code count} pods of the template. Labels that do not get all the pods they
+     * asked for are woken up again once quota is released.
+     */
+    public synchronized List<Reservation> reserve(PodTemplate template, Label label, int count) {
+        List<Reservation> result = new ArrayList<>();
+        try {
+            ensureSynced();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "NamespaceQuotaTracker: cannot read quota of namespace {0}, admitting {1} pods "
+                    + "without quota check: {2}", new Object[]{namespace, count, e.getMessage()});
+            for (int i = 0; i < count; i++) {
+                result.add(track(new Reservation(new HashMap<String, Long>())));
+            }
+            return result;
+        }
+
+        Map<String, Long> usage = podUsage(template);
+        Map<String, Map<String, Long>> remaining = remaining();
+        for (int i = 0; i < count; i++) {
+            if (!fits(remaining, usage)) {
+                break;
+            }
+            for (Map<String, Long> quota : remaining.values()) {
+                for (Map.Entry<String, Long> entry : quota.entrySet()) {
+                    entry.setValue(entry.getValue() - get(usage, entry.getKey()));
+                }
+            }
+            result.add(track(new Reservation(usage)));
+        }
+        if (result.size() < count) {
+            LOGGER.log(Level.INFO, "NamespaceQuotaTracker: quota of namespace {0} only admits {1} of {2} pods of "
+                    + "template {3}, queueing the rest", new Object[]{namespace, result.size(), count,
+                    template.getName()});
+            if (label != null) {
+                deferredLabels.add(label);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hands the quota of a deleted agent pod back before the quota controller catches up.
+     */
+    public void podDeleted(String podName) {
+        Map<String, Long> usage = createdPods.remove(podName);
+        if (usage != null) {
+            credits.put(podName, usage);
+            wakeUpDeferred();
+        }
+    }
+
+    boolean isDeferred(Label label) {
+        return deferredLabels.contains(label);
+    }
+
+    public static boolean isQuotaExceeded(Throwable e) {
+        return e instanceof KubernetesClientException
+                && ((KubernetesClientException) e).getCode() == HttpURLConnection.HTTP_FORBIDDEN
+                && StringUtils.containsIgnoreCase(e.getMessage(), "exceeded quota");
+    }
+
+    private Reservation track(Reservation reservation) {
+        reservations.put(reservation, Boolean.TRUE);
+        return reservation;
+    }
+
+    private static boolean fits(Map<String, Map<String, Long>> remaining, Map<String, Long> usage) {
+        for (Map<String, Long> quota : remaining.values()) {
+            for (Map.Entry<String, Long> entry : quota.entrySet()) {
+                if (entry.getValue() < get(usage, entry.getKey())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hard limit minus used amount per quota, adjusted by local reservations and credits.
+     */
+    private Map<String, Map<String, Long>> remaining() {
+        Map<String, Map<String, Long>> result = new HashMap<>();
+        for (Map.Entry<String, Map<String, Long>> quota : hard.entrySet()) {
+            Map<String, Long> quotaUsed = used.get(quota.getKey());
+            Map<String, Long> left = new HashMap<>();
+            for (Map.Entry<String, Long> limit : quota.getValue().entrySet()) {
+                long value = limit.getValue() - (quotaUsed == null ? 0 : get(quotaUsed, limit.getKey()));
+                for (Reservation reservation : reservations.keySet()) {
+                    value -= get(reservation.usage, limit.getKey());
+                }
+                for (Map<String, Long> credit : credits.values()) {
+                    value += get(credit, limit.getKey());
+                }
+                left.put(limit.getKey(), value);
+            }
+            result.put(quota.getKey(), left);
+        }
+        return result;
+    }
+
+    /**
+     * The amounts a pod of the template counts against quota, after LimitRange defaults are applied.
+     */
+    Map<String, Long> podUsage(PodTemplate template) {
+        Long requestCpu = StringUtils.isBlank(template.getPodRequestCpu())
+                ? null : Long.valueOf(template.getPodRequestCpu());
+        Long limitCpu = StringUtils.isBlank(template.getPodLimitCpu())
+                ? null : Long.valueOf(template.getPodLimitCpu());
+        Long requestMemory = StringUtils.isBlank(template.getPodRequestMemory())
+                ? null : Long.parseLong(template.getPodRequestMemory()) * QuantityUtils.BYTES_IN_MI;
+        Long limitMemory = StringUtils.isBlank(template.getPodLimitMemory())
+                ? null : Long.parseLong(template.getPodLimitMemory()) * QuantityUtils.BYTES_IN_MI;
+
+        for (LimitRange limitRange : limitRanges.values()) {
+            if (limitRange.getSpec() == null || limitRange.getSpec().getLimits() == null) {
+                continue;
+            }
+            for (LimitRangeItem item : limitRange.getSpec().getLimits()) {
+                if (!"Container".equals(item.getType())) {
+                    continue;
+                }
+                if (limitCpu == null && has(item.getDefault(), "cpu")) {
+                    limitCpu = QuantityUtils.toCpuMillis(item.getDefault().get("cpu"));
+                }
+                if (limitMemory == null && has(item.getDefault(), "memory")) {
+                    limitMemory = QuantityUtils.toBytes(item.getDefault().get("memory"));
+                }
+                if (requestCpu == null && has(item.getDefaultRequest(), "cpu")) {
+                    requestCpu = QuantityUtils.toCpuMillis(item.getDefaultRequest().get("cpu"));
+                }
+                if (requestMemory == null && has(item.getDefaultRequest(), "memory")) {
+                    requestMemory = QuantityUtils.toBytes(item.getDefaultRequest().get("memory"));
+                }
+            }
+        }
+        // Kubernetes defaults a missing request to the limit.
+        if (requestCpu == null) {
+            requestCpu = limitCpu;
+        }
+        if (requestMemory == null) {
+            requestMemory = limitMemory;
+        }
+
+        Map<String, Long> usage = new HashMap<>();
+        usage.put(PODS, 1L);
+        usage.put(REQUESTS_CPU, requestCpu == null ? 0 : requestCpu);
+        usage.put(REQUESTS_MEMORY, requestMemory == null ? 0 : requestMemory);
+        usage.put(LIMITS_CPU, limitCpu == null ? 0 : limitCpu);
+        usage.put(LIMITS_MEMORY, limitMemory == null ? 0 : limitMemory);
+        return usage;
+    }
+
+    private static boolean has(Map<String, Quantity> quantities, String name) {
+        return quantities != null && quantities.get(name) != null;
+    }
+
+    private static long get(Map<String, Long> values, String name) {
+        Long value = values.get(name);
+        return value == null ? 0 : value;
+    }
+
+    private synchronized void ensureSynced() {
+        if (synced) {
+            return;
+        }
+        closeWatches();
+        hard.clear();
+        used.clear();
+        credits.clear();
+        limitRanges.clear();
+        for (ResourceQuota quota : client.resourceQuotas().inNamespace(namespace).list().getItems()) {
+            updateQuota(quota);
+        }
+        for (LimitRange limitRange : client.limitRanges().inNamespace(namespace).list().getItems()) {
+            limitRanges.put(limitRange.getMetadata().getName(), limitRange);
+        }
+        quotaWatch = client.resourceQuotas().inNamespace(namespace).watch(new Watcher<ResourceQuota>() {
+            @Override
+            public void eventReceived(Action action, ResourceQuota quota) {
+                if (action == Action.DELETED) {
+                    hard.remove(quota.getMetadata().getName());
+                    used.remove(quota.getMetadata().getName());
+                } else {
+                    updateQuota(quota);
+                }
+                // The new status reflects the deletions so far, local credits are no longer needed.
+                credits.clear();
+                wakeUpDeferred();
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                onWatchClosed(cause);
+            }
+        });
+        limitRangeWatch = client.limitRanges().inNamespace(namespace).watch(new Watcher<LimitRange>() {
+            @Override
+            public void eventReceived(Action action, LimitRange limitRange) {
+                if (action == Action.DELETED) {
+                    limitRanges.remove(limitRange.getMetadata().getName());
+                } else {
+                    limitRanges.put(limitRange.getMetadata().getName(), limitRange);
+                }
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                onWatchClosed(cause);
+            }
+        });
+        synced = true;
+    }
+
+    private void updateQuota(ResourceQuota quota) {
+        String name = quota.getMetadata().getName();
+        hard.put(name, toAmounts(quota.getStatus() != null && quota.getStatus().getHard() != null
+                ? quota.getStatus().getHard()
+                : quota.getSpec() == null ? null : quota.getSpec().getHard()));
+        used.put(name, toAmounts(quota.getStatus() == null ? null : quota.getStatus().getUsed()));
+    }
+
+    /**
+     * Keeps the pod related quota entries, normalized to the names used by {@link #podUsage}.
+     */
+    private static Map<String, Long> toAmounts(Map<String, Quantity> quantities) {
+        Map<String, Long> amounts = new HashMap<>();
+        if (quantities == null) {
+            return amounts;
+        }
+        for (Map.Entry<String, Quantity> entry : quantities.entrySet()) {
+            switch (entry.getKey()) {
+                case "pods":
+                case "count/pods":
+                    amounts.put(PODS, QuantityUtils.toLong(entry.getValue()));
+                    break;
+                case "cpu":
+                case REQUESTS_CPU:
+                    amounts.put(REQUESTS_CPU, QuantityUtils.toCpuMillis(entry.getValue()));
+                    break;
+                case "memory":
+                case REQUESTS_MEMORY:
+                    amounts.put(REQUESTS_MEMORY, QuantityUtils.toBytes(entry.getValue()));
+                    break;
+                case LIMITS_CPU:
+                    amounts.put(LIMITS_CPU, QuantityUtils.toCpuMillis(entry.getValue()));
+                    break;
+                case LIMITS_MEMORY:
+                    amounts.put(LIMITS_MEMORY, QuantityUtils.toBytes(entry.getValue()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return amounts;
+    }
+
+    private void wakeUpDeferred() {
+        if (deferredLabels.isEmpty()) {
+            return;
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        for (Label label : new ArrayList<>(deferredLabels)) {
+            deferredLabels.remove(label);
+            label.nodeProvisioner.suggestReviewNow();
+        }
+    }
+
+    private void onWatchClosed(KubernetesClientException cause) {
+        LOGGER.log(Level.INFO, "NamespaceQuotaTracker: watch closed, will resync on next provision: {0}",
+                cause == null ? null : cause.getMessage());
+        synced = false;
+    }
+
+    public synchronized void close() {
+        closeWatches();
+        synced = false;
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    private void closeWatches() {
+        if (quotaWatch != null) {
+            quotaWatch.close();
+            quotaWatch = null;
+        }
+        if (limitRangeWatch != null) {
+            limitRangeWatch.close();
+            limitRangeWatch = null;
+        }
+    }
+
+    /**
+     * Quota held for a pod until the API server has accounted for it.
+     */
+    public final class Reservation {
+        private final Map<String, Long> usage;
+
+        Reservation(Map<String, Long> usage) {
+            this.usage = usage;
+        }
+
+        /**
+         * The pod has been created, from now on the quota status covers it.
+         */
+        public void commit(String podName) {
+            if (reservations.remove(this) != null) {
+                createdPods.put(podName, usage);
+            }
+        }
+
+        /**
+         * The API server refused the pod on quota, resync before admitting more.
+         */
+        public void rejected() {
+            reservations.remove(this);
+            synced = false;
+        }
+
+        public void release() {
+            if (reservations.remove(this) != null) {
+                wakeUpDeferred();
+            }
+        }
+    }
+}
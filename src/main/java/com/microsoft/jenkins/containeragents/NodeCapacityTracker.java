@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.Constants;
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerImage;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.NodeCondition;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.Taint;
+import io.fabric8.kubernetes.api.model.Toleration;
+import io.fabric8.kubernetes.api.model.Volume;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cached view of the schedulable capacity of a Kubernetes cluster.
+ *
+ * <p>Node allocatable resources and the requests of every bound pod are kept up to date by watches, so that
+ * {@link KubernetesCloud#provision} can decide how many pods fit right now without listing the cluster.
+ * Pods admitted but not yet bound are accounted for through {@link Reservation}s. The watch also keeps the
+ * labels, taints and pulled images of each node, for the scheduling constraints of the templates, and the
+ * persistent volume claims each pod mounts, for the {@link CacheClaimPool}.</p>
+ */
+public class NodeCapacityTracker {
+    private static final Logger LOGGER = Logger.getLogger(NodeCapacityTracker.class.getName());
+
+    private static final Map<String, NodeCapacityTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    private final String key;
+
+    private final KubernetesClient client;
+
+    private final Map<String, NodeResources> nodes = new ConcurrentHashMap<>();
+
+    private final Map<String, PodUsage> pods = new ConcurrentHashMap<>();
+
+    // namespace/pod -> claims the pod mounts, of all pods that exist whether bound, running or done
+    private final Map<String, List<String>> claims = new ConcurrentHashMap<>();
+
+    private final Map<Reservation, Boolean> reservations = new ConcurrentHashMap<>();
+
+    private volatile boolean synced;
+
+    private Watch nodeWatch;
+
+    private Watch podWatch;
+
+    NodeCapacityTracker(String key, KubernetesClient client) {
+        this.key = key;
+        this.client = client;
+    }
+
+    /**
+     * Returns the tracker of the given cloud, replacing the previous one if the cloud has been reconfigured.
+     */
+    public static NodeCapacityTracker forCloud(KubernetesCloud cloud) throws Exception {
+        String key = cloud.getConnectionKey();
+        NodeCapacityTracker tracker = TRACKERS.get(cloud.getDisplayName());
+        if (tracker != null && tracker.key.equals(key)) {
+            return tracker;
+        }
+        synchronized (TRACKERS) {
+            tracker = TRACKERS.get(cloud.getDisplayName());
+            if (tracker == null || !tracker.key.equals(key)) {
+                if (tracker != null) {
+                    tracker.close();
+                }
+                tracker = new NodeCapacityTracker(key, cloud.getClientFactory().create(cloud));
+                TRACKERS.put(cloud.getDisplayName(), tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Reserves room for at most {@code count} pods of the template on the currently known nodes.
+     *
+     * @return one reservation per pod that can be scheduled now, possibly fewer than requested
+     */
+    public synchronized List<Reservation> reserve(PodTemplate template, int count) {
+        final long cpu = StringUtils.isBlank(template.getPodRequestCpu())
+                ? 0 : Long.parseLong(template.getPodRequestCpu());
+        final long memory = StringUtils.isBlank(template.getPodRequestMemory())
+                ? 0 : Long.parseLong(template.getPodRequestMemory()) * QuantityUtils.BYTES_IN_MI;
+
+        List<Reservation> result = new ArrayList<>();
+        try {
+            ensureSynced();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "NodeCapacityTracker: cluster capacity is not synced, admitting {0} pods "
+                    + "of template {1} without capacity check: {2}",
+                    new Object[]{count, template.getName(), e.getMessage()});
+            for (int i = 0; i < count; i++) {
+                result.add(track(new Reservation(null, cpu, memory)));
+            }
+            return result;
+        }
+
+        Map<String, long[]> free = computeFree(template);
+        // the nodes that already have the image first, as the image affinity of the pod makes them preferred
+        Map<String, long[]> ordered = new LinkedHashMap<>();
+        for (String node : getNodesWithImage(template.getImage())) {
+            if (free.containsKey(node)) {
+                ordered.put(node, free.get(node));
+            }
+        }
+        ordered.putAll(free);
+        for (int i = 0; i < count; i++) {
+            String target = null;
+            for (Map.Entry<String, long[]> entry : ordered.entrySet()) {
+                long[] remaining = entry.getValue();
+                if (remaining[0] >= cpu && remaining[1] >= memory && remaining[2] >= 1) {
+                    target = entry.getKey();
+                    remaining[0] -= cpu;
+                    remaining[1] -= memory;
+                    remaining[2] -= 1;
+                    break;
+                }
+            }
+            if (target == null) {
+                break;
+            }
+            result.add(track(new Reservation(target, cpu, memory)));
+        }
+        if (result.size() < count) {
+            LOGGER.log(Level.INFO, "NodeCapacityTracker: only {0} of {1} pods of template {2} fit on the cluster",
+                    new Object[]{result.size(), count, template.getName()});
+        }
+        return result;
+    }
+
+    private Reservation track(Reservation reservation) {
+        reservations.put(reservation, Boolean.TRUE);
+        return reservation;
+    }
+
+    /**
+     * The schedulable nodes that report the image among their pulled images, as of the node watch.
+     */
+    public List<String> getNodesWithImage(String image) {
+        List<String> result = new ArrayList<>();
+        if (StringUtils.isBlank(image)) {
+            return result;
+        }
+        for (NodeResources node : nodes.values()) {
+            if (node.schedulable && ImagePrePuller.matches(node.images, image.trim())) {
+                result.add(node.name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The persistent volume claims mounted by the pods of the namespace, as of the pod watch.
+     */
+    public Set<String> getMountedClaims(String namespace) throws Exception {
+        ensureSynced();
+        String prefix = podKey(namespace, "");
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, List<String>> entry : claims.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.addAll(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Free cpu millis, memory bytes and pod slots per node the pods of the template may be scheduled on, after
+     * bound pods and reservations.
+     */
+    private Map<String, long[]> computeFree(PodTemplate template) {
+        String specifyNode = template.getSpecifyNode();
+        Map<String, String> nodeSelector = template.getNodeSelectorMap();
+        List<Toleration> tolerations = template.getTolerationList();
+        Map<String, long[]> free = new HashMap<>();
+        for (NodeResources node : nodes.values()) {
+            if (!node.schedulable) {
+                continue;
+            }
+            if (StringUtils.isNotBlank(specifyNode) && !specifyNode.equals(node.name)) {
+                continue;
+            }
+            if (!node.labels.entrySet().containsAll(nodeSelector.entrySet()) || !tolerated(node, tolerations)) {
+                continue;
+            }
+            free.put(node.name, new long[]{node.cpu, node.memory, node.pods});
+        }
+        for (PodUsage usage : pods.values()) {
+            subtract(free, usage.nodeName, usage.cpu, usage.memory);
+        }
+        for (Reservation reservation : reservations.keySet()) {
+            if (reservation.podName != null && pods.containsKey(reservation.podName)) {
+                // already accounted for by the pod watch
+                continue;
+            }
+            subtract(free, reservation.nodeName, reservation.cpu, reservation.memory);
+        }
+        return free;
+    }
+
+    private static boolean tolerated(NodeResources node, List<Toleration> tolerations) {
+        for (Taint taint : node.taints) {
+            if (!PodScheduling.tolerates(tolerations, taint)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void subtract(Map<String, long[]> free, String nodeName, long cpu, long memory) {
+        if (nodeName == null) {
+            return;
+        }
+        long[] remaining = free.get(nodeName);
+        if (remaining != null) {
+            remaining[0] -= cpu;
+            remaining[1] -= memory;
+            remaining[2] -= 1;
+        }
+    }
+
+    private synchronized void ensureSynced() {
+        if (synced) {
+            return;
+        }
+        closeWatches();
+        nodes.clear();
+        pods.clear();
+        claims.clear();
+        for (Node node : client.nodes().list().getItems()) {
+            updateNode(node);
+        }
+        for (Pod pod : client.pods().inAnyNamespace().list().getItems()) {
+            updatePod(pod);
+        }
+        nodeWatch = client.nodes().watch(new Watcher<Node>() {
+            @Override
+            public void eventReceived(Action action, Node node) {
+                if (action == Action.DELETED) {
+                    nodes.remove(node.getMetadata().getName());
+                } else {
+                    updateNode(node);
+                }
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                onWatchClosed(cause);
+            }
+        });
+        podWatch = client.pods().inAnyNamespace().watch(new Watcher<Pod>() {
+            @Override
+            public void eventReceived(Action action, Pod pod) {
+                if (action == Action.DELETED) {
+                    pods.remove(podKey(pod));
+                    claims.remove(podKey(pod));
+                } else {
+                    updatePod(pod);
+                }
+            }
+
+            @Override
+            public void onClose(KubernetesClientException cause) {
+                onWatchClosed(cause);
+            }
+        });
+        synced = true;
+        LOGGER.log(Level.INFO, "NodeCapacityTracker: synced {0} nodes and {1} pods",
+                new Object[]{nodes.size(), pods.size()});
+    }
+
+    private void onWatchClosed(KubernetesClientException cause) {
+        LOGGER.log(Level.INFO, "NodeCapacityTracker: watch closed, will resync on next provision: {0}",
+                cause == null ? null : cause.getMessage());
+        synced = false;
+    }
+
+    private void updateNode(Node node) {
+        String name = node.getMetadata().getName();
+        Map<String, String> labels = node.getMetadata().getLabels() == null
+                ? Collections.<String, String>emptyMap() : node.getMetadata().getLabels();
+        boolean master = Constants.NODE_MASTER.equals(labels.get(Constants.NODE_ROLE))
+                || Constants.NODE_MASTER.equals(labels.get(Constants.NODE_ROLE_AKS));
+        boolean unschedulable = node.getSpec() != null && Boolean.TRUE.equals(node.getSpec().getUnschedulable());
+        Map<String, Quantity> allocatable = node.getStatus() == null ? null : node.getStatus().getAllocatable();
+        if (allocatable == null || allocatable.isEmpty()) {
+            allocatable = node.getStatus() == null ? null : node.getStatus().getCapacity();
+        }
+        if (allocatable == null) {
+            allocatable = Collections.emptyMap();
+        }
+        List<String> images = new ArrayList<>();
+        if (node.getStatus() != null && node.getStatus().getImages() != null) {
+            for (ContainerImage image : node.getStatus().getImages()) {
+                if (image.getNames() != null) {
+                    images.addAll(image.getNames());
+                }
+            }
+        }
+        List<Taint> taints = node.getSpec() == null || node.getSpec().getTaints() == null
+                ? Collections.<Taint>emptyList() : node.getSpec().getTaints();
+        nodes.put(name, new NodeResources(name,
+                QuantityUtils.toCpuMillis(allocatable.get("cpu")),
+                QuantityUtils.toBytes(allocatable.get("memory")),
+                allocatable.containsKey("pods") ? QuantityUtils.toLong(allocatable.get("pods")) : Long.MAX_VALUE,
+                !master && !unschedulable && isReady(node),
+                labels, taints, images));
+    }
+
+    private static boolean isReady(Node node) {
+        if (node.getStatus() == null || node.getStatus().getConditions() == null) {
+            return false;
+        }
+        for (NodeCondition condition : node.getStatus().getConditions()) {
+            if ("Ready".equals(condition.getType())) {
+                return "True".equals(condition.getStatus());
+            }
+        }
+        return false;
+    }
+
+    private void updatePod(Pod pod) {
+        updateClaims(pod);
+        String nodeName = pod.getSpec() == null ? null : pod.getSpec().getNodeName();
+        String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+        if (StringUtils.isBlank(nodeName) || "Succeeded".equals(phase) || "Failed".equals(phase)) {
+            pods.remove(podKey(pod));
+            return;
+        }
+        long[] requests = getRequests(pod.getSpec());
+        pods.put(podKey(pod), new PodUsage(nodeName, requests[0], requests[1]));
+    }
+
+    /**
+     * The cpu millis and memory bytes the scheduler counts for the pod: the sum of its containers, or the
+     * largest init container if that is more, as the init containers run one at a time before the others.
+     */
+    static long[] getRequests(PodSpec spec) {
+        long[] containers = new long[2];
+        for (Container container : spec.getContainers()) {
+            long[] requests = getRequests(container);
+            containers[0] += requests[0];
+            containers[1] += requests[1];
+        }
+        if (spec.getInitContainers() != null) {
+            for (Container container : spec.getInitContainers()) {
+                long[] requests = getRequests(container);
+                containers[0] = Math.max(containers[0], requests[0]);
+                containers[1] = Math.max(containers[1], requests[1]);
+            }
+        }
+        return containers;
+    }
+
+    private static long[] getRequests(Container container) {
+        if (container.getResources() == null || container.getResources().getRequests() == null) {
+            return new long[2];
+        }
+        Map<String, Quantity> requests = container.getResources().getRequests();
+        return new long[]{QuantityUtils.toCpuMillis(requests.get("cpu")),
+                QuantityUtils.toBytes(requests.get("memory"))};
+    }
+
+    private void updateClaims(Pod pod) {
+        List<String> mounted = new ArrayList<>();
+        if (pod.getSpec() != null && pod.getSpec().getVolumes() != null) {
+            for (Volume volume : pod.getSpec().getVolumes()) {
+                if (volume.getPersistentVolumeClaim() != null) {
+                    mounted.add(volume.getPersistentVolumeClaim().getClaimName());
+                }
+            }
+        }
+        if (mounted.isEmpty()) {
+            claims.remove(podKey(pod));
+        } else {
+            claims.put(podKey(pod), mounted);
+        }
+    }
+
+    private static String podKey(Pod pod) {
+        return podKey(pod.getMetadata().getNamespace(), pod.getMetadata().getName());
+    }
+
+    private static String podKey(String namespace, String name) {
+        return namespace + "/" + name;
+    }
+
+    public synchronized void close() {
+        closeWatches();
+        synced = false;
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    private void closeWatches() {
+        if (nodeWatch != null) {
+            nodeWatch.close();
+            nodeWatch = null;
+        }
+        if (podWatch != null) {
+            podWatch.close();
+            podWatch = null;
+        }
+    }
+
+    private static final class NodeResources {
+        private final String name;
+        private final long cpu;
+        private final long memory;
+        private final long pods;
+        private final boolean schedulable;
+        private final Map<String, String> labels;
+        private final List<Taint> taints;
+        private final List<String> images;
+
+        NodeResources(String name, long cpu, long memory, long pods, boolean schedulable,
+                      Map<String, String> labels, List<Taint> taints, List<String> images) {
+            this.name = name;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.pods = pods;
+            this.schedulable = schedulable;
+            this.labels = labels;
+            this.taints = taints;
+            this.images = images;
+        }
+    }
+
+    private static final class PodUsage {
+        private final String nodeName;
+        private final long cpu;
+        private final long memory;
+
+        PodUsage(String nodeName, long cpu, long memory) {
+            this.nodeName = nodeName;
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+    }
+
+    /**
+     * Capacity held for a pod between admission and the moment the pod watch sees it bound to a node.
+     */
+    public final class Reservation {
+        private final String nodeName;
+        private final long cpu;
+        private final long memory;
+        private volatile String podName;
+
+        Reservation(String nodeName, long cpu, long memory) {
+            this.nodeName = nodeName;
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        public void bind(String namespace, String name) {
+            this.podName = podKey(namespace, name);
+        }
+
+        public void release() {
+            reservations.remove(this);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.helper.ProvisioningScheduler;
+import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the agent pods of a {@link KubernetesCloud} in batches.
+ *
+ * <p>Deletes requested within {@link #BATCH_WINDOW_MILLIS} are sent as one delete of the pods selected by
+ * their {@link PodTemplate#AGENT_LABEL_KEY} label. Pods that were created without that label are deleted by
+ * name. A batch that fails is retried with an exponential backoff, pods that still exist after
+ * {@link #MAX_ATTEMPTS} are left to the orphan cleanup.</p>
+ */
+public class PodDeletionQueue {
+    private static final Logger LOGGER = Logger.getLogger(PodDeletionQueue.class.getName());
+
+    public static final String BACKLOG_METRIC = "kubernetes.podDeletion.backlog";
+    public static final String DELETED_METRIC = "kubernetes.podDeletion.deleted";
+    public static final String RETRIED_METRIC = "kubernetes.podDeletion.retried";
+    public static final String FAILED_METRIC = "kubernetes.podDeletion.failed";
+    public static final String BATCH_METRIC = "kubernetes.podDeletion.batch";
+
+    static final long BATCH_WINDOW_MILLIS = 500;
+
+    static final int MAX_BATCH_SIZE = 50;
+
+    static final int MAX_ATTEMPTS = 6;
+
+    static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final KubernetesCloud cloud;
+
+    @GuardedBy("this")
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private long flushAt;
+
+    PodDeletionQueue(KubernetesCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    public void delete(String podName) {
+        if (enqueue(podName, System.currentTimeMillis())) {
+            scheduleFlush(BATCH_WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Adds the pod to the backlog, due at {@code now}, unless it is already queued.
+     */
+    boolean enqueue(String podName, long now) {
+        synchronized (this) {
+            if (pending.containsKey(podName)) {
+                return false;
+            }
+            pending.put(podName, new Pending(now));
+        }
+        ContainerMetrics.increment(BACKLOG_METRIC);
+        return true;
+    }
+
+    public synchronized int getBacklog() {
+        return pending.size();
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        long at = System.currentTimeMillis() + delayMillis;
+        synchronized (this) {
+            if (flushAt > 0 && flushAt <= at) {
+                return;
+            }
+            flushAt = at;
+        }
+        ProvisioningScheduler.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                KubernetesCloud.getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void flush() {
+        flush(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the pods due at {@code now}, at most {@link #MAX_BATCH_SIZE} of them, and schedules the next flush.
+     */
+    void flush(long now) {
+        List<String> batch = new ArrayList<>();
+        long next = 0;
+        synchronized (this) {
+            flushAt = 0;
+            for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+                Pending value = entry.getValue();
+                if (value.inFlight) {
+                    continue;
+                }
+                if (value.notBefore <= now && batch.size() < MAX_BATCH_SIZE) {
+                    value.inFlight = true;
+                    batch.add(entry.getKey());
+                } else {
+                    long delay = Math.max(value.notBefore - now, 1);
+                    next = next == 0 ? delay : Math.min(next, delay);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            long start = System.currentTimeMillis();
+            Set<String> failed = deleteBatch(batch);
+            ContainerMetrics.record(BATCH_METRIC, System.currentTimeMillis() - start);
+            next = complete(batch, failed, next, now);
+        }
+        if (next > 0) {
+            scheduleFlush(next);
+        }
+    }
+
+    /**
+     * Deletes the pods and returns the names that could not be deleted.
+     */
+    private Set<String> deleteBatch(List<String> batch) {
+        Set<String> labelValues = new HashSet<>();
+        for (String podName : batch) {
+            labelValues.add(AzureContainerUtils.toLabelValue(podName));
+        }
+        Set<String> failed = new HashSet<>();
+        try {
+            KubernetesClient client = cloud.connect();
+            FilterWatchListDeletable<Pod, PodList, Boolean, Watch, Watcher<Pod>> selected = client.pods()
+                    .inNamespace(cloud.getNamespace())
+                    .withLabel(PodTemplate.LABEL_KEY, PodTemplate.LABEL_VALUE)
+                    .withLabelIn(PodTemplate.AGENT_LABEL_KEY, labelValues.toArray(new String[0]));
+
+            Set<String> labelled = new HashSet<>();
+            for (Pod pod : selected.list().getItems()) {
+                labelled.add(pod.getMetadata().getName());
+            }
+            if (!labelled.isEmpty()) {
+                Integer gracePeriod = cloud.getPodDeletionGracePeriod();
+                if (gracePeriod == null) {
+                    selected.delete();
+                } else {
+                    selected.withGracePeriod(gracePeriod).delete();
+                }
+            }
+
+            for (String podName : batch) {
+                if (labelled.contains(podName)) {
+                    continue;
+                }
+                // created before the agent label existed, or already gone
+                try {
+                    deleteByName(client, podName);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "PodDeletionQueue: failed to delete pod {0}: {1}",
+                            new Object[]{podName, e.getMessage()});
+                    failed.add(podName);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "PodDeletionQueue: failed to delete {0} pods in namespace {1}: {2}",
+                    new Object[]{batch.size(), cloud.getNamespace(), e.getMessage()});
+            failed.addAll(batch);
+        }
+        return failed;
+    }
+
+    private void deleteByName(KubernetesClient client, String podName) {
+        Integer gracePeriod = cloud.getPodDeletionGracePeriod();
+        if (gracePeriod == null) {
+            client.pods().inNamespace(cloud.getNamespace()).withName(podName).delete();
+        } else {
+            client.pods().inNamespace(cloud.getNamespace()).withName(podName).withGracePeriod(gracePeriod).delete();
+        }
+    }
+
+    private long complete(List<String> batch, Set<String> failed, long next, long now) {
+        List<String> deleted = new ArrayList<>();
+        List<String> givenUp = new ArrayList<>();
+        synchronized (this) {
+            for (String podName : batch) {
+                Pending entry = pending.get(podName);
+                if (entry == null) {
+                    continue;
+                }
+                entry.inFlight = false;
+                if (!failed.contains(podName)) {
+                    pending.remove(podName);
+                    deleted.add(podName);
+                } else if (++entry.attempts >= MAX_ATTEMPTS) {
+                    pending.remove(podName);
+                    givenUp.add(podName);
+                } else {
+                    long backoff = backoff(entry.attempts);
+                    entry.notBefore = now + backoff;
+                    next = next == 0 ? backoff : Math.min(next, backoff);
+                    ContainerMetrics.increment(RETRIED_METRIC);
+                }
+            }
+            // more pods may have become due while this batch was deleted
+            for (Pending entry : pending.values()) {
+                if (!entry.inFlight && entry.notBefore <= now) {
+                    next = 1;
+                    break;
+                }
+            }
+        }
+
+        ContainerMetrics.add(BACKLOG_METRIC, -(deleted.size() + givenUp.size()));
+        ContainerMetrics.add(DELETED_METRIC, deleted.size());
+        ContainerMetrics.add(FAILED_METRIC, givenUp.size());
+        for (String podName : deleted) {
+            cloud.podDeleted(podName);
+        }
+        for (String podName : givenUp) {
+            LOGGER.log(Level.WARNING, "PodDeletionQueue: giving up deleting pod {0} after {1} attempts",
+                    new Object[]{podName, MAX_ATTEMPTS});
+        }
+        return next;
+    }
+
+    static long backoff(int attempts) {
+        return Math.min(INITIAL_BACKOFF_MILLIS << (attempts - 1), MAX_BACKOFF_MILLIS);
+    }
+
+    private static final class Pending {
+        private long notBefore;
+        private int attempts;
+        // picked by a running flush, so that a concurrent flush does not delete it twice
+        private boolean inFlight;
+
+        Pending(long notBefore) {
+            this.notBefore = notBefore;
+        }
+    }
+}
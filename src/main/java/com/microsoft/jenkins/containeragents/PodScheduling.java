@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.Affinity;
+import io.fabric8.kubernetes.api.model.AffinityBuilder;
+import io.fabric8.kubernetes.api.model.Taint;
+import io.fabric8.kubernetes.api.model.Toleration;
+import io.fabric8.kubernetes.api.model.TolerationBuilder;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Scheduling constraints of the pods of a {@link PodTemplate}: required node selectors, tolerations of node
+ * taints, and a soft preference for the nodes that already have the image of the template.
+ */
+public final class PodScheduling {
+
+    public static final String HOSTNAME_LABEL = "kubernetes.io/hostname";
+
+    // pods that started on a node which had their image already, and pods that had to pull it
+    public static final String IMAGE_CACHED_METRIC = "kubernetes.imageLocality.cached";
+    public static final String IMAGE_PULLED_METRIC = "kubernetes.imageLocality.pulled";
+
+    // the preference outweighs the default spreading of the scheduler but not a node that does not fit
+    static final int IMAGE_AFFINITY_WEIGHT = 100;
+
+    // keeps the pod spec small on large clusters, any of these nodes avoids the pull
+    static final int MAX_IMAGE_NODES = 50;
+
+    /**
+     * Parses {@code key=value} pairs, separated by commas or new lines.
+     */
+    public static Map<String, String> parseNodeSelector(String text) {
+        Map<String, String> result = new TreeMap<>();
+        for (String pair : StringUtils.split(StringUtils.defaultString(text), ",\r\n")) {
+            String key = StringUtils.substringBefore(pair, "=").trim();
+            if (StringUtils.isNotEmpty(key)) {
+                result.put(key, StringUtils.substringAfter(pair, "=").trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses tolerations in the syntax of {@code kubectl taint}, one per line or separated by commas:
+     * {@code key=value:Effect}, {@code key:Effect}, {@code key=value} or {@code key}. Without a value the
+     * toleration matches any value of the key, without an effect it matches any effect.
+     */
+    public static List<Toleration> parseTolerations(String text) {
+        List<Toleration> result = new ArrayList<>();
+        for (String entry : StringUtils.split(StringUtils.defaultString(text), ",\r\n")) {
+            String item = entry.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            String effect = item.contains(":") ? StringUtils.substringAfterLast(item, ":").trim() : null;
+            String keyValue = item.contains(":") ? StringUtils.substringBeforeLast(item, ":") : item;
+            String key = StringUtils.substringBefore(keyValue, "=").trim();
+            String value = keyValue.contains("=") ? StringUtils.substringAfter(keyValue, "=").trim() : null;
+            result.add(new TolerationBuilder()
+                    .withKey(StringUtils.defaultIfEmpty(key, null))
+                    .withOperator(value == null ? "Exists" : "Equal")
+                    .withValue(value)
+                    .withEffect(StringUtils.defaultIfEmpty(effect, null))
+                    .build());
+        }
+        return result;
+    }
+
+    /**
+     * Whether a pod with the given tolerations may be scheduled on a node with the taint. Taints with the
+     * {@code PreferNoSchedule} effect never keep a pod off a node.
+     */
+    public static boolean tolerates(List<Toleration> tolerations, Taint taint) {
+        if ("PreferNoSchedule".equals(taint.getEffect())) {
+            return true;
+        }
+        for (Toleration toleration : tolerations) {
+            if (StringUtils.isNotEmpty(toleration.getEffect()) && !toleration.getEffect().equals(taint.getEffect())) {
+                continue;
+            }
+            if (StringUtils.isEmpty(toleration.getKey())) {
+                // an empty key with Exists tolerates everything
+                if ("Exists".equals(toleration.getOperator())) {
+                    return true;
+                }
+                continue;
+            }
+            if (!toleration.getKey().equals(taint.getKey())) {
+                continue;
+            }
+            if ("Exists".equals(toleration.getOperator())
+                    || StringUtils.defaultString(toleration.getValue())
+                    .equals(StringUtils.defaultString(taint.getValue()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A soft node affinity for the nodes that have the image, null if there are none.
+     */
+    public static Affinity buildImageAffinity(List<String> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(nodes);
+        Collections.sort(values);
+        if (values.size() > MAX_IMAGE_NODES) {
+            values = values.subList(0, MAX_IMAGE_NODES);
+        }
+        return new AffinityBuilder()
+                .withNewNodeAffinity()
+                    .addNewPreferredDuringSchedulingIgnoredDuringExecution()
+                        .withWeight(IMAGE_AFFINITY_WEIGHT)
+                        .withNewPreference()
+                            .addNewMatchExpression()
+                                .withKey(HOSTNAME_LABEL)
+                                .withOperator("In")
+                                .withValues(values)
+                            .endMatchExpression()
+                        .endPreference()
+                    .endPreferredDuringSchedulingIgnoredDuringExecution()
+                .endNodeAffinity()
+                .build();
+    }
+
+    private PodScheduling() {
+    }
+}
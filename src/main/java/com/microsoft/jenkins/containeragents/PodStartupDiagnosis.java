@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.ContainerStateTerminated;
+import io.fabric8.kubernetes.api.model.ContainerStateWaiting;
+import io.fabric8.kubernetes.api.model.ContainerStatus;
+import io.fabric8.kubernetes.api.model.Event;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells a pod that is still starting from one that never will, from the statuses of all its containers and
+ * from its events.
+ *
+ * <p>Reasons that need a change of the template or the cluster, e.g. a missing image or secret, or no node
+ * matching the selector, are fatal and fail the provisioning at once. Reasons the cluster works on, e.g. a
+ * pull in progress or an autoscaler adding nodes, are left to the startup timeout.</p>
+ */
+public class PodStartupDiagnosis {
+    private static final Logger LOGGER = Logger.getLogger(PodStartupDiagnosis.class.getName());
+
+    static final Set<String> FATAL_WAITING_REASONS = new HashSet<>(Arrays.asList(
+            "ImagePullBackOff",
+            "InvalidImageName",
+            "ErrImageNeverPull",
+            "CreateContainerConfigError",
+            "CreateContainerError",
+            "CrashLoopBackOff",
+            "RunContainerError"));
+
+    // an image pull error with one of these messages will not go away by retrying
+    static final List<String> PERMANENT_PULL_ERRORS = Arrays.asList(
+            "not found", "manifest unknown", "unauthorized", "denied", "does not exist");
+
+    private final String podName;
+
+    private volatile String fatalEvent;
+
+    private Watch eventWatch;
+
+    public PodStartupDiagnosis(String podName) {
+        this.podName = podName;
+    }
+
+    /**
+     * Starts watching the events of the pod. A failed watch is only logged, the statuses are still checked.
+     */
+    public synchronized void watchEvents(KubernetesClient client, String namespace) {
+        try {
+            eventWatch = client.events().inNamespace(namespace)
+                    .withField("involvedObject.name", podName)
+                    .watch(new Watcher<Event>() {
+                        @Override
+                        public void eventReceived(Action action, Event event) {
+                            String reason = fatalEventReason(event);
+                            if (reason != null && fatalEvent == null) {
+                                fatalEvent = reason;
+                            }
+                        }
+
+                        @Override
+                        public void onClose(KubernetesClientException cause) {
+                        }
+                    });
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "PodStartupDiagnosis: cannot watch events of pod {0}: {1}",
+                    new Object[]{podName, e.getMessage()});
+        }
+    }
+
+    /**
+     * @throws IllegalStateException with the precise cause if the pod will not come up
+     */
+    public void check(Pod pod) {
+        if (fatalEvent != null) {
+            throw new IllegalStateException(Messages.Kubernetes_Pod_Cannot_Start(podName, fatalEvent));
+        }
+        checkStatuses(pod);
+    }
+
+    public synchronized void close() {
+        if (eventWatch != null) {
+            eventWatch.close();
+            eventWatch = null;
+        }
+    }
+
+    /**
+     * Checks the init containers and the containers of a pending pod.
+     *
+     * @throws IllegalStateException with the precise cause if one of them will not come up
+     */
+    public static void checkStatuses(Pod pod) {
+        if (pod.getStatus() == null) {
+            return;
+        }
+        checkStatuses(pod.getStatus().getInitContainerStatuses(), true);
+        checkStatuses(pod.getStatus().getContainerStatuses(), false);
+    }
+
+    private static void checkStatuses(List<ContainerStatus> statuses, boolean init) {
+        for (ContainerStatus status : statuses == null ? Collections.<ContainerStatus>emptyList() : statuses) {
+            if (status.getState() == null) {
+                continue;
+            }
+            String reason = fatalReason(status.getState().getWaiting(), status.getState().getTerminated(), init);
+            if (reason != null) {
+                throw new IllegalStateException(Messages.Kubernetes_Container_Start_Failed(status.getName(), reason));
+            }
+        }
+    }
+
+    static String fatalReason(ContainerStateWaiting waiting, ContainerStateTerminated terminated, boolean init) {
+        if (terminated != null) {
+            // init containers are meant to terminate, the agent container runs with restartPolicy Never
+            if (init && terminated.getExitCode() != null && terminated.getExitCode() == 0) {
+                return null;
+            }
+            return describe(StringUtils.defaultIfBlank(terminated.getReason(), "Terminated"),
+                    StringUtils.defaultIfBlank(terminated.getMessage(), "exit code " + terminated.getExitCode()));
+        }
+        if (waiting == null || waiting.getReason() == null) {
+            return null;
+        }
+        String reason = waiting.getReason();
+        if (FATAL_WAITING_REASONS.contains(reason)
+                || "ErrImagePull".equals(reason) && containsAny(waiting.getMessage(), PERMANENT_PULL_ERRORS)) {
+            return describe(reason, waiting.getMessage());
+        }
+        return null;
+    }
+
+    static String fatalEventReason(Event event) {
+        if (event == null || !"Warning".equals(event.getType()) || event.getReason() == null) {
+            return null;
+        }
+        String reason = event.getReason();
+        String message = StringUtils.defaultString(event.getMessage());
+        switch (reason) {
+            case "FailedScheduling":
+                // no node fits for another reason than its free resources, which an autoscaler could add
+                if (message.startsWith("0/") && !message.contains("Insufficient")
+                        && !message.contains("Too many pods")) {
+                    return describe(reason, message);
+                }
+                return null;
+            case "FailedMount":
+            case "FailedAttachVolume":
+                return message.contains("not found") ? describe(reason, message) : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean containsAny(String message, List<String> parts) {
+        if (message == null) {
+            return false;
+        }
+        String lower = message.toLowerCase();
+        for (String part : parts) {
+            if (lower.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(String reason, String message) {
+        return StringUtils.isBlank(message) ? reason : reason + ": " + message;
+    }
+}
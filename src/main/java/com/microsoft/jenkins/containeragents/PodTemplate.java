@@ -15,8 +15,13 @@ import com.google.common.collect.Lists;
 import com.microsoft.jenkins.containeragents.remote.LaunchMethodTypeContent;
 import com.microsoft.jenkins.containeragents.strategy.ContainerIdleRetentionStrategy;
 import com.microsoft.jenkins.containeragents.strategy.ContainerOnceRetentionStrategy;
+import com.microsoft.jenkins.containeragents.strategy.InstanceCapStrategy;
+import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
 import com.microsoft.jenkins.containeragents.util.Constants;
 import com.microsoft.jenkins.containeragents.util.DockerConfigBuilder;
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import com.microsoft.jenkins.containeragents.util.TemplateUsage;
+import com.microsoft.jenkins.containeragents.volumes.CacheVolume;
 import com.microsoft.jenkins.containeragents.volumes.PodVolume;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -27,6 +32,7 @@ import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
 import hudson.security.ACL;
+import hudson.slaves.Cloud;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -42,6 +48,7 @@ import io.fabric8.kubernetes.api.model.PodBuilder;
 import io.fabric8.kubernetes.api.model.Quantity;
 import io.fabric8.kubernetes.api.model.Secret;
 import io.fabric8.kubernetes.api.model.SecretBuilder;
+import io.fabric8.kubernetes.api.model.Toleration;
 import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeMount;
 import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
@@ -97,6 +104,12 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
 
     private String specifyNode;
 
+    private String nodeSelector;
+
+    private String tolerations;
+
+    private boolean preferImageNodes;
+
     private String requestCpu;
 
     private String limitCpu;
@@ -105,6 +118,14 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
 
     private String limitMemory;
 
+    private boolean applyRecommendations;
+
+    private int numExecutors = 1;
+
+    private int maxInstances;
+
+    private int maxConcurrentProvisions;
+
     private List<PodEnvVar> envVars = new ArrayList<>();
 
     private List<PodVolume> volumes = new ArrayList<>();
@@ -117,12 +138,25 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
 
     public static final String LABEL_VALUE = "jenkins-agent";
 
+    public static final String TEMPLATE_LABEL_KEY = "jenkins-template";
+
+    public static final String AGENT_LABEL_KEY = "jenkins-agent-name";
+
+    public static final String INSTANCE_LABEL_KEY = "jenkins-instance";
+
 
     @DataBoundConstructor
     public PodTemplate() {
     }
 
     public Pod buildPod(KubernetesAgent agent, String additionalSecret) {
+        return buildPod(agent, additionalSecret, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param imageNodes the nodes that already have the image, preferred if {@link #isPreferImageNodes()}
+     */
+    public Pod buildPod(KubernetesAgent agent, String additionalSecret, List<String> imageNodes) {
         LOGGER.log(Level.INFO, "Start building pod for agent: " + agent.getNodeName());
         // Build volumes and volume mounts.
         List<Volume> tempVolumes = new ArrayList<>();
@@ -131,7 +165,9 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
         for (int index = 0; index < volumes.size(); index++) {
             PodVolume podVolume = volumes.get(index);
             String volumeName = "volume-" + index;
-            tempVolumes.add(podVolume.buildVolume(volumeName));
+            tempVolumes.add(podVolume instanceof CacheVolume
+                    ? ((CacheVolume) podVolume).buildVolume(volumeName, agent.getCacheClaim(index))
+                    : podVolume.buildVolume(volumeName));
 
             volumeMounts.add(new VolumeMountBuilder()
                                 .withName(volumeName)
@@ -173,8 +209,8 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
                 .withArgs(StringUtils.isBlank(args) ? null : arguments.expand(args).split(" "))
                 .withVolumeMounts(volumeMounts)
                 .withNewResources()
-                    .withLimits(getResourcesMap(limitMemory, limitCpu))
-                    .withRequests(getResourcesMap(requestMemory, requestCpu))
+                    .withLimits(getResourcesMap(getPodLimitMemory(), getPodLimitCpu()))
+                    .withRequests(getResourcesMap(getPodRequestMemory(), getPodRequestCpu()))
                 .endResources()
                 .withNewSecurityContext()
                     .withPrivileged(privileged)
@@ -185,6 +221,9 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
 
         Map<String, String> labels = new TreeMap<>();
         labels.put(LABEL_KEY, LABEL_VALUE);
+        labels.put(TEMPLATE_LABEL_KEY, AzureContainerUtils.toLabelValue(name));
+        labels.put(AGENT_LABEL_KEY, AzureContainerUtils.toLabelValue(agent.getNodeName()));
+        labels.put(INSTANCE_LABEL_KEY, getInstanceLabelValue());
 
         return new PodBuilder()
                 .withNewMetadata()
@@ -197,10 +236,22 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
                     .withRestartPolicy("Never")
                     .withImagePullSecrets(podImagePullSecrets)
                     .withNodeName(StringUtils.isBlank(specifyNode) ? null : specifyNode)
+                    .withNodeSelector(getNodeSelectorMap().isEmpty() ? null : getNodeSelectorMap())
+                    .withTolerations(getTolerationList())
+                    .withAffinity(preferImageNodes && StringUtils.isBlank(specifyNode)
+                            ? PodScheduling.buildImageAffinity(imageNodes) : null)
                 .endSpec()
                 .build();
     }
 
+    /**
+     * Value of the {@link #INSTANCE_LABEL_KEY} label, tells the pods of this Jenkins from those of other
+     * controllers sharing the namespace.
+     */
+    public static String getInstanceLabelValue() {
+        return AzureContainerUtils.toLabelValue(Jenkins.getInstance().getLegacyInstanceId());
+    }
+
     public Secret buildSecret(String namespace,
                               String secretName,
                               List<DockerRegistryEndpoint> credentials) throws IOException {
@@ -299,6 +350,41 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
         return specifyNode;
     }
 
+    public String getNodeSelector() {
+        return nodeSelector;
+    }
+
+    @DataBoundSetter
+    public void setNodeSelector(String nodeSelector) {
+        this.nodeSelector = nodeSelector;
+    }
+
+    public Map<String, String> getNodeSelectorMap() {
+        return PodScheduling.parseNodeSelector(nodeSelector);
+    }
+
+    public String getTolerations() {
+        return tolerations;
+    }
+
+    @DataBoundSetter
+    public void setTolerations(String tolerations) {
+        this.tolerations = tolerations;
+    }
+
+    public List<Toleration> getTolerationList() {
+        return PodScheduling.parseTolerations(tolerations);
+    }
+
+    public boolean isPreferImageNodes() {
+        return preferImageNodes;
+    }
+
+    @DataBoundSetter
+    public void setPreferImageNodes(boolean preferImageNodes) {
+        this.preferImageNodes = preferImageNodes;
+    }
+
     @DataBoundSetter
     public void setRequestCpu(final String requestCpu) {
         this.requestCpu = requestCpu;
@@ -335,6 +421,129 @@ public class PodTemplate extends AbstractDescribableImpl<PodTemplate> {
         return limitMemory;
     }
 
+    public int getNumExecutors() {
+        // configurations from before multi-executor agents do not have the field
+        return Math.max(1, numExecutors);
+    }
+
+    @DataBoundSetter
+    public void setNumExecutors(int numExecutors) {
+        this.numExecutors = numExecutors;
+    }
+
+    /**
+     * The CPU request of the pod in millicores: the per executor request times the executors of the agent.
+     */
+    public String getPodRequestCpu() {
+        return scaleToExecutors(requestCpu);
+    }
+
+    public String getPodLimitCpu() {
+        return scaleToExecutors(limitCpu);
+    }
+
+    /**
+     * The memory request of the pod in MiB: the per executor request times the executors of the agent.
+     */
+    public String getPodRequestMemory() {
+        return scaleToExecutors(requestMemory);
+    }
+
+    public String getPodLimitMemory() {
+        return scaleToExecutors(limitMemory);
+    }
+
+    public boolean isApplyRecommendations() {
+        return applyRecommendations;
+    }
+
+    @DataBoundSetter
+    public void setApplyRecommendations(boolean applyRecommendations) {
+        this.applyRecommendations = applyRecommendations;
+    }
+
+    /**
+     * Requests and limits per executor suggested by the usage of the agents of the template, null until enough
+     * agents have been sampled.
+     */
+    public TemplateUsage.Recommendation getUsageRecommendation() {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return null;
+        }
+        for (Cloud cloud : instance.clouds) {
+            if (cloud instanceof KubernetesCloud && ((KubernetesCloud) cloud).getTemplates().contains(this)) {
+                return TemplateUsage.recommend(TemplateUsage.Kind.KUBERNETES, cloud.getDisplayName(), name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes over the values of the recommendation that differ enough from the configured ones.
+     *
+     * @return whether the template changed
+     */
+    public boolean applyUsageRecommendation(TemplateUsage.Recommendation recommendation) {
+        boolean changed = false;
+        if (TemplateUsage.differs(toLong(requestCpu), recommendation.getRequestCpuMillis())) {
+            requestCpu = String.valueOf(recommendation.getRequestCpuMillis());
+            changed = true;
+        }
+        if (TemplateUsage.differs(toLong(limitCpu), recommendation.getLimitCpuMillis())) {
+            limitCpu = String.valueOf(recommendation.getLimitCpuMillis());
+            changed = true;
+        }
+        long requestMi = toMi(recommendation.getRequestMemoryBytes());
+        if (TemplateUsage.differs(toLong(requestMemory), requestMi)) {
+            requestMemory = String.valueOf(requestMi);
+            changed = true;
+        }
+        long limitMi = toMi(recommendation.getLimitMemoryBytes());
+        if (TemplateUsage.differs(toLong(limitMemory), limitMi)) {
+            limitMemory = String.valueOf(limitMi);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static long toLong(String value) {
+        return StringUtils.isBlank(value) ? 0 : Long.parseLong(value.trim());
+    }
+
+    private static long toMi(long bytes) {
+        return (bytes + QuantityUtils.BYTES_IN_MI - 1) / QuantityUtils.BYTES_IN_MI;
+    }
+
+    private String scaleToExecutors(String value) {
+        if (StringUtils.isBlank(value) || getNumExecutors() == 1) {
+            return value;
+        }
+        return String.valueOf(Long.parseLong(value.trim()) * getNumExecutors());
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    @DataBoundSetter
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    public int getMaxConcurrentProvisions() {
+        return maxConcurrentProvisions;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentProvisions(int maxConcurrentProvisions) {
+        this.maxConcurrentProvisions = maxConcurrentProvisions;
+    }
+
+    public InstanceCapStrategy.InstanceCap getInstanceCap() {
+        return new InstanceCapStrategy.InstanceCap(maxInstances, maxConcurrentProvisions);
+    }
+
     @DataBoundSetter
     public void setEnvVars(List<PodEnvVar> envVars) {
         this.envVars = envVars == null ? new ArrayList<PodEnvVar>() : envVars;
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.aci.AciAgent;
+import com.microsoft.jenkins.containeragents.aci.AciCloud;
+import com.microsoft.jenkins.containeragents.aci.AciContainerTemplate;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provisions agents ahead of the demand forecast by the {@link PreProvisioningTask}, on the clouds that allow
+ * pre-provisioned agents.
+ *
+ * <p>Runs before the standard strategy of {@link NodeProvisioner} and records its planned nodes with it, so the
+ * queued items the forecast includes are not provisioned for a second time. The agents of a cloud that are idle
+ * count against its maximum of pre-provisioned agents, so that a wrong forecast costs at most that many idle
+ * agents until the retention strategy removes them.</p>
+ */
+@Extension(ordinal = 100)
+public class PreProvisioningStrategy extends NodeProvisioner.Strategy {
+    private static final Logger LOGGER = Logger.getLogger(PreProvisioningStrategy.class.getName());
+
+    public static final String PRE_PROVISIONED_METRIC = "forecast.preProvisioned";
+
+    // roughly the time an agent takes to come online, the forecast looks that far ahead
+    static final long LEAD_TIME_MILLIS = Long.getLong(PreProvisioningStrategy.class.getName() + ".leadTimeMillis",
+            TimeUnit.MINUTES.toMillis(3));
+
+    @Override
+    public NodeProvisioner.StrategyDecision apply(NodeProvisioner.StrategyState state) {
+        Label label = state.getLabel();
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (label == null || instance == null) {
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+        }
+        int predicted = (int) Math.ceil(PreProvisioningTask.getForecaster().forecast(label.getExpression(),
+                System.currentTimeMillis() + LEAD_TIME_MILLIS));
+        if (predicted <= 0) {
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+        }
+        LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        int shortfall = predicted - snapshot.getOnlineExecutors() - snapshot.getConnectingExecutors()
+                - state.getPlannedCapacitySnapshot() - state.getAdditionalPlannedCapacity();
+        if (shortfall > 0) {
+            state.recordPendingLaunches(preProvision(instance, label, shortfall));
+        }
+        // the queued items are left to the standard strategy, which now counts the planned nodes above
+        return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+    }
+
+    /**
+     * @param shortfall the executors missing for the forecast demand
+     */
+    private Collection<NodeProvisioner.PlannedNode> preProvision(Jenkins instance, Label label, int shortfall) {
+        List<NodeProvisioner.PlannedNode> result = new ArrayList<>();
+        int remaining = shortfall;
+        for (Cloud cloud : instance.clouds) {
+            if (remaining <= 0) {
+                break;
+            }
+            int allowedAgents = getMaxPreProvisioned(cloud) - getIdleAgents(instance, cloud);
+            if (allowedAgents <= 0 || !cloud.canProvision(label)) {
+                continue;
+            }
+            // the maximum is in agents, the demand and the workload of provision in executors
+            int count = Math.min(remaining, allowedAgents * getExecutorsPerAgent(cloud, label));
+            LOGGER.log(Level.INFO, "PreProvisioningStrategy: provisioning {0} executors for {1} on {2} ahead of "
+                            + "demand", new Object[]{count, label, cloud.getDisplayName()});
+            int planned = 0;
+            for (NodeProvisioner.PlannedNode node : cloud.provision(label, count)) {
+                result.add(node);
+                planned += node.numExecutors;
+            }
+            ContainerMetrics.add(PRE_PROVISIONED_METRIC, planned);
+            remaining -= planned;
+        }
+        return result;
+    }
+
+    private static int getMaxPreProvisioned(Cloud cloud) {
+        if (cloud instanceof KubernetesCloud) {
+            return ((KubernetesCloud) cloud).getMaxPreProvisioned();
+        }
+        if (cloud instanceof AciCloud) {
+            return ((AciCloud) cloud).getMaxPreProvisioned();
+        }
+        return 0;
+    }
+
+    /**
+     * The executors of the template the cloud provisions the label with first.
+     */
+    private static int getExecutorsPerAgent(Cloud cloud, Label label) {
+        if (cloud instanceof KubernetesCloud) {
+            PodTemplate template = ((KubernetesCloud) cloud).findFirstPodTemplateBy(label);
+            return template == null ? 1 : template.getNumExecutors();
+        }
+        if (cloud instanceof AciCloud) {
+            AciContainerTemplate template = ((AciCloud) cloud).getFirstTemplate(label);
+            return template == null ? 1 : template.getNumExecutors();
+        }
+        return 1;
+    }
+
+    private static int getIdleAgents(Jenkins instance, Cloud cloud) {
+        int result = 0;
+        for (Node node : instance.getNodes()) {
+            String cloudName = node instanceof KubernetesAgent ? ((KubernetesAgent) node).getCloudName()
+                    : node instanceof AciAgent ? ((AciAgent) node).getCloudName() : null;
+            if (!cloud.getDisplayName().equals(cloudName)) {
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (computer != null && computer.isIdle()) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
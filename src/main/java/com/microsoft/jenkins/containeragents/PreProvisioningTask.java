@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.strategy.DemandForecaster;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the demand of every label each minute for the {@link DemandForecaster}. The agents ahead of the
+ * forecast demand are provisioned by the {@link PreProvisioningStrategy}.
+ */
+@Extension
+public class PreProvisioningTask extends AsyncPeriodicWork {
+    private static final long RECURRENCE_PERIOD_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final DemandForecaster FORECASTER = new DemandForecaster();
+
+    public PreProvisioningTask() {
+        super("Container Agents Pre-provisioning Task");
+    }
+
+    public static DemandForecaster getForecaster() {
+        return FORECASTER;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        Map<Label, Integer> queued = new HashMap<>();
+        for (Queue.BuildableItem item : instance.getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            if (label != null) {
+                Integer count = queued.get(label);
+                queued.put(label, count == null ? 1 : count + 1);
+            }
+        }
+        Set<Label> labels = new LinkedHashSet<>(queued.keySet());
+        for (String name : FORECASTER.getLabels()) {
+            Label label = instance.getLabel(name);
+            if (label != null) {
+                labels.add(label);
+            }
+        }
+
+        for (Label label : labels) {
+            Integer waiting = queued.get(label);
+            FORECASTER.record(label.getExpression(), label.getBusyExecutors() + (waiting == null ? 0 : waiting), now);
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
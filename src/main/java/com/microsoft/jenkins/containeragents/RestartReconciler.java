@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.aci.AciCloud;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reconciles the agents loaded from the configuration with their pods and container groups right after a
+ * restart, instead of leaving it to the retention strategies.
+ */
+public final class RestartReconciler {
+    private static final Logger LOGGER = Logger.getLogger(RestartReconciler.class.getName());
+
+    public static final String RECONCILE_METRIC = "restart.reconcile";
+    public static final String PRUNED_METRIC = "restart.pruned";
+    public static final String RECONNECTED_METRIC = "restart.reconnected";
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void onStartup() {
+        // do not hold up the startup on the cluster and ARM
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+    }
+
+    static void reconcile() {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (KubernetesCloud cloud : instance.clouds.getAll(KubernetesCloud.class)) {
+            try {
+                cloud.reconcileAgents();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to reconcile agents of cloud " + cloud.getDisplayName(), e);
+            }
+        }
+        for (AciCloud cloud : instance.clouds.getAll(AciCloud.class)) {
+            try {
+                cloud.reconcileAgents();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to reconcile agents of cloud " + cloud.getName(), e);
+            }
+        }
+        ContainerMetrics.record(RECONCILE_METRIC, System.currentTimeMillis() - start);
+    }
+
+    private RestartReconciler() {
+
+    }
+}
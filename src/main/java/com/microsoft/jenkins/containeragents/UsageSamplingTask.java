@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.containeragents.aci.AciAgent;
+import com.microsoft.jenkins.containeragents.aci.AciCloud;
+import com.microsoft.jenkins.containeragents.aci.AciContainerTemplate;
+import com.microsoft.jenkins.containeragents.aci.AciUsageSampler;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import com.microsoft.jenkins.containeragents.util.TemplateUsage;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import jenkins.model.Jenkins;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU and memory the running agents use into the {@link TemplateUsage} of their templates, and
+ * applies the resulting recommendations to the templates that ask for it.
+ *
+ * <p>Pods are sampled each minute from the metrics API of the cluster, container groups every
+ * {@link #ACI_SAMPLE_EVERY} minutes from Azure Monitor, which publishes them late and throttles reads.</p>
+ */
+@Extension
+public class UsageSamplingTask extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(UsageSamplingTask.class.getName());
+
+    public static final String APPLIED_METRIC = "usage.recommendationApplied";
+
+    private static final long RECURRENCE_PERIOD_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final int ACI_SAMPLE_EVERY = 5;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private int runs;
+
+    public UsageSamplingTask() {
+        super("Container Agents Usage Sampling Task");
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return;
+        }
+        boolean sampleAci = runs++ % ACI_SAMPLE_EVERY == 0;
+        Map<String, List<KubernetesAgent>> kubernetesAgents = new HashMap<>();
+        Map<String, List<AciAgent>> aciAgents = new HashMap<>();
+        for (Node node : instance.getNodes()) {
+            if (node instanceof KubernetesAgent) {
+                KubernetesAgent agent = (KubernetesAgent) node;
+                kubernetesAgents.computeIfAbsent(agent.getCloudName(), key -> new ArrayList<>()).add(agent);
+            } else if (node instanceof AciAgent) {
+                AciAgent agent = (AciAgent) node;
+                aciAgents.computeIfAbsent(agent.getCloudName(), key -> new ArrayList<>()).add(agent);
+            }
+        }
+
+        boolean changed = false;
+        for (Cloud cloud : instance.clouds) {
+            if (cloud instanceof KubernetesCloud) {
+                KubernetesCloud kubernetesCloud = (KubernetesCloud) cloud;
+                List<KubernetesAgent> agents = kubernetesAgents.get(kubernetesCloud.getDisplayName());
+                if (agents != null) {
+                    try {
+                        sample(kubernetesCloud, agents);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "UsageSamplingTask: cannot sample the pods of {0}: {1}",
+                                new Object[]{cloud.getDisplayName(), e.getMessage()});
+                    }
+                }
+                for (PodTemplate template : kubernetesCloud.getTemplates()) {
+                    if (!template.isApplyRecommendations()) {
+                        continue;
+                    }
+                    String cloudName = kubernetesCloud.getDisplayName();
+                    TemplateUsage.Recommendation recommendation = TemplateUsage.recommend(
+                            TemplateUsage.Kind.KUBERNETES, cloudName, template.getName());
+                    try {
+                        if (recommendation != null && template.applyUsageRecommendation(recommendation)) {
+                            applied(template.getName(), recommendation);
+                            TemplateUsage.reset(TemplateUsage.Kind.KUBERNETES, cloudName, template.getName(),
+                                    agentNames(agents, KubernetesAgent::getTemplateName, template.getName()));
+                            changed = true;
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "UsageSamplingTask: cannot apply the recommendation to template "
+                                + template.getName(), e);
+                    }
+                }
+            } else if (cloud instanceof AciCloud) {
+                AciCloud aciCloud = (AciCloud) cloud;
+                List<AciAgent> agents = aciAgents.get(aciCloud.getName());
+                if (sampleAci && agents != null) {
+                    try {
+                        AciUsageSampler.sample(aciCloud, agents, ACI_SAMPLE_EVERY * RECURRENCE_PERIOD_IN_MILLIS);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "UsageSamplingTask: cannot sample the container groups of {0}: {1}",
+                                new Object[]{aciCloud.getName(), e.getMessage()});
+                    }
+                }
+                for (AciContainerTemplate template : aciCloud.getTemplates()) {
+                    if (!template.isApplyRecommendations()) {
+                        continue;
+                    }
+                    TemplateUsage.Recommendation recommendation = TemplateUsage.recommend(
+                            TemplateUsage.Kind.ACI, aciCloud.getName(), template.getName());
+                    try {
+                        if (recommendation != null && template.applyUsageRecommendation(recommendation)) {
+                            applied(template.getName(), recommendation);
+                            TemplateUsage.reset(TemplateUsage.Kind.ACI, aciCloud.getName(), template.getName(),
+                                    agentNames(agents, AciAgent::getTemplateName, template.getName()));
+                            changed = true;
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "UsageSamplingTask: cannot apply the recommendation to template "
+                                + template.getName(), e);
+                    }
+                }
+            }
+        }
+        if (changed) {
+            try {
+                instance.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "UsageSamplingTask: cannot save the applied recommendations", e);
+            }
+        }
+    }
+
+    /**
+     * The agents of the template, which run under its configuration from before a recommendation was applied.
+     */
+    private static <T extends Node> List<String> agentNames(List<T> agents, Function<T, String> templateOf,
+                                                            String templateName) {
+        List<String> result = new ArrayList<>();
+        if (agents != null) {
+            for (T agent : agents) {
+                if (templateName.equals(templateOf.apply(agent))) {
+                    result.add(agent.getNodeName());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void applied(String templateName, TemplateUsage.Recommendation recommendation) {
+        LOGGER.log(Level.INFO, "UsageSamplingTask: applied to template {0}: {1}",
+                new Object[]{templateName, recommendation.getSummary()});
+        ContainerMetrics.increment(APPLIED_METRIC);
+    }
+
+    /**
+     * Reads the usage of the pods of this Jenkins in the namespace of the cloud from the metrics API. The
+     * Kubernetes client of this version has no model for it, so it goes through its HTTP client.
+     */
+    static void sample(KubernetesCloud cloud, List<KubernetesAgent> agents) throws Exception {
+        Map<String, KubernetesAgent> byPod = new HashMap<>();
+        for (KubernetesAgent agent : agents) {
+            byPod.put(agent.getNodeName(), agent);
+        }
+        KubernetesClient client = cloud.connect();
+        OkHttpClient http = ((HttpClientAware) client).getHttpClient();
+        String url = client.getMasterUrl().toString().replaceAll("/+$", "")
+                + "/apis/metrics.k8s.io/v1beta1/namespaces/" + cloud.getNamespace() + "/pods?labelSelector="
+                + PodTemplate.INSTANCE_LABEL_KEY + "%3D" + PodTemplate.getInstanceLabelValue();
+        try (Response response = http.newCall(new Request.Builder().url(url).build()).execute()) {
+            if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                LOGGER.log(Level.FINE, "UsageSamplingTask: the cluster of {0} has no metrics API",
+                        cloud.getDisplayName());
+                return;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("metrics API returned " + response.code());
+            }
+            for (JsonNode item : MAPPER.readTree(response.body().byteStream()).path("items")) {
+                KubernetesAgent agent = byPod.get(item.path("metadata").path("name").asText());
+                if (agent == null) {
+                    continue;
+                }
+                long cpuMillis = 0;
+                long memoryBytes = 0;
+                for (JsonNode container : item.path("containers")) {
+                    cpuMillis += QuantityUtils.toCpuMillis(container.path("usage").path("cpu").asText());
+                    memoryBytes += QuantityUtils.toBytes(container.path("usage").path("memory").asText());
+                }
+                int executors = Math.max(1, agent.getNumExecutors());
+                TemplateUsage.of(TemplateUsage.Kind.KUBERNETES, cloud.getDisplayName(), agent.getTemplateName())
+                        .record(agent.getNodeName(), cpuMillis / executors, memoryBytes / executors);
+            }
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD_IN_MILLIS;
+    }
+}
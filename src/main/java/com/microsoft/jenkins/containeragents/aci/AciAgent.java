@@ -41,6 +41,9 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
 
     private final String resourceGroup;
 
+    // null for an agent with a container group of its own, named like the agent
+    private final String containerGroupName;
+
     private String deployName = null;
 
     private final String sshCredentialsId;
@@ -49,14 +52,26 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
 
     private final String launchType;
 
+    private final String templateName;
+
     private String host;
 
     @DataBoundConstructor
     public AciAgent(AciCloud cloud, AciContainerTemplate template) throws Descriptor.FormException, IOException {
+        this(cloud, template, cloud.getResourceGroup());
+    }
+
+    public AciAgent(AciCloud cloud, AciContainerTemplate template, String resourceGroup)
+            throws Descriptor.FormException, IOException {
+        this(cloud, template, resourceGroup, null);
+    }
+
+    public AciAgent(AciCloud cloud, AciContainerTemplate template, String resourceGroup, String containerGroupName)
+            throws Descriptor.FormException, IOException {
         super(generateAgentName(template),
                 "",
                 template.getRootFs(),
-                1,
+                template.getNumExecutors(),
                 Mode.NORMAL,
                 template.getLabel(),
                 template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)
@@ -66,10 +81,12 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
                 Collections.<NodeProperty<Node>>emptyList());
         this.credentialsId = cloud.getCredentialsId();
         this.cloudName = cloud.getName();
-        this.resourceGroup = cloud.getResourceGroup();
+        this.resourceGroup = resourceGroup;
+        this.containerGroupName = containerGroupName;
         this.sshCredentialsId = template.getSshCredentialsId();
         this.sshPort = template.getSshPort();
         this.launchType = template.getLaunchMethodType();
+        this.templateName = template.getName();
     }
 
     @Override
@@ -79,8 +96,7 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
 
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-        final Computer computer = toComputer();
-        if (computer == null || StringUtils.isEmpty(cloudName)) {
+        if (StringUtils.isEmpty(cloudName)) {
             return;
         }
         final Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
@@ -93,14 +109,34 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
             listener.fatalError(msg);
             return;
         }
+        ((AciCloud) cloud).getInstanceCapStrategy().released(getTemplateName());
+
+        final Computer computer = toComputer();
+        if (computer == null) {
+            return;
+        }
+
+        if (!AciContainerGroupReferences.release(this)) {
+            LOGGER.log(Level.INFO, "AciAgent: keeping container group {0}, other agents of {1} still run in it",
+                    new Object[] {getContainerGroupName(), getNodeName()});
+            return;
+        }
 
         Computer.threadPoolForRemoting.execute(new Runnable() {
             @Override
             public void run() {
-                AciService.deleteAciContainerGroup(credentialsId,
+                boolean deleted = AciService.deleteAciContainerGroup((AciCloud) cloud,
                         resourceGroup,
-                        AciAgent.this.getNodeName(),
+                        getContainerGroupName(),
                         deployName);
+                if (deleted) {
+                    try {
+                        ((AciCloud) cloud).getQuotaTracker(resourceGroup).deleted(getContainerGroupName());
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "AciAgent: cannot give back quota of {0}: {1}",
+                                new Object[] {getContainerGroupName(), e.getMessage()});
+                    }
+                }
             }
         });
     }
@@ -118,6 +154,26 @@ public class AciAgent extends AbstractCloudSlave implements ISSHLaunchable {
         return deployName;
     }
 
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    public String getResourceGroup() {
+        return resourceGroup;
+    }
+
+    /**
+     * The container group the container of the agent runs in, shared with other agents if the template packs
+     * several agents into one group.
+     */
+    public String getContainerGroupName() {
+        return StringUtils.defaultIfBlank(containerGroupName, getNodeName());
+    }
+
+    public String getTemplateName() {
+        return StringUtils.defaultString(templateName);
+    }
+
     @Override
     public Node reconfigure(StaplerRequest req, JSONObject form) throws Descriptor.FormException {
         return this;
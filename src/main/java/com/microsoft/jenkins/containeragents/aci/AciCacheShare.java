@@ -0,0 +1,124 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureStorageAccount;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Azure File share a template with a cache mounts into all of its agents, created the first time an agent
+ * of the template needs it.
+ *
+ * <p>An agent that mounts a share which holds data counts as warm, one that mounts an empty share as cold, per
+ * template. The usage of the share is read again every {@link #STATS_INTERVAL_MILLIS} and logged when it
+ * changes, so the ratio and the usage over time tell whether the cache pays off.</p>
+ */
+final class AciCacheShare {
+    private static final Logger LOGGER = Logger.getLogger(AciCacheShare.class.getName());
+
+    static final String METRIC_PREFIX = "aci.cache.";
+
+    static final String VOLUME_NAME = "jenkins-cache";
+
+    static final long STATS_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int MAX_SHARE_NAME_LENGTH = 63;
+
+    // storage account/share -> what is known about it, saves round trips per container group
+    private static final ConcurrentMap<String, Share> SHARES = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the cache share of the template unless it exists and counts the agents that start on it. The
+     * storage calls only hold the lock of this share.
+     */
+    static void prepare(AciContainerTemplate template, int agents) throws Exception {
+        AzureStorageAccount.StorageAccountCredential credential =
+                AzureStorageAccount.getStorageAccountCredential(template.getCacheCredentialsId());
+        if (credential == null) {
+            throw new IllegalStateException("Cannot find the storage account credentials "
+                    + template.getCacheCredentialsId() + " of the cache of template " + template.getName());
+        }
+        String shareName = getShareName(template);
+        String key = credential.getStorageAccountName() + "/" + shareName;
+        Share share = SHARES.computeIfAbsent(key, k -> new Share());
+        int usageGb;
+        synchronized (share) {
+            long now = System.currentTimeMillis();
+            if (!share.exists || now - share.checkedAt >= STATS_INTERVAL_MILLIS) {
+                CloudStorageAccount account = new CloudStorageAccount(new StorageCredentialsAccountAndKey(
+                        credential.getStorageAccountName(), credential.getStorageAccountKey()), true);
+                CloudFileShare reference = account.createCloudFileClient().getShareReference(shareName);
+                if (!share.exists) {
+                    if (reference.createIfNotExists()) {
+                        LOGGER.log(Level.INFO, "AciCacheShare: created cache share {0} of template {1}",
+                                new Object[]{key, template.getName()});
+                    }
+                    share.exists = true;
+                }
+                // rounded up to whole GB, so only an empty share has none
+                int current = reference.getStats().getUsage();
+                if (current != share.usageGb) {
+                    LOGGER.log(Level.INFO, "AciCacheShare: cache share {0} of template {1} holds {2} GB",
+                            new Object[]{key, template.getName(), current});
+                }
+                share.usageGb = current;
+                share.checkedAt = now;
+            }
+            usageGb = share.usageGb;
+        }
+        ContainerMetrics.add(getMetricName(template, usageGb > 0 ? "warm" : "cold"), agents);
+    }
+
+    /**
+     * Forgets a share, e.g. after a deployment that mounts it failed because it was deleted meanwhile.
+     */
+    static void forget(AciContainerTemplate template) {
+        AzureStorageAccount.StorageAccountCredential credential =
+                AzureStorageAccount.getStorageAccountCredential(template.getCacheCredentialsId());
+        if (credential != null) {
+            SHARES.remove(credential.getStorageAccountName() + "/" + getShareName(template));
+        }
+    }
+
+    static String getStorageAccountName(AciContainerTemplate template) {
+        return AzureStorageAccount.getStorageAccountCredential(template.getCacheCredentialsId())
+                .getStorageAccountName();
+    }
+
+    static String getStorageAccountKey(AciContainerTemplate template) {
+        return AzureStorageAccount.getStorageAccountCredential(template.getCacheCredentialsId())
+                .getStorageAccountKey();
+    }
+
+    /**
+     * A share name, lower case letters, digits and single hyphens between them.
+     */
+    static String getShareName(AciContainerTemplate template) {
+        String name = ("jenkins-cache-" + template.getName()).toLowerCase()
+                .replaceAll("[^a-z0-9]+", "-")
+                .replaceAll("-+$", "");
+        return name.length() > MAX_SHARE_NAME_LENGTH
+                ? name.substring(0, MAX_SHARE_NAME_LENGTH).replaceAll("-+$", "")
+                : name;
+    }
+
+    static String getMetricName(AciContainerTemplate template, String kind) {
+        return METRIC_PREFIX + template.getName() + "." + kind;
+    }
+
+    private static final class Share {
+        private boolean exists;
+        private long checkedAt;
+        private int usageGb;
+    }
+
+    private AciCacheShare() {
+    }
+}
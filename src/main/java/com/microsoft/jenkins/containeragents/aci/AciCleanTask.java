@@ -4,7 +4,6 @@ package com.microsoft.jenkins.containeragents.aci;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.resources.Deployment;
 import com.microsoft.azure.management.resources.GenericResource;
-import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
 import com.microsoft.jenkins.containeragents.util.Constants;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
@@ -201,7 +200,7 @@ public class AciCleanTask extends AsyncPeriodicWork {
 
             try {
 
-                Azure azureClient = AzureContainerUtils.getAzureClient(cloud.getCredentialsId());
+                Azure azureClient = cloud.getAzureClient();
 
                 // This will throw if the deployment can't be found.  This could happen in a couple instances
                 // 1) The deployment has already been deleted
@@ -297,14 +296,22 @@ public class AciCleanTask extends AsyncPeriodicWork {
             return;
         }
 
-        final String resourceGroup = cloud.getResourceGroup();
         final String credentialsId = cloud.getCredentialsId();
-        if (StringUtils.isBlank(resourceGroup) || StringUtils.isBlank(credentialsId)) {
+        if (StringUtils.isBlank(credentialsId)) {
             return;
         }
 
         Set<String> validContainerSet = getValidContainer();
 
+        for (String resourceGroup : cloud.getResourceGroups()) {
+            cleanLeakedContainer(cloud, azureClient, resourceGroup, validContainerSet);
+        }
+    }
+
+    private void cleanLeakedContainer(final AciCloud cloud,
+                                      Azure azureClient,
+                                      final String resourceGroup,
+                                      Set<String> validContainerSet) {
         List<GenericResource> resourceList = azureClient.genericResources().listByResourceGroup(resourceGroup);
         for (final GenericResource resource : resourceList) {
             if (resource.resourceProviderNamespace().equalsIgnoreCase("Microsoft.ContainerInstance")
@@ -316,7 +323,7 @@ public class AciCleanTask extends AsyncPeriodicWork {
                     AciCloud.getThreadPool().submit(new Runnable() {
                         @Override
                         public void run() {
-                            AciService.deleteAciContainerGroup(credentialsId,
+                            AciService.deleteAciContainerGroup(cloud,
                                     resourceGroup,
                                     resource.name(),
                                     null);
@@ -333,6 +340,10 @@ public class AciCleanTask extends AsyncPeriodicWork {
             for (Computer computer : Jenkins.getInstance().getComputers()) {
                 if (computer instanceof AciComputer) {
                     result.add(computer.getName());
+                    AciAgent agent = ((AciComputer) computer).getNode();
+                    if (agent != null) {
+                        result.add(agent.getContainerGroupName());
+                    }
                 }
             }
         }
@@ -0,0 +1,24 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
+
+/**
+ * Creates the Azure clients of an {@link AciCloud}. The cloud uses {@link #DEFAULT} unless it is given another one,
+ * e.g. by a test against a fake ARM endpoint.
+ */
+public class AciClientFactory {
+
+    public static final AciClientFactory DEFAULT = new AciClientFactory();
+
+    /**
+     * Creates the client of the cloud, authenticating with its credentials.
+     */
+    public Azure create(AciCloud cloud) throws Exception {
+        return AzureContainerUtils.getAzureClient(cloud.getCredentialsId());
+    }
+
+    protected AciClientFactory() {
+
+    }
+}
@@ -4,10 +4,14 @@ import com.microsoft.azure.management.containerinstance.ContainerGroup;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.jenkins.azurecommons.telemetry.AppInsightsConstants;
 import com.microsoft.jenkins.containeragents.ContainerPlugin;
+import com.microsoft.jenkins.containeragents.RestartReconciler;
+import com.microsoft.jenkins.containeragents.helper.ProvisioningScheduler;
+import com.microsoft.jenkins.containeragents.strategy.InstanceCapStrategy;
 import com.microsoft.jenkins.containeragents.strategy.ProvisionRetryStrategy;
 import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.jenkins.containeragents.util.Constants;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -17,11 +21,14 @@ import hudson.model.Node;
 import hudson.slaves.Cloud;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
-import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
@@ -29,11 +36,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,10 +61,29 @@ public class AciCloud extends Cloud {
 
     private List<AciContainerTemplate> templates;
 
+    private int maxInstances;
+
+    private int maxConcurrentProvisions;
+
+    private int maxPreProvisioned;
+
+    private static final int THREAD_POOL_SIZE = 10;
+
     private static ExecutorService threadPool;
 
     private transient ProvisionRetryStrategy provisionRetryStrategy = new ProvisionRetryStrategy();
 
+    private transient volatile InstanceCapStrategy instanceCapStrategy;
+
+    private String additionalResourceGroups;
+
+    // resource group -> region, a resource group cannot move so this is looked up once
+    private transient Map<String, String> regions = new ConcurrentHashMap<>();
+
+    private transient AciPlacement placement = new AciPlacement();
+
+    private transient volatile AciClientFactory clientFactory;
+
     @DataBoundConstructor
     public AciCloud(String name,
                     String credentialsId,
@@ -64,7 +96,16 @@ public class AciCloud extends Cloud {
     }
 
     public Azure getAzureClient() throws Exception {
-        return AzureContainerUtils.getAzureClient(credentialsId);
+        return getClientFactory().create(this);
+    }
+
+    AciClientFactory getClientFactory() {
+        AciClientFactory factory = clientFactory;
+        return factory == null ? AciClientFactory.DEFAULT : factory;
+    }
+
+    void setClientFactory(AciClientFactory clientFactory) {
+        this.clientFactory = clientFactory;
     }
 
     @Override
@@ -75,74 +116,44 @@ public class AciCloud extends Cloud {
             List<NodeProvisioner.PlannedNode> r = new ArrayList<>();
             final AciContainerTemplate template = getFirstTemplate(label);
             LOGGER.log(Level.INFO, "Using ACI Container template: {0}", template.getName());
-            for (int i = 1; i <= excessWorkload; i++) {
-                r.add(new NodeProvisioner.PlannedNode(template.getName(), Computer.threadPoolForRemoting.submit(
-                        new Callable<Node>() {
-
-                            @Override
-                            public Node call() throws Exception {
-                                AciAgent agent = null;
-                                final Map<String, String> properties = new HashMap<>();
-
-                                try {
-                                    agent = new AciAgent(AciCloud.this, template);
-
-                                    LOGGER.log(Level.INFO, "Add ACI node: {0}", agent.getNodeName());
-                                    Jenkins.getInstance().addNode(agent);
-
-                                    //start a timeWatcher
-                                    StopWatch stopWatch = new StopWatch();
-                                    stopWatch.start();
-
-                                    //BI properties
-                                    properties.put(AppInsightsConstants.AZURE_SUBSCRIPTION_ID,
-                                            AzureCredentials.getServicePrincipal(credentialsId).getSubscriptionId());
-                                    properties.put(Constants.AI_ACI_NAME, agent.getNodeName());
-                                    properties.put(Constants.AI_ACI_CPU_CORE, template.getCpu());
-
-                                    //Deploy ACI and wait
-                                    template.provisionAgents(AciCloud.this, agent, stopWatch);
-
-                                    if (template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)) {
-                                        //wait JNLP to online
-                                        waitToOnline(agent, template.getTimeout(), stopWatch);
-                                    } else {
-                                        addHost(agent);
-                                        Computer computer = agent.toComputer();
-                                        if (computer == null) {
-                                            throw new IllegalStateException("Agent node has been deleted");
-                                        }
-                                        computer.connect(false).get();
-                                    }
-
-                                    addIpEnv(agent);
-
-                                    provisionRetryStrategy.success(template.getName());
-
-                                    //Send BI
-                                    ContainerPlugin.sendEvent(Constants.AI_ACI_AGENT, "Provision", properties);
-
-                                    return agent;
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                    LOGGER.log(Level.WARNING, "AciCloud: Provision agent {0} failed: {1}",
-                                            new Object[] {agent == null ? "Known agent node" : agent.getNodeName(),
-                                                    e.getMessage()});
-
-                                    properties.put("Message", e.getMessage());
-                                    ContainerPlugin.sendEvent(Constants.AI_ACI_AGENT, "ProvisionFailed", properties);
-
-                                    if (agent != null) {
-                                        agent.terminate();
-                                    }
-
-                                    provisionRetryStrategy.failure(template.getName());
-
-                                    throw new Exception(e);
-                                }
-                            }
-                        }
-                ), 1));
+            final InstanceCapStrategy capStrategy = getInstanceCapStrategy();
+            // the workload is in executors, an agent of the template brings several of them
+            final int executors = template.getNumExecutors();
+            final int agents = (excessWorkload + executors - 1) / executors;
+            int granted = capStrategy.tryAcquire(template.getName(), getInstanceCap(), template.getInstanceCap(),
+                    agents);
+            // Over-quota demand is left to NodeProvisioner, which asks again once quota is given back.
+            final int perGroup = template.getAgentsPerGroup();
+            final int rest = granted % perGroup;
+            final List<AciPlacement.Placement> placements = new ArrayList<>();
+            int started = 0;
+            int placed = 0;
+            try {
+                placements.addAll(placement.place(this, getAzureClient(), label, template.getAgentCpu() * perGroup,
+                        granted / perGroup));
+                final int fullGroups = placements.size();
+                if (rest > 0) {
+                    placements.addAll(placement.place(this, getAzureClient(), label, template.getAgentCpu() * rest,
+                            1));
+                }
+                for (; started < placements.size(); started++) {
+                    int count = started < fullGroups ? perGroup : rest;
+                    for (CompletableFuture<Node> node
+                            : new Provisioning(template, placements.get(started), count).start()) {
+                        r.add(new NodeProvisioner.PlannedNode(template.getName(), node, executors));
+                    }
+                    placed += count;
+                }
+            } finally {
+                // everything not handed to a Provisioning, also when reading the quota or ARM failed
+                for (int i = started; i < placements.size(); i++) {
+                    placements.get(i).getReservation().release();
+                }
+                capStrategy.cancel(template.getName(), granted - placed);
+            }
+            if (placed < agents) {
+                LOGGER.log(Level.INFO, "AciCloud: deferring {0} agents for label {1}, instance cap or quota reached",
+                        new Object[] {agents - placed, label});
             }
 
             return r;
@@ -153,6 +164,217 @@ public class AciCloud extends Cloud {
         return Collections.emptyList();
     }
 
+    /**
+     * Provisioning of the agents of one container group as a chain of short steps on the
+     * {@link ProvisioningScheduler}: deploy the container group, then wait for each agent to come online.
+     */
+    private class Provisioning {
+
+        private static final int RETRY_INTERVAL = 5 * 1000;
+
+        private final AciContainerTemplate template;
+
+        private final AciPlacement.Placement target;
+
+        private final List<CompletableFuture<Node>> nodes = new ArrayList<>();
+
+        private final List<AciAgent> agents = new CopyOnWriteArrayList<>();
+
+        private final Map<String, String> properties = Collections.synchronizedMap(new HashMap<String, String>());
+
+        private volatile String containerGroupName;
+
+        private volatile boolean created;
+
+        private volatile long createStart;
+
+        private volatile long deadline;
+
+        Provisioning(AciContainerTemplate template, AciPlacement.Placement target, int count) {
+            this.template = template;
+            this.target = target;
+            for (int i = 0; i < count; i++) {
+                nodes.add(new CompletableFuture<Node>());
+            }
+        }
+
+        /**
+         * @return one future per agent of the container group
+         */
+        List<CompletableFuture<Node>> start() {
+            ProvisioningScheduler.withPermit(() -> ProvisioningScheduler.submit(this::addNodes)
+                    .thenCompose(added -> template.provisionAgentsAsync(AciCloud.this, containerGroupName, agents,
+                            deadline))
+                    .handle((deployed, error) -> {
+                        List<CompletableFuture<Node>> online = new ArrayList<>();
+                        for (int i = 0; i < nodes.size(); i++) {
+                            online.add(error == null ? connectAgent(i) : failed(error));
+                        }
+                        finishGroup(error);
+                        return CompletableFuture.allOf(online.toArray(new CompletableFuture<?>[0]));
+                    })
+                    .thenCompose(all -> all))
+                    .whenComplete((done, error) -> {
+                        // anything left over, e.g. a failure of this chain itself
+                        for (int i = 0; i < nodes.size(); i++) {
+                            finishAgent(i, null, error == null ? new IllegalStateException("Not provisioned") : error);
+                        }
+                    });
+            return nodes;
+        }
+
+        private Boolean addNodes() throws Exception {
+            createStart = System.currentTimeMillis();
+            placement.createStarted(target.getResourceGroup());
+            deadline = template.getTimeout() > 0
+                    ? createStart + TimeUnit.MINUTES.toMillis(template.getTimeout()) : 0;
+
+            String packedName = nodes.size() > 1
+                    ? AzureContainerUtils.generateName(template.getName(), Constants.ACI_RANDOM_NAME_LENGTH) : null;
+            for (int i = 0; i < nodes.size(); i++) {
+                AciAgent agent = new AciAgent(AciCloud.this, template, target.getResourceGroup(), packedName);
+                agents.add(agent);
+                getInstanceCapStrategy().createStarted(template.getName(), agent.getNodeName());
+
+                LOGGER.log(Level.INFO, "Add ACI node: {0}", agent.getNodeName());
+                Jenkins.getInstance().addNode(agent);
+            }
+            containerGroupName = agents.get(0).getContainerGroupName();
+
+            //BI properties
+            properties.put(AppInsightsConstants.AZURE_SUBSCRIPTION_ID,
+                    AzureCredentials.getServicePrincipal(credentialsId).getSubscriptionId());
+            properties.put(Constants.AI_ACI_NAME, containerGroupName);
+            properties.put(Constants.AI_ACI_CPU_CORE, template.getCpu());
+            return Boolean.TRUE;
+        }
+
+        private CompletableFuture<Node> failed(Throwable error) {
+            CompletableFuture<Node> result = new CompletableFuture<>();
+            result.completeExceptionally(error);
+            return result;
+        }
+
+        private CompletableFuture<Node> connectAgent(final int index) {
+            final AciAgent agent = agents.get(index);
+            CompletableFuture<Boolean> online;
+            if (template.getLaunchMethodType().equals(Constants.LAUNCH_METHOD_JNLP)) {
+                //wait JNLP to online
+                LOGGER.log(Level.INFO, "Waiting agent {0} to online", agent.getNodeName());
+                online = ProvisioningScheduler.poll(() -> isOnline(agent), RETRY_INTERVAL, deadline,
+                        () -> new TimeoutException("ACI container connection timeout"));
+            } else {
+                online = ProvisioningScheduler.submit(() -> {
+                    addHost(agent);
+                    Computer computer = agent.toComputer();
+                    if (computer == null) {
+                        throw new IllegalStateException("Agent node has been deleted");
+                    }
+                    return computer.connect(false);
+                }).thenCompose(launch -> ProvisioningScheduler.await(launch, RETRY_INTERVAL))
+                        .thenApply(launched -> Boolean.TRUE);
+            }
+            return online.thenCompose(connected -> ProvisioningScheduler.submit(() -> {
+                addIpEnv(agent);
+                return (Node) agent;
+            })).whenComplete((node, error) -> finishAgent(index, node, error));
+        }
+
+        private Boolean isOnline(AciAgent agent) throws Exception {
+            Computer computer = agent.toComputer();
+            if (computer == null) {
+                throw new IllegalStateException("Agent node has been deleted");
+            }
+            ContainerGroup containerGroup = getAzureClient().containerGroups()
+                    .getByResourceGroup(agent.getResourceGroup(), agent.getContainerGroupName());
+
+            if (containerGroup.containers().containsKey(agent.getNodeName())
+                    && containerGroup.containers().get(agent.getNodeName()).instanceView().currentState().state()
+                    .equals("Terminated")) {
+                LOGGER.log(Level.WARNING, "Logs from container {0}: {1}",
+                        new Object[]{agent.getNodeName(),
+                                containerGroup.getLogContent(agent.getNodeName())});
+                throw new IllegalStateException("ACI container terminated");
+            }
+            return computer.isOnline() ? Boolean.TRUE : null;
+        }
+
+        /**
+         * Settles the quota and the placement of the container group once its deployment has finished.
+         */
+        private void finishGroup(Throwable error) {
+            if (error == null) {
+                target.getReservation().commit(containerGroupName);
+                created = true;
+                placement.createFinished(target.getResourceGroup(), System.currentTimeMillis() - createStart, true);
+                return;
+            }
+            placement.createFinished(target.getResourceGroup(), System.currentTimeMillis() - createStart, false);
+            target.getReservation().release();
+            Throwable e = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (AciQuotaTracker.isQuotaExceeded(e)) {
+                // Not a template problem, retry as soon as quota is available again.
+                try {
+                    getQuotaTracker(target.getResourceGroup()).invalidate();
+                } catch (Exception ex) {
+                    LOGGER.log(Level.FINE, "AciCloud: cannot invalidate quota", ex);
+                }
+            } else {
+                provisionRetryStrategy.failure(template.getName());
+            }
+        }
+
+        private void finishAgent(int index, Node node, Throwable error) {
+            CompletableFuture<Node> future = nodes.get(index);
+            AciAgent agent = index < agents.size() ? agents.get(index) : null;
+            synchronized (future) {
+                if (future.isDone()) {
+                    return;
+                }
+                if (error == null) {
+                    future.complete(node);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+            try {
+                if (error == null) {
+                    provisionRetryStrategy.success(template.getName());
+                    //Send BI
+                    ContainerPlugin.sendEvent(Constants.AI_ACI_AGENT, "Provision", properties);
+                    return;
+                }
+                Throwable e = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                LOGGER.log(Level.WARNING, "AciCloud: Provision agent {0} failed: {1}",
+                        new Object[] {agent == null ? "Known agent node" : agent.getNodeName(), e.getMessage()});
+
+                Map<String, String> failure = new HashMap<>(properties);
+                failure.put("Message", String.valueOf(e.getMessage()));
+                ContainerPlugin.sendEvent(Constants.AI_ACI_AGENT, "ProvisionFailed", failure);
+
+                if (agent != null) {
+                    try {
+                        agent.terminate();
+                    } catch (IOException | InterruptedException ex) {
+                        LOGGER.log(Level.WARNING, "AciCloud: cleaning up agent " + agent.getNodeName() + " failed",
+                                ex);
+                    }
+                } else {
+                    getInstanceCapStrategy().released(template.getName());
+                }
+                if (created && !AciQuotaTracker.isQuotaExceeded(e)) {
+                    // the container group came up, the agent itself did not
+                    provisionRetryStrategy.failure(template.getName());
+                }
+            } finally {
+                getInstanceCapStrategy().createFinished(template.getName(),
+                        agent == null ? null : agent.getNodeName());
+            }
+        }
+    }
+
     @Override
     public boolean canProvision(Label label) {
         AciContainerTemplate template = getFirstTemplate(label);
@@ -164,9 +386,172 @@ public class AciCloud extends Cloud {
                     + "because it failed to provision last time. ", label);
             return false;
         }
+        if (!getInstanceCapStrategy().canProvision(template.getName(), getInstanceCap(),
+                template.getInstanceCap())) {
+            LOGGER.log(Level.FINE, "Cannot provision: instance cap reached for label {0}", label);
+            return false;
+        }
         return true;
     }
 
+    public InstanceCapStrategy getInstanceCapStrategy() {
+        if (instanceCapStrategy == null) {
+            synchronized (this) {
+                if (instanceCapStrategy == null) {
+                    // Seed from the agents Jenkins already knows about, the periodic reconcile does the rest.
+                    Map<String, List<String>> agents = new HashMap<>();
+                    Jenkins jenkins = Jenkins.getInstanceOrNull();
+                    if (jenkins != null) {
+                        for (Node node : jenkins.getNodes()) {
+                            if (node instanceof AciAgent && name.equals(((AciAgent) node).getCloudName())) {
+                                addAgent(agents, ((AciAgent) node).getTemplateName(), node.getNodeName());
+                            }
+                        }
+                    }
+                    InstanceCapStrategy strategy = new InstanceCapStrategy();
+                    strategy.reconcile(agents);
+                    instanceCapStrategy = strategy;
+                }
+            }
+        }
+        return instanceCapStrategy;
+    }
+
+    /**
+     * Resets the instance counters to the container groups of this Jenkins that actually exist.
+     */
+    public void reconcileInstanceCaps() throws Exception {
+        String instanceId = Jenkins.getInstance().getLegacyInstanceId();
+        Map<String, List<String>> agents = new HashMap<>();
+        Azure azureClient = getAzureClient();
+        for (String group : getResourceGroups()) {
+            for (ContainerGroup containerGroup : azureClient.containerGroups().listByResourceGroup(group)) {
+                Map<String, String> tags = containerGroup.tags();
+                if (tags == null || !instanceId.equals(tags.get(AciService.INSTANCE_TAG))
+                        || !tags.containsKey(AciService.TEMPLATE_TAG)) {
+                    continue;
+                }
+                // a container group packed with several agents lists them, older ones are named like their agent
+                String names = tags.get(AciService.AGENTS_TAG);
+                for (String agentName : StringUtils.isBlank(names)
+                        ? new String[] {containerGroup.name()} : StringUtils.split(names, ',')) {
+                    addAgent(agents, tags.get(AciService.TEMPLATE_TAG), agentName);
+                }
+            }
+        }
+        getInstanceCapStrategy().reconcile(agents);
+    }
+
+    /**
+     * Brings the agents loaded from the configuration in line with their container groups, listed once per
+     * resource group. Each agent is then reconciled on the thread pool: agents whose group is gone or has
+     * stopped, failed or succeeded are terminated, offline SSH agents whose group is running get its current IP
+     * address and are reconnected. Running JNLP agents are left to connect by themselves.
+     */
+    public void reconcileAgents() throws Exception {
+        Map<String, List<AciAgent>> agents = getAgentsByResourceGroup(Jenkins.getInstance().getNodes());
+        if (agents.isEmpty()) {
+            return;
+        }
+        Azure azureClient = getAzureClient();
+        for (Map.Entry<String, List<AciAgent>> entry : agents.entrySet()) {
+            Map<String, ContainerGroup> containerGroups = new HashMap<>();
+            for (ContainerGroup containerGroup : azureClient.containerGroups().listByResourceGroup(entry.getKey())) {
+                containerGroups.put(containerGroup.name(), containerGroup);
+            }
+            for (final AciAgent agent : entry.getValue()) {
+                final ContainerGroup containerGroup = containerGroups.get(agent.getContainerGroupName());
+                getThreadPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconcileAgent(agent, containerGroup);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * The agents of this cloud among the nodes, by the resource group of their container group.
+     */
+    Map<String, List<AciAgent>> getAgentsByResourceGroup(List<Node> nodes) {
+        Map<String, List<AciAgent>> agents = new HashMap<>();
+        for (Node node : nodes) {
+            if (node instanceof AciAgent && name.equals(((AciAgent) node).getCloudName())) {
+                AciAgent agent = (AciAgent) node;
+                // agents from before several resource groups were supported do not know theirs
+                String group = StringUtils.defaultIfBlank(agent.getResourceGroup(), resourceGroup);
+                List<AciAgent> list = agents.get(group);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    agents.put(group, list);
+                }
+                list.add(agent);
+            }
+        }
+        return agents;
+    }
+
+    static void reconcileAgent(AciAgent agent, ContainerGroup containerGroup) {
+        String state = containerGroup == null ? null : containerGroup.state();
+        try {
+            if (containerGroup == null || "Failed".equalsIgnoreCase(state) || "Stopped".equalsIgnoreCase(state)
+                    || "Succeeded".equalsIgnoreCase(state)) {
+                LOGGER.log(Level.INFO, "AciCloud: removing agent {0}, its container group is {1}",
+                        new Object[]{agent.getNodeName(), containerGroup == null ? "gone" : state});
+                agent.terminate();
+                ContainerMetrics.increment(RestartReconciler.PRUNED_METRIC);
+                return;
+            }
+            Computer computer = agent.toComputer();
+            if ("Running".equalsIgnoreCase(state) && agent.isSshLaunchType()
+                    && computer != null && computer.isOffline()) {
+                agent.setHost(containerGroup.ipAddress());
+                agent.save();
+                computer.connect(false);
+                ContainerMetrics.increment(RestartReconciler.RECONNECTED_METRIC);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "AciCloud: failed to reconcile agent " + agent.getNodeName(), e);
+        }
+    }
+
+    public AciQuotaTracker getQuotaTracker(String group) throws Exception {
+        return AciQuotaTracker.forRegion(credentialsId, getRegion(group));
+    }
+
+    public String getRegion(String group) throws Exception {
+        String region = regions.get(group);
+        if (region == null) {
+            region = getAzureClient().resourceGroups().getByName(group).regionName();
+            regions.put(group, region);
+        }
+        return region;
+    }
+
+    /**
+     * The resource group of the cloud followed by the additional ones, without duplicates.
+     */
+    public List<String> getResourceGroups() {
+        Set<String> result = new LinkedHashSet<>();
+        if (StringUtils.isNotBlank(resourceGroup)) {
+            result.add(resourceGroup);
+        }
+        for (String group : StringUtils.split(StringUtils.defaultString(additionalResourceGroups), ", \t\r\n")) {
+            result.add(group);
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static void addAgent(Map<String, List<String>> agents, String templateName, String agentName) {
+        List<String> names = agents.get(templateName);
+        if (names == null) {
+            names = new ArrayList<>();
+            agents.put(templateName, names);
+        }
+        names.add(agentName);
+    }
+
     public AciContainerTemplate getFirstTemplate(Label label) {
         for (AciContainerTemplate template : templates) {
             if (label == null || label.matches(template.getLabelSet())) {
@@ -179,7 +564,8 @@ public class AciCloud extends Cloud {
     public void addIpEnv(AciAgent agent) throws Exception {
         Azure azureClient = getAzureClient();
 
-        String ip = azureClient.containerGroups().getByResourceGroup(resourceGroup, agent.getNodeName()).ipAddress();
+        String ip = azureClient.containerGroups()
+                .getByResourceGroup(agent.getResourceGroup(), agent.getContainerGroupName()).ipAddress();
 
         EnvironmentVariablesNodeProperty ipEnv = new EnvironmentVariablesNodeProperty(
                 new EnvironmentVariablesNodeProperty.Entry("IP", ip)
@@ -192,46 +578,13 @@ public class AciCloud extends Cloud {
     public void addHost(AciAgent agent) throws Exception {
         Azure azureClient = getAzureClient();
 
-        String ip = azureClient.containerGroups().getByResourceGroup(resourceGroup, agent.getNodeName()).ipAddress();
+        String ip = azureClient.containerGroups()
+                .getByResourceGroup(agent.getResourceGroup(), agent.getContainerGroupName()).ipAddress();
 
         agent.setHost(ip);
         agent.save();
     }
 
-    private void waitToOnline(AciAgent agent, int startupTimeout, StopWatch stopWatch)
-            throws Exception {
-        LOGGER.log(Level.INFO, "Waiting agent {0} to online", agent.getNodeName());
-        Azure azureClient = getAzureClient();
-
-        while (true) {
-            if (AzureContainerUtils.isTimeout(startupTimeout, stopWatch.getTime())) {
-                throw new TimeoutException("ACI container connection timeout");
-            }
-
-            Computer computer = agent.toComputer();
-            if (computer == null) {
-                throw new IllegalStateException("Agent node has been deleted");
-            }
-            ContainerGroup containerGroup =
-                    azureClient.containerGroups().getByResourceGroup(resourceGroup, agent.getNodeName());
-
-            if (containerGroup.containers().containsKey(agent.getNodeName())
-                    && containerGroup.containers().get(agent.getNodeName()).instanceView().currentState().state()
-                    .equals("Terminated")) {
-                LOGGER.log(Level.WARNING, "Logs from container {0}: {1}",
-                        new Object[]{agent.getNodeName(),
-                                containerGroup.getLogContent(agent.getNodeName())});
-                throw new IllegalStateException("ACI container terminated");
-            }
-
-            if (computer.isOnline()) {
-                break;
-            }
-            final int retryInterval = 5 * 1000;
-            Thread.sleep(retryInterval);
-        }
-    }
-
     public String getName() {
         return name;
     }
@@ -244,19 +597,65 @@ public class AciCloud extends Cloud {
         return resourceGroup;
     }
 
+    public String getAdditionalResourceGroups() {
+        return additionalResourceGroups;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalResourceGroups(String additionalResourceGroups) {
+        this.additionalResourceGroups = additionalResourceGroups;
+    }
+
     public List<AciContainerTemplate> getTemplates() {
         return templates;
     }
 
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    @DataBoundSetter
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    public int getMaxConcurrentProvisions() {
+        return maxConcurrentProvisions;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentProvisions(int maxConcurrentProvisions) {
+        this.maxConcurrentProvisions = maxConcurrentProvisions;
+    }
+
+    public int getMaxPreProvisioned() {
+        return maxPreProvisioned;
+    }
+
+    @DataBoundSetter
+    public void setMaxPreProvisioned(int maxPreProvisioned) {
+        this.maxPreProvisioned = maxPreProvisioned;
+    }
+
+    public InstanceCapStrategy.InstanceCap getInstanceCap() {
+        return new InstanceCapStrategy.InstanceCap(maxInstances, maxConcurrentProvisions);
+    }
+
+    /**
+     * Bounded pool for blocking cleanup work, provisioning itself runs on the {@link ProvisioningScheduler}.
+     */
     public static synchronized ExecutorService getThreadPool() {
         if (AciCloud.threadPool == null) {
-            AciCloud.threadPool = Executors.newCachedThreadPool();
+            AciCloud.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "AciCloud"));
         }
         return AciCloud.threadPool;
     }
 
     private Object readResolve() {
         this.provisionRetryStrategy = new ProvisionRetryStrategy();
+        this.regions = new ConcurrentHashMap<>();
+        this.placement = new AciPlacement();
         return this;
     }
 
@@ -0,0 +1,66 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts the agents that still use each container group, so that a group packed with several agents is only
+ * deleted with the last of them.
+ *
+ * <p>The references of a group are taken from the agents Jenkins knows about the first time one of them is
+ * released, which also covers the groups of agents restored after a restart.</p>
+ */
+final class AciContainerGroupReferences {
+
+    // resource group/container group -> names of the agents in it
+    private static final Map<String, Set<String>> REFERENCES = new HashMap<>();
+
+    /**
+     * Drops the reference of an agent to its container group.
+     *
+     * @return whether no other agent uses the container group, i.e. it can be deleted
+     */
+    static boolean release(AciAgent agent) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return release(agent, jenkins == null ? Collections.<Node>emptyList() : jenkins.getNodes());
+    }
+
+    static synchronized boolean release(AciAgent agent, List<Node> nodes) {
+        String key = agent.getResourceGroup() + "/" + agent.getContainerGroupName();
+        Set<String> agents = REFERENCES.get(key);
+        if (agents == null) {
+            agents = findAgents(agent, nodes);
+        }
+        agents.remove(agent.getNodeName());
+        if (agents.isEmpty()) {
+            REFERENCES.remove(key);
+            return true;
+        }
+        REFERENCES.put(key, agents);
+        return false;
+    }
+
+    private static Set<String> findAgents(AciAgent agent, List<Node> nodes) {
+        Set<String> result = new HashSet<>();
+        for (Node node : nodes) {
+            if (node instanceof AciAgent) {
+                AciAgent other = (AciAgent) node;
+                if (agent.getContainerGroupName().equals(other.getContainerGroupName())
+                        && String.valueOf(agent.getResourceGroup()).equals(String.valueOf(other.getResourceGroup()))) {
+                    result.add(other.getNodeName());
+                }
+            }
+        }
+        return result;
+    }
+
+    private AciContainerGroupReferences() {
+    }
+}
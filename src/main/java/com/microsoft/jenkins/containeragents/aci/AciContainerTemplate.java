@@ -9,8 +9,11 @@ import com.microsoft.jenkins.containeragents.PodEnvVar;
 import com.microsoft.jenkins.containeragents.remote.LaunchMethodTypeContent;
 import com.microsoft.jenkins.containeragents.strategy.ContainerIdleRetentionStrategy;
 import com.microsoft.jenkins.containeragents.strategy.ContainerOnceRetentionStrategy;
+import com.microsoft.jenkins.containeragents.strategy.InstanceCapStrategy;
 import com.microsoft.jenkins.containeragents.aci.volumes.AzureFileVolume;
 import com.microsoft.jenkins.containeragents.util.Constants;
+import com.microsoft.jenkins.containeragents.util.TemplateUsage;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureStorageAccount;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
@@ -18,6 +21,7 @@ import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
 import hudson.security.ACL;
+import hudson.slaves.Cloud;
 import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -30,16 +34,24 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 public class AciContainerTemplate extends AbstractDescribableImpl<AciContainerTemplate> {
 
     private static final Logger LOGGER = Logger.getLogger(AciContainerTemplate.class.getName());
 
+    // recommendations are rounded up to tenths of a core and of a GiB
+    private static final int CPU_STEPS = 10;
+    private static final long CPU_STEP_MILLIS = 100;
+    private static final int MEMORY_STEPS = 10;
+    private static final long MEMORY_STEP_BYTES = 1024L * 1024 * 1024 / MEMORY_STEPS;
+
 
     private String name;
 
@@ -77,6 +89,20 @@ public class AciContainerTemplate extends AbstractDescribableImpl<AciContainerTe
 
     private boolean isAvailable = true;
 
+    private int numExecutors = 1;
+
+    private int agentsPerGroup = 1;
+
+    private String cacheMountPath;
+
+    private String cacheCredentialsId;
+
+    private boolean applyRecommendations;
+
+    private int maxInstances;
+
+    private int maxConcurrentProvisions;
+
     @DataBoundConstructor
     public AciContainerTemplate(String name,
                                 String label,
@@ -129,6 +155,12 @@ public class AciContainerTemplate extends AbstractDescribableImpl<AciContainerTe
         AciService.createDeployment(cloud, this, agent, stopWatch, Jenkins.getInstance().getLegacyInstanceId());
     }
 
+    public CompletableFuture<Void> provisionAgentsAsync(AciCloud cloud, String containerGroupName,
+                                                        List<AciAgent> agents, long deadline) {
+        return AciService.createDeploymentAsync(cloud, this, containerGroupName, agents, deadline,
+                Jenkins.getInstance().getLegacyInstanceId());
+    }
+
     public boolean isJnlp() {
         return StringUtils.isBlank(launchMethodType) || launchMethodType.equals(Constants.LAUNCH_METHOD_JNLP);
     }
@@ -226,6 +258,148 @@ public class AciContainerTemplate extends AbstractDescribableImpl<AciContainerTe
         }
     }
 
+    public int getNumExecutors() {
+        // configurations from before multi-executor agents do not have the field
+        return Math.max(1, numExecutors);
+    }
+
+    @DataBoundSetter
+    public void setNumExecutors(int numExecutors) {
+        this.numExecutors = numExecutors;
+    }
+
+    /**
+     * The number of agents created as containers of one container group. SSH agents need an address and port
+     * of their own, so they always get a container group each.
+     */
+    public int getAgentsPerGroup() {
+        return isJnlp() ? Math.max(1, agentsPerGroup) : 1;
+    }
+
+    @DataBoundSetter
+    public void setAgentsPerGroup(int agentsPerGroup) {
+        this.agentsPerGroup = agentsPerGroup;
+    }
+
+    public String getCacheMountPath() {
+        return cacheMountPath;
+    }
+
+    @DataBoundSetter
+    public void setCacheMountPath(String cacheMountPath) {
+        this.cacheMountPath = cacheMountPath;
+    }
+
+    public String getCacheCredentialsId() {
+        return cacheCredentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCacheCredentialsId(String cacheCredentialsId) {
+        this.cacheCredentialsId = cacheCredentialsId;
+    }
+
+    /**
+     * Whether the agents mount the cache share of the template, created in the storage account of the cache
+     * credentials when the first of them needs it.
+     */
+    public boolean isCacheEnabled() {
+        return StringUtils.isNotBlank(cacheMountPath) && StringUtils.isNotBlank(cacheCredentialsId);
+    }
+
+    public boolean isApplyRecommendations() {
+        return applyRecommendations;
+    }
+
+    @DataBoundSetter
+    public void setApplyRecommendations(boolean applyRecommendations) {
+        this.applyRecommendations = applyRecommendations;
+    }
+
+    /**
+     * CPU and memory per executor suggested by the usage of the agents of the template, null until enough agents
+     * have been sampled.
+     */
+    public TemplateUsage.Recommendation getUsageRecommendation() {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return null;
+        }
+        for (Cloud cloud : instance.clouds) {
+            if (cloud instanceof AciCloud && ((AciCloud) cloud).getTemplates().contains(this)) {
+                return TemplateUsage.recommend(TemplateUsage.Kind.ACI, ((AciCloud) cloud).getName(), name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes over the recommended CPU and memory if they differ enough from the configured ones. A container gets
+     * what it requests and cannot go beyond its memory, so the memory follows the recommended limit.
+     *
+     * @return whether the template changed
+     */
+    public boolean applyUsageRecommendation(TemplateUsage.Recommendation recommendation) {
+        boolean changed = false;
+        BigDecimal recommendedCpu = roundUp(recommendation.getRequestCpuMillis(), CPU_STEP_MILLIS);
+        if (TemplateUsage.differs(toStep(cpu, CPU_STEPS), recommendedCpu.movePointRight(1).longValue())) {
+            cpu = recommendedCpu.toPlainString();
+            changed = true;
+        }
+        BigDecimal recommendedMemory = roundUp(recommendation.getLimitMemoryBytes(), MEMORY_STEP_BYTES);
+        if (TemplateUsage.differs(toStep(memory, MEMORY_STEPS), recommendedMemory.movePointRight(1).longValue())) {
+            memory = recommendedMemory.toPlainString();
+            changed = true;
+        }
+        return changed;
+    }
+
+    // to the tenth of a unit ACI takes, e.g. 1234 millicores to 1.3 cores
+    private static BigDecimal roundUp(long value, long step) {
+        return BigDecimal.valueOf((value + step - 1) / step).movePointLeft(1);
+    }
+
+    private static long toStep(String value, int steps) {
+        return StringUtils.isBlank(value) ? 0
+                : new BigDecimal(value.trim()).multiply(BigDecimal.valueOf(steps)).longValue();
+    }
+
+    /**
+     * The CPU cores of the container: the cores per executor times the executors of the agent.
+     */
+    public double getAgentCpu() {
+        return Double.parseDouble(cpu) * getNumExecutors();
+    }
+
+    /**
+     * The memory of the container in GB: the memory per executor times the executors of the agent.
+     */
+    public double getAgentMemory() {
+        return Double.parseDouble(memory) * getNumExecutors();
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    @DataBoundSetter
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    public int getMaxConcurrentProvisions() {
+        return maxConcurrentProvisions;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentProvisions(int maxConcurrentProvisions) {
+        this.maxConcurrentProvisions = maxConcurrentProvisions;
+    }
+
+    public InstanceCapStrategy.InstanceCap getInstanceCap() {
+        return new InstanceCapStrategy.InstanceCap(maxInstances, maxConcurrentProvisions);
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<AciContainerTemplate> {
 
@@ -263,6 +437,16 @@ public class AciContainerTemplate extends AbstractDescribableImpl<AciContainerTe
             return listBoxModel;
         }
 
+        public ListBoxModel doFillCacheCredentialsIdItems(@AncestorInPath Item owner) {
+            StandardListBoxModel listBoxModel = new StandardListBoxModel();
+            listBoxModel.add("--- No Cache ---", "");
+            listBoxModel.withAll(CredentialsProvider.lookupCredentials(AzureStorageAccount.class,
+                    owner,
+                    ACL.SYSTEM,
+                    Collections.<DomainRequirement>emptyList()));
+            return listBoxModel;
+        }
+
         public FormValidation doCheckSshPort(@QueryParameter String value) {
             if (StringUtils.isBlank(value) || value.matches("^[0-9]*$")
                     && Integer.parseInt(value) >= Constants.SSH_PORT_MIN
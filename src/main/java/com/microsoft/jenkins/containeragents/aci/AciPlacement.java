@@ -0,0 +1,140 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.management.Azure;
+import hudson.model.Label;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the container groups of an {@link AciCloud} over its resource groups.
+ *
+ * <p>Each agent goes to the resource group with the best recent create latency, weighted by the creates that
+ * are already running there, among those whose regional quota still admits it. A congested or exhausted
+ * region therefore only slows down its own share of the creates.</p>
+ */
+public class AciPlacement {
+    private static final Logger LOGGER = Logger.getLogger(AciPlacement.class.getName());
+
+    // assumed latency of a resource group without history, also the floor of the failure penalty
+    static final long DEFAULT_LATENCY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    static final double SMOOTHING = 0.3;
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    /**
+     * Picks a resource group and reserves its quota for at most {@code count} agents.
+     */
+    public List<Placement> place(AciCloud cloud, Azure azureClient, Label label, double cores, int count) {
+        List<Placement> result = new ArrayList<>();
+        Map<String, AciQuotaTracker> trackers = new HashMap<>();
+        for (String resourceGroup : cloud.getResourceGroups()) {
+            try {
+                trackers.put(resourceGroup, cloud.getQuotaTracker(resourceGroup));
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "AciPlacement: skipping resource group {0}: {1}",
+                        new Object[]{resourceGroup, e.getMessage()});
+            }
+        }
+
+        Map<String, Integer> assigned = new HashMap<>();
+        Set<String> exhausted = new HashSet<>();
+        while (result.size() < count) {
+            String best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (String resourceGroup : trackers.keySet()) {
+                if (exhausted.contains(resourceGroup)) {
+                    continue;
+                }
+                Target target = target(resourceGroup);
+                Integer pending = assigned.get(resourceGroup);
+                double score = target.latency * (1 + target.inFlight.get() + (pending == null ? 0 : pending));
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = resourceGroup;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            List<AciQuotaTracker.Reservation> reservations = trackers.get(best).reserve(azureClient, label, cores, 1);
+            if (reservations.isEmpty()) {
+                exhausted.add(best);
+                continue;
+            }
+            Integer pending = assigned.get(best);
+            assigned.put(best, pending == null ? 1 : pending + 1);
+            result.add(new Placement(best, reservations.get(0)));
+        }
+        return result;
+    }
+
+    public void createStarted(String resourceGroup) {
+        target(resourceGroup).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Feeds the duration of a create into the latency of its resource group. Failed creates count as slow
+     * ones, so that a failing region is avoided until its creates succeed again.
+     */
+    public void createFinished(String resourceGroup, long millis, boolean success) {
+        Target target = target(resourceGroup);
+        target.inFlight.decrementAndGet();
+        double sample = success ? millis : Math.max(2 * target.latency, DEFAULT_LATENCY_MILLIS);
+        synchronized (target) {
+            target.latency = target.latency + SMOOTHING * (sample - target.latency);
+        }
+    }
+
+    public double getLatency(String resourceGroup) {
+        return target(resourceGroup).latency;
+    }
+
+    private Target target(String resourceGroup) {
+        Target target = targets.get(resourceGroup);
+        if (target == null) {
+            Target created = new Target();
+            target = targets.putIfAbsent(resourceGroup, created);
+            if (target == null) {
+                target = created;
+            }
+        }
+        return target;
+    }
+
+    private static final class Target {
+        private volatile double latency = DEFAULT_LATENCY_MILLIS;
+        private final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    /**
+     * The resource group chosen for an agent, together with the quota held for it.
+     */
+    public static final class Placement {
+        private final String resourceGroup;
+        private final AciQuotaTracker.Reservation reservation;
+
+        Placement(String resourceGroup, AciQuotaTracker.Reservation reservation) {
+            this.resourceGroup = resourceGroup;
+            this.reservation = reservation;
+        }
+
+        public String getResourceGroup() {
+            return resourceGroup;
+        }
+
+        public AciQuotaTracker.Reservation getReservation() {
+            return reservation;
+        }
+    }
+}
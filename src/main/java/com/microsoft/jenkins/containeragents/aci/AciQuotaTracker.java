@@ -0,0 +1,252 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.CloudError;
+import com.microsoft.azure.CloudException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.containerinstance.implementation.UsageInner;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Regional ACI quota of a subscription, shared by all the clouds that deploy into the same region.
+ *
+ * <p>Usage and limits are read from ARM at most once per {@link #USAGE_TTL_MILLIS}. Container groups created
+ * or deleted since the last read are accounted for locally, so {@link AciCloud#provision} only launches what
+ * fits. Labels that were held back are reviewed again as soon as one of our container groups is deleted.</p>
+ */
+public class AciQuotaTracker {
+    private static final Logger LOGGER = Logger.getLogger(AciQuotaTracker.class.getName());
+
+    private static final Map<String, AciQuotaTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    static final long USAGE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    static final String CONTAINER_GROUPS = "ContainerGroups";
+
+    static final String STANDARD_CORES = "StandardCores";
+
+    // the ARM error codes of an exhausted container group or core quota
+    static final Set<String> QUOTA_ERROR_CODES = new HashSet<>(Arrays.asList("ContainerGroupQuotaReached",
+            "QuotaExceeded"));
+
+    private final String credentialsId;
+
+    private final String region;
+
+    private Usage usage;
+
+    private long usageTakenAt;
+
+    private final Set<Reservation> reservations = ConcurrentHashMap.newKeySet();
+
+    // agent name -> reservation, kept until the usage read from ARM covers the create or the delete
+    private final Map<String, Reservation> created = new ConcurrentHashMap<>();
+    private final Map<String, Reservation> deleted = new ConcurrentHashMap<>();
+
+    private final Set<Label> deferredLabels = ConcurrentHashMap.newKeySet();
+
+    AciQuotaTracker(String credentialsId, String region) {
+        this.credentialsId = credentialsId;
+        this.region = region;
+    }
+
+    public static AciQuotaTracker forRegion(String credentialsId, String region) {
+        String key = credentialsId + "/" + region;
+        AciQuotaTracker tracker = TRACKERS.get(key);
+        if (tracker == null) {
+            AciQuotaTracker newTracker = new AciQuotaTracker(credentialsId, region);
+            tracker = TRACKERS.putIfAbsent(key, newTracker);
+            if (tracker == null) {
+                tracker = newTracker;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Reserves quota for at most {@code count} container groups with the given number of cores.
+     */
+    public synchronized List<Reservation> reserve(Azure azureClient, Label label, double cores, int count) {
+        List<Reservation> result = new ArrayList<>();
+        Usage current;
+        try {
+            current = refresh(azureClient);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "AciQuotaTracker: cannot read ACI usage of region {0}, admitting {1} "
+                    + "container groups without quota check: {2}", new Object[]{region, count, e.getMessage()});
+            current = null;
+        }
+        double freeGroups = current == null ? Double.MAX_VALUE : current.groupLimit - current.groups;
+        double freeCores = current == null ? Double.MAX_VALUE : current.coreLimit - current.cores;
+        for (Reservation reservation : reservations) {
+            freeGroups -= 1;
+            freeCores -= reservation.cores;
+        }
+        for (Reservation reservation : created.values()) {
+            freeGroups -= 1;
+            freeCores -= reservation.cores;
+        }
+        for (Reservation reservation : deleted.values()) {
+            freeGroups += 1;
+            freeCores += reservation.cores;
+        }
+        for (int i = 0; i < count && freeGroups >= 1 && freeCores >= cores; i++) {
+            Reservation reservation = new Reservation(cores);
+            reservations.add(reservation);
+            result.add(reservation);
+            freeGroups -= 1;
+            freeCores -= cores;
+        }
+        if (result.size() < count) {
+            LOGGER.log(Level.INFO, "AciQuotaTracker: quota of region {0} only admits {1} of {2} container groups, "
+                    + "queueing the rest", new Object[]{region, result.size(), count});
+            if (label != null) {
+                deferredLabels.add(label);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hands the quota of a deleted container group back before ARM reports it.
+     */
+    public void deleted(String agentName) {
+        Reservation reservation = created.remove(agentName);
+        if (reservation != null) {
+            reservation.changedAt = System.currentTimeMillis();
+            deleted.put(agentName, reservation);
+        }
+        wakeUpDeferred();
+    }
+
+    /**
+     * Forces the next admission to read the usage from ARM again, e.g. after a create hit the quota.
+     */
+    public synchronized void invalidate() {
+        usage = null;
+    }
+
+    /**
+     * Whether ARM refused a container group because the regional quota is used up. Only the error code counts,
+     * other errors that mention a quota, e.g. of a storage account, are failures like any other.
+     */
+    public static boolean isQuotaExceeded(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CloudException && isQuotaError(((CloudException) cause).body())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isQuotaError(CloudError error) {
+        if (error == null) {
+            return false;
+        }
+        if (error.code() != null && QUOTA_ERROR_CODES.contains(error.code())) {
+            return true;
+        }
+        // a failed deployment carries the actual error in its details
+        if (error.details() != null) {
+            for (CloudError detail : error.details()) {
+                if (isQuotaError(detail)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    private Usage refresh(Azure azureClient) {
+        long now = System.currentTimeMillis();
+        if (usage != null && now - usageTakenAt < USAGE_TTL_MILLIS) {
+            return usage;
+        }
+        Usage fresh = new Usage();
+        List<UsageInner> usages = azureClient.containerGroups().manager().inner().containerGroupUsages().list(region);
+        for (UsageInner item : usages) {
+            if (item.name() == null || item.currentValue() == null || item.limit() == null) {
+                continue;
+            }
+            if (CONTAINER_GROUPS.equalsIgnoreCase(item.name().value())) {
+                fresh.groups = item.currentValue();
+                fresh.groupLimit = item.limit();
+            } else if (STANDARD_CORES.equalsIgnoreCase(item.name().value())) {
+                fresh.cores = item.currentValue();
+                fresh.coreLimit = item.limit();
+            }
+        }
+        usage = fresh;
+        usageTakenAt = now;
+        // Everything that happened before this read is part of the reported usage now.
+        prune(created, now);
+        prune(deleted, now);
+        return usage;
+    }
+
+    private static void prune(Map<String, Reservation> changes, long takenAt) {
+        for (Iterator<Reservation> it = changes.values().iterator(); it.hasNext();) {
+            if (it.next().changedAt < takenAt) {
+                it.remove();
+            }
+        }
+    }
+
+    private void wakeUpDeferred() {
+        if (deferredLabels.isEmpty() || Jenkins.getInstanceOrNull() == null) {
+            return;
+        }
+        for (Label label : new ArrayList<>(deferredLabels)) {
+            deferredLabels.remove(label);
+            label.nodeProvisioner.suggestReviewNow();
+        }
+    }
+
+    private static final class Usage {
+        private double groups;
+        private double groupLimit = Double.MAX_VALUE;
+        private double cores;
+        private double coreLimit = Double.MAX_VALUE;
+    }
+
+    /**
+     * Quota held for a container group from admission until its create has finished.
+     */
+    public final class Reservation {
+        private final double cores;
+        private volatile long changedAt;
+
+        Reservation(double cores) {
+            this.cores = cores;
+        }
+
+        public void commit(String agentName) {
+            if (reservations.remove(this)) {
+                changedAt = System.currentTimeMillis();
+                created.put(agentName, this);
+            }
+        }
+
+        public void release() {
+            if (reservations.remove(this)) {
+                wakeUpDeferred();
+            }
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package com.microsoft.jenkins.containeragents.aci;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerinstance.ContainerGroup;
 import com.microsoft.jenkins.containeragents.ContainerPlugin;
 import com.microsoft.jenkins.containeragents.PodEnvVar;
+import com.microsoft.jenkins.containeragents.aci.volumes.AzureFileVolume;
+import com.microsoft.jenkins.containeragents.helper.ProvisioningScheduler;
 import com.microsoft.jenkins.containeragents.util.AzureContainerUtils;
 import com.microsoft.jenkins.containeragents.util.Constants;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -21,97 +30,183 @@ import java.util.stream.Collectors;
 public final class AciService {
     private static final Logger LOGGER = Logger.getLogger(AciService.class.getName());
 
+    public static final String INSTANCE_TAG = "jenkinsInstance";
+
+    public static final String TEMPLATE_TAG = "jenkinsTemplate";
+
+    // the agents packed into a container group, comma separated
+    public static final String AGENTS_TAG = "jenkinsAgents";
+
     public static void createDeployment(final AciCloud cloud,
                                         final AciContainerTemplate template,
                                         final AciAgent agent,
                                         final StopWatch stopWatch, String jenkinsInstanceId) throws Exception {
-        String deployName = getDeploymentName(template);
-
+        long deadline = template.getTimeout() > 0
+                ? System.currentTimeMillis() - stopWatch.getTime() + TimeUnit.MINUTES.toMillis(template.getTimeout())
+                : 0;
         try {
-            final Azure azureClient = cloud.getAzureClient();
+            createDeploymentAsync(cloud, template, agent.getContainerGroupName(), Collections.singletonList(agent),
+                    deadline, jenkinsInstanceId).get();
+        } catch (ExecutionException e) {
+            throw new Exception(e.getCause().getMessage());
+        }
+    }
 
-            final ObjectMapper mapper = new ObjectMapper();
+    /**
+     * Creates one container group with a container for each of the agents, which all share the resource group
+     * of the first one, and completes once ARM reports it provisioned, without holding a thread while it waits.
+     *
+     * @param deadline absolute time in milliseconds after which the deployment times out, 0 meaning never
+     */
+    public static CompletableFuture<Void> createDeploymentAsync(final AciCloud cloud,
+                                                                final AciContainerTemplate template,
+                                                                final String containerGroupName,
+                                                                final List<AciAgent> agents,
+                                                                final long deadline,
+                                                                final String jenkinsInstanceId) {
+        final String deployName = getDeploymentName(template);
+        final String resourceGroup = agents.get(0).getResourceGroup();
+        final String firstContainer = agents.get(0).getNodeName();
+        final long started = System.currentTimeMillis();
+        final AtomicBoolean logsShown = new AtomicBoolean(false);
+        final int retryInterval = 10 * 1000;
+
+        return ProvisioningScheduler.submit(() -> {
+            final Azure azureClient = cloud.getAzureClient();
 
             // register the container group for cleanup
             AciContainerGroupsCleanTask.ContainerGroupsRegistrar
                     containerGroupRegistrar = AciContainerGroupsCleanTask.ContainerGroupsRegistrar.getInstance();
-            containerGroupRegistrar.registerContainerGroups(cloud.getName(), cloud.getResourceGroup(), deployName);
+            containerGroupRegistrar.registerContainerGroups(cloud.getName(), resourceGroup, deployName);
 
             String networkProfileName = "aci-network-profile-build-env-06.01-vnet-azure-aci-06.01-subnet";
-            azureClient.containerGroups().define(agent.getNodeName())
-                    .withRegion(azureClient.resourceGroups().getByName(cloud.getResourceGroup()).regionName())
-                    .withExistingResourceGroup(cloud.getResourceGroup())
-                    .withLinux()
-                    .withPublicImageRegistryOnly()
-                    .withoutVolume()
-                    .defineContainerInstance(agent.getNodeName())
-                    .withImage(template.getImage())
-                    .withExternalTcpPort(Integer.parseInt(template.getSshPort()))
-                    .withCpuCoreCount(Double.parseDouble(template.getCpu()))
-                    .withMemorySizeInGB(Double.parseDouble(template.getMemory()))
-                    .withEnvironmentVariables(
-                            template.getEnvVars().stream().collect(
-                                    Collectors.toMap(PodEnvVar::getKey, PodEnvVar::getValue)))
-                    .attach()
-                    .withNetworkProfileId(azureClient.subscriptionId(), cloud.getResourceGroup(), networkProfileName)
-                    .withTag("jenkinsInstance", jenkinsInstanceId)
+            ContainerGroup.DefinitionStages.WithVolume withVolume =
+                    azureClient.containerGroups().define(containerGroupName)
+                            .withRegion(cloud.getRegion(resourceGroup))
+                            .withExistingResourceGroup(resourceGroup)
+                            .withLinux()
+                            .withPublicImageRegistryOnly();
+            // volume name -> mount path, every container of the group mounts all volumes
+            Map<String, String> mounts = new HashMap<>();
+            List<AzureFileVolume> volumes = template.getVolumes();
+            for (int i = 0; i < volumes.size(); i++) {
+                AzureFileVolume volume = volumes.get(i);
+                String volumeName = "volume-" + i;
+                withVolume = withVolume.defineVolume(volumeName)
+                        .withExistingReadWriteAzureFileShare(volume.getShareName())
+                        .withStorageAccountName(volume.getStorageAccountName())
+                        .withStorageAccountKey(volume.getStorageAccountKey())
+                        .attach();
+                mounts.put(volumeName, volume.getMountPath());
+            }
+            if (template.isCacheEnabled()) {
+                AciCacheShare.prepare(template, agents.size());
+                withVolume = withVolume.defineVolume(AciCacheShare.VOLUME_NAME)
+                        .withExistingReadWriteAzureFileShare(AciCacheShare.getShareName(template))
+                        .withStorageAccountName(AciCacheShare.getStorageAccountName(template))
+                        .withStorageAccountKey(AciCacheShare.getStorageAccountKey(template))
+                        .attach();
+                mounts.put(AciCacheShare.VOLUME_NAME, template.getCacheMountPath());
+            }
+            ContainerGroup.DefinitionStages.WithFirstContainerInstance definition =
+                    mounts.isEmpty() ? withVolume.withoutVolume() : withVolume;
+            ContainerGroup.DefinitionStages.WithNextContainerInstance containers = null;
+            List<String> agentNames = new ArrayList<>();
+            for (AciAgent agent : agents) {
+                // the containers of a group share its IP address, only the first one exposes the port
+                containers = defineContainer(containers == null ? definition : containers, template,
+                        agent.getNodeName(), containers == null, mounts);
+                agentNames.add(agent.getNodeName());
+            }
+            final CompletableFuture<Void> created = new CompletableFuture<>();
+            containers.withNetworkProfileId(azureClient.subscriptionId(), resourceGroup, networkProfileName)
+                    .withTag(INSTANCE_TAG, jenkinsInstanceId)
+                    .withTag(TEMPLATE_TAG, template.getName())
+                    .withTag(AGENTS_TAG, StringUtils.join(agentNames, ','))
                     .withTag("CREATION_TIME", String.valueOf(Instant.now().toEpochMilli()))
-                    .create();
+                    .createAsync()
+                    .subscribe(resource -> { }, created::completeExceptionally, () -> created.complete(null));
 
             //register deployName
-            agent.setDeployName(deployName);
-
-            final int retryInterval = 10 * 1000;
-
+            for (AciAgent agent : agents) {
+                agent.setDeployName(deployName);
+            }
+            return created;
+        }).thenCompose(created -> created).thenCompose(created -> {
             LOGGER.log(Level.INFO, "Waiting for deployment {0}", deployName);
-            while (true) {
-                if (AzureContainerUtils.isTimeout(template.getTimeout(), stopWatch.getTime())) {
-                    throw new TimeoutException("Deployment timeout");
-                }
+            return ProvisioningScheduler.poll(() -> {
+                Azure azureClient = cloud.getAzureClient();
                 ContainerGroup containerGroup =
-                    azureClient.containerGroups().getByResourceGroup(cloud.getResourceGroup(), agent.getNodeName());
+                    azureClient.containerGroups().getByResourceGroup(resourceGroup, containerGroupName);
 
                 if (containerGroup.provisioningState().equalsIgnoreCase("succeeded")) {
                     LOGGER.log(Level.INFO, "Deployment {0} succeed", deployName);
-                    break;
+                    return Boolean.TRUE;
                 } else if (containerGroup.provisioningState().equalsIgnoreCase("Failed")) {
                     throw new Exception(String.format("Deployment %s status: Failed", deployName));
-                } else {
-                    // If half of time passed, we need to inspect what happened from logs
-                    if (AzureContainerUtils.isHalfTimePassed(template.getTimeout(), stopWatch.getTime())) {
-                        ContainerGroup containerGrp
-                                = azureClient.containerGroups()
-                                .getByResourceGroup(cloud.getResourceGroup(), agent.getNodeName());
-                        if (containerGrp != null) {
-                            LOGGER.log(Level.INFO, "Logs from container {0}: {1}",
-                                    new Object[]{agent.getNodeName(),
-                                            containerGrp.getLogContent(agent.getNodeName())});
-                        }
-                    }
-                    Thread.sleep(retryInterval);
                 }
+                // If half of time passed, we need to inspect what happened from logs
+                if (deadline > 0 && System.currentTimeMillis() - started >= (deadline - started) / 2
+                        && logsShown.compareAndSet(false, true)) {
+                    LOGGER.log(Level.INFO, "Logs from container {0}: {1}",
+                            new Object[]{firstContainer, containerGroup.getLogContent(firstContainer)});
+                }
+                return null;
+            }, retryInterval, deadline, () -> new TimeoutException("Deployment timeout"));
+        }).whenComplete((succeeded, e) -> {
+            if (e != null && template.isCacheEnabled()) {
+                // checks the share again for the next group, it may have been deleted meanwhile
+                AciCacheShare.forget(template);
             }
-        } catch (Exception e) {
+        }).thenApply(succeeded -> (Void) null);
+    }
 
-            e.printStackTrace();
-            throw new Exception(e.getMessage());
+    private static ContainerGroup.DefinitionStages.WithNextContainerInstance defineContainer(
+            ContainerGroup.DefinitionStages.WithFirstContainerInstance definition,
+            AciContainerTemplate template,
+            String name,
+            boolean exposePort,
+            Map<String, String> mounts) {
+        ContainerGroup.DefinitionStages.ContainerInstanceDefinitionStages.WithOrWithoutPorts<
+                ContainerGroup.DefinitionStages.WithNextContainerInstance> container =
+                definition.defineContainerInstance(name).withImage(template.getImage());
+        ContainerGroup.DefinitionStages.ContainerInstanceDefinitionStages.WithContainerInstanceAttach<
+                ContainerGroup.DefinitionStages.WithNextContainerInstance> attach = exposePort
+                ? container.withExternalTcpPort(Integer.parseInt(template.getSshPort()))
+                : container.withoutPorts();
+        for (Map.Entry<String, String> mount : mounts.entrySet()) {
+            attach = attach.withVolumeMountSetting(mount.getKey(), mount.getValue());
         }
+        return attach
+                .withCpuCoreCount(template.getAgentCpu())
+                .withMemorySizeInGB(template.getAgentMemory())
+                .withEnvironmentVariables(
+                        template.getEnvVars().stream().collect(
+                                Collectors.toMap(PodEnvVar::getKey, PodEnvVar::getValue)))
+                .attach();
     }
 
     private static String getDeploymentName(AciContainerTemplate template) {
         return AzureContainerUtils.generateName(template.getName(), Constants.ACI_DEPLOYMENT_RANDOM_NAME_LENGTH);
     }
 
-    public static void deleteAciContainerGroup(String credentialsId,
-                                               String resourceGroup,
-                                               String containerGroupName,
-                                               String deployName) {
+    /**
+     * Deletes the container group and, if it succeeded, its deployment.
+     *
+     * @return whether the container group itself has been deleted
+     */
+    public static boolean deleteAciContainerGroup(AciCloud cloud,
+                                                  String resourceGroup,
+                                                  String containerGroupName,
+                                                  String deployName) {
         Azure azureClient = null;
+        boolean deleted = false;
         final Map<String, String> properties = new HashMap<>();
 
         try {
-            azureClient = AzureContainerUtils.getAzureClient(credentialsId);
+            azureClient = cloud.getAzureClient();
             azureClient.containerGroups().deleteByResourceGroup(resourceGroup, containerGroupName);
+            deleted = true;
             LOGGER.log(Level.INFO, "Delete ACI Container Group: {0} successfully", containerGroupName);
 
             properties.put(Constants.AI_ACI_NAME, containerGroupName);
@@ -146,6 +241,7 @@ public final class AciService {
             properties.put("Message", e.getMessage());
             ContainerPlugin.sendEvent(Constants.AI_ACI_AGENT, "DeploymentDeletedFailed", properties);
         }
+        return deleted;
     }
 
     private AciService() {
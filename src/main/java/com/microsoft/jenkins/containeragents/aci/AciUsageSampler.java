@@ -0,0 +1,129 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.monitor.MetadataValue;
+import com.microsoft.azure.management.monitor.Metric;
+import com.microsoft.azure.management.monitor.MetricCollection;
+import com.microsoft.azure.management.monitor.MetricDefinition;
+import com.microsoft.azure.management.monitor.MetricValue;
+import com.microsoft.azure.management.monitor.TimeSeriesElement;
+import com.microsoft.jenkins.containeragents.util.TemplateUsage;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU and memory of the containers of ACI agents from Azure Monitor into the {@link TemplateUsage}
+ * of their templates.
+ *
+ * <p>Azure Monitor publishes the metrics of a container group a few minutes late, so each call reads a window
+ * that ends {@link #METRICS_DELAY_MILLIS} ago, one value per minute and container.</p>
+ */
+public final class AciUsageSampler {
+    private static final Logger LOGGER = Logger.getLogger(AciUsageSampler.class.getName());
+
+    static final long METRICS_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    static final String CPU_METRIC = "CpuUsage";
+
+    static final String MEMORY_METRIC = "MemoryUsage";
+
+    private static final String CONTAINER_DIMENSION = "containerName";
+
+    /**
+     * Samples the given agents of the cloud.
+     *
+     * @param windowMillis the length of the window to read, the time since the last call
+     */
+    public static void sample(AciCloud cloud, List<AciAgent> agents, long windowMillis) throws Exception {
+        Map<String, List<AciAgent>> groups = new HashMap<>();
+        for (AciAgent agent : agents) {
+            groups.computeIfAbsent(agent.getResourceGroup() + "/" + agent.getContainerGroupName(),
+                    key -> new ArrayList<>()).add(agent);
+        }
+        Azure azure = cloud.getAzureClient();
+        DateTime end = new DateTime(System.currentTimeMillis() - METRICS_DELAY_MILLIS);
+        DateTime start = end.minus(windowMillis);
+        for (List<AciAgent> group : groups.values()) {
+            AciAgent first = group.get(0);
+            String resourceId = String.format(
+                    "/subscriptions/%s/resourceGroups/%s/providers/Microsoft.ContainerInstance/containerGroups/%s",
+                    azure.subscriptionId(), first.getResourceGroup(), first.getContainerGroupName());
+            try {
+                Map<String, List<Double>> cpu = new HashMap<>();
+                Map<String, List<Double>> memory = new HashMap<>();
+                for (MetricDefinition definition : azure.metricDefinitions().listByResource(resourceId)) {
+                    String name = definition.name().value();
+                    if (CPU_METRIC.equalsIgnoreCase(name)) {
+                        cpu = query(definition, start, end);
+                    } else if (MEMORY_METRIC.equalsIgnoreCase(name)) {
+                        memory = query(definition, start, end);
+                    }
+                }
+                for (AciAgent agent : group) {
+                    record(agent, cpu.get(agent.getNodeName()), memory.get(agent.getNodeName()));
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "AciUsageSampler: cannot read the metrics of {0}: {1}",
+                        new Object[]{resourceId, e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * The averages of each minute of the window by container.
+     */
+    private static Map<String, List<Double>> query(MetricDefinition definition, DateTime start, DateTime end) {
+        MetricCollection collection = definition.defineQuery()
+                .startingFrom(start)
+                .endsBefore(end)
+                .withAggregation("Average")
+                .withInterval(Period.minutes(1))
+                .withOdataFilter(CONTAINER_DIMENSION + " eq '*'")
+                .execute();
+        Map<String, List<Double>> result = new HashMap<>();
+        for (Metric metric : collection.metrics()) {
+            for (TimeSeriesElement series : metric.timeseries()) {
+                String container = null;
+                for (MetadataValue value : series.metadatavalues()) {
+                    if (CONTAINER_DIMENSION.equalsIgnoreCase(value.name().value())) {
+                        container = value.value();
+                    }
+                }
+                if (container == null) {
+                    continue;
+                }
+                List<Double> values = result.computeIfAbsent(container, key -> new ArrayList<>());
+                for (MetricValue value : series.data()) {
+                    if (value.average() != null) {
+                        values.add(value.average());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void record(AciAgent agent, List<Double> cpu, List<Double> memory) {
+        if (cpu == null || memory == null) {
+            return;
+        }
+        int executors = Math.max(1, agent.getNumExecutors());
+        TemplateUsage usage = TemplateUsage.of(TemplateUsage.Kind.ACI, agent.getCloudName(), agent.getTemplateName());
+        // CpuUsage is in millicores, MemoryUsage in bytes
+        for (int i = 0; i < cpu.size() && i < memory.size(); i++) {
+            usage.record(agent.getNodeName(), Math.round(cpu.get(i) / executors),
+                    Math.round(memory.get(i) / executors));
+        }
+    }
+
+    private AciUsageSampler() {
+    }
+}
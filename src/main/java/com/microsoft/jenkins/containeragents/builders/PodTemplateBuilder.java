@@ -31,6 +31,9 @@ public class PodTemplateBuilder extends PodTemplateFluent<PodTemplateBuilder> {
         }
         this.fluent.withPrivileged(template.getPrivileged());
         this.fluent.withSpecifyNode(template.getSpecifyNode());
+        this.fluent.withNodeSelector(template.getNodeSelector());
+        this.fluent.withTolerations(template.getTolerations());
+        this.fluent.withPreferImageNodes(template.isPreferImageNodes());
         this.fluent.withRequestCpu(template.getRequestCpu());
         this.fluent.withRequestMemory(template.getRequestMemory());
         this.fluent.withLimitCpu(template.getLimitCpu());
@@ -67,6 +70,9 @@ public class PodTemplateBuilder extends PodTemplateFluent<PodTemplateBuilder> {
         }
         this.fluent.withPrivileged(template.getPrivileged());
         this.fluent.withSpecifyNode(template.getSpecifyNode());
+        this.fluent.withNodeSelector(template.getNodeSelector());
+        this.fluent.withTolerations(template.getTolerations());
+        this.fluent.withPreferImageNodes(template.isPreferImageNodes());
         this.fluent.withRequestCpu(template.getRequestCpu());
         this.fluent.withRequestMemory(template.getRequestMemory());
         this.fluent.withLimitCpu(template.getLimitCpu());
@@ -96,6 +102,9 @@ public class PodTemplateBuilder extends PodTemplateFluent<PodTemplateBuilder> {
         podTemplate.setVolumes(fluent.getVolumes());
         podTemplate.setRetentionStrategy(fluent.getRetentionStrategy());
         podTemplate.setSpecifyNode(fluent.getSpecifyNode());
+        podTemplate.setNodeSelector(fluent.getNodeSelector());
+        podTemplate.setTolerations(fluent.getTolerations());
+        podTemplate.setPreferImageNodes(fluent.isPreferImageNodes());
         podTemplate.setPrivileged(fluent.isPrivileged());
         podTemplate.setRequestCpu(fluent.getRequestCpu());
         podTemplate.setRequestMemory(fluent.getRequestMemory());
@@ -41,6 +41,12 @@ public class PodTemplateFluent<T extends PodTemplateFluent<T>> {
 
     private String specifyNode;
 
+    private String nodeSelector;
+
+    private String tolerations;
+
+    private boolean preferImageNodes;
+
     private String requestCpu;
 
     private String limitCpu;
@@ -128,6 +134,21 @@ public class PodTemplateFluent<T extends PodTemplateFluent<T>> {
         return (T) this;
     }
 
+    public T withNodeSelector(String nodeSelector) {
+        this.nodeSelector = nodeSelector;
+        return (T) this;
+    }
+
+    public T withTolerations(String tolerations) {
+        this.tolerations = tolerations;
+        return (T) this;
+    }
+
+    public T withPreferImageNodes(boolean preferImageNodes) {
+        this.preferImageNodes = preferImageNodes;
+        return (T) this;
+    }
+
     public T withRequestCpu(String requestCpu) {
         this.requestCpu = requestCpu;
         return (T) this;
@@ -290,6 +311,18 @@ public class PodTemplateFluent<T extends PodTemplateFluent<T>> {
         return specifyNode;
     }
 
+    public String getNodeSelector() {
+        return nodeSelector;
+    }
+
+    public String getTolerations() {
+        return tolerations;
+    }
+
+    public boolean isPreferImageNodes() {
+        return preferImageNodes;
+    }
+
     public String getRequestCpu() {
         return requestCpu;
     }
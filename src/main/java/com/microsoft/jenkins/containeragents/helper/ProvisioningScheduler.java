@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.helper;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Small dedicated scheduler that drives the provisioning state machines of both clouds.
+ *
+ * <p>Steps run as tasks and waits are scheduled re-checks, so no thread is parked while a pod or a container
+ * group starts. The steps and checks call the API server, ARM or a storage account and may block, so they run on
+ * a pool of {@link #THREADS} workers of their own, apart from the remoting pool of Jenkins; the timer threads
+ * only fire the re-checks. The number of provisionings in progress is bounded by
+ * {@link #MAX_CONCURRENT_PROVISIONS}, provisionings beyond it wait for a permit without holding a thread.</p>
+ */
+public final class ProvisioningScheduler {
+
+    public static final int THREADS = Integer.getInteger(ProvisioningScheduler.class.getName() + ".threads", 10);
+
+    private static final int TIMER_THREADS = 2;
+
+    public static final int MAX_CONCURRENT_PROVISIONS =
+            Integer.getInteger(ProvisioningScheduler.class.getName() + ".maxConcurrentProvisions", 100);
+
+    private static final ScheduledExecutorService EXECUTOR = new ScheduledThreadPoolExecutor(TIMER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "ContainerAgentsProvisioningTimer"));
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "ContainerAgentsProvisioning"));
+
+    private static final Object LOCK = new Object();
+
+    private static final Queue<CompletableFuture<Void>> WAITING = new ArrayDeque<>();
+
+    private static int available = MAX_CONCURRENT_PROVISIONS;
+
+    public static ScheduledExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Runs the pipeline once a provisioning permit is available and gives the permit back when it completes.
+     */
+    public static <T> CompletableFuture<T> withPermit(final Supplier<CompletableFuture<T>> pipeline) {
+        return acquire().thenCompose(v -> pipeline.get()).whenComplete((result, error) -> release());
+    }
+
+    /**
+     * Runs a step of a provisioning on the workers.
+     */
+    public static <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        WORKERS.execute(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calls {@code check} every {@code intervalMillis} until it returns a value, throws, or the deadline passes.
+     *
+     * @param check returns {@code null} while the awaited state has not been reached
+     * @param deadlineMillis absolute time after which the future fails with the exception of {@code onTimeout},
+     *                       0 meaning no deadline
+     */
+    public static <T> CompletableFuture<T> poll(Callable<T> check,
+                                                long intervalMillis,
+                                                long deadlineMillis,
+                                                Supplier<? extends Exception> onTimeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        schedulePoll(check, intervalMillis, deadlineMillis, onTimeout, result, 0);
+        return result;
+    }
+
+    /**
+     * Completes with the value of a future that is owned by somebody else, e.g. the launch of a computer,
+     * by checking it periodically rather than blocking on it.
+     */
+    public static <T> CompletableFuture<T> await(final Future<T> future, long intervalMillis) {
+        return poll(() -> future.isDone() ? new Holder<T>(future.get()) : null, intervalMillis, 0, null)
+                .thenApply(holder -> holder.value);
+    }
+
+    private static <T> void schedulePoll(final Callable<T> check,
+                                         final long intervalMillis,
+                                         final long deadlineMillis,
+                                         final Supplier<? extends Exception> onTimeout,
+                                         final CompletableFuture<T> result,
+                                         long delayMillis) {
+        EXECUTOR.schedule(() -> WORKERS.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                T value = check.call();
+                if (value != null) {
+                    result.complete(value);
+                    return;
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (deadlineMillis > 0 && System.currentTimeMillis() >= deadlineMillis) {
+                result.completeExceptionally(onTimeout.get());
+                return;
+            }
+            schedulePoll(check, intervalMillis, deadlineMillis, onTimeout, result, intervalMillis);
+        }), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static CompletableFuture<Void> acquire() {
+        synchronized (LOCK) {
+            if (available > 0) {
+                available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiting = new CompletableFuture<>();
+            WAITING.add(waiting);
+            return waiting;
+        }
+    }
+
+    static void release() {
+        final CompletableFuture<Void> next;
+        synchronized (LOCK) {
+            next = WAITING.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        // hand the permit over on the scheduler, not on the thread that completed the previous pipeline
+        EXECUTOR.execute(() -> next.complete(null));
+    }
+
+    public static int getWaiting() {
+        synchronized (LOCK) {
+            return WAITING.size();
+        }
+    }
+
+    public static int getInProgress() {
+        synchronized (LOCK) {
+            return MAX_CONCURRENT_PROVISIONS - available;
+        }
+    }
+
+    // lets a null result of a watched future be told apart from "not done yet"
+    private static final class Holder<T> {
+        private final T value;
+
+        Holder(T value) {
+            this.value = value;
+        }
+    }
+
+    private ProvisioningScheduler() {
+
+    }
+}
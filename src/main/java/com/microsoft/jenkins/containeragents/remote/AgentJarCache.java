@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.remote;
+
+import hudson.util.VersionNumber;
+import jenkins.model.Jenkins;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The agent jar served to SSH agents, read and hashed once per Jenkins version instead of once per launch.
+ */
+public final class AgentJarCache {
+
+    public static final String JAR_NAME = "slave.jar";
+
+    private static volatile Entry entry;
+
+    public static Entry get() throws IOException {
+        VersionNumber jenkinsVersion = Jenkins.getVersion();
+        String version = jenkinsVersion == null ? "" : jenkinsVersion.toString();
+        Entry current = entry;
+        if (current == null || !current.version.equals(version)) {
+            synchronized (AgentJarCache.class) {
+                current = entry;
+                if (current == null || !current.version.equals(version)) {
+                    byte[] bytes = Jenkins.getInstance().getJnlpJars(JAR_NAME).readFully();
+                    current = new Entry(version, bytes, DigestUtils.sha256Hex(bytes));
+                    entry = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public static final class Entry {
+        private final String version;
+        private final byte[] bytes;
+        private final String checksum;
+
+        Entry(String version, byte[] bytes, String checksum) {
+            this.version = version;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public long getLength() {
+            return bytes.length;
+        }
+
+        /**
+         * A stream over the cached bytes, the jar itself is not copied.
+         */
+        public InputStream openStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    private AgentJarCache() {
+
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.remote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for TCP ports to accept connections without blocking a thread per port.
+ *
+ * <p>A single selector thread drives all pending probes. A refused or hanging connect is retried after a short
+ * delay that doubles up to {@link #MAX_INTERVAL_MILLIS}, so that a port coming up quickly is noticed quickly
+ * while a slow container does not get hammered. The host name is resolved again on every attempt, so a name
+ * that does not resolve yet is waited for like a closed port, and one that moves to another address is followed.</p>
+ */
+public final class PortReadinessProber {
+    private static final Logger LOGGER = Logger.getLogger(PortReadinessProber.class.getName());
+
+    static final long INITIAL_INTERVAL_MILLIS = 200;
+
+    static final long MAX_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    // a connect that has neither succeeded nor failed by then is abandoned and retried
+    static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+    private static volatile PortReadinessProber instance;
+
+    private final Selector selector;
+
+    private final Queue<Probe> submitted = new ConcurrentLinkedQueue<>();
+
+    // probes waiting for their next attempt, touched by the selector thread only
+    private final PriorityQueue<Probe> waiting = new PriorityQueue<>();
+
+    PortReadinessProber() throws IOException {
+        this.selector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "PortReadinessProber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static PortReadinessProber getInstance() throws IOException {
+        if (instance == null) {
+            synchronized (PortReadinessProber.class) {
+                if (instance == null) {
+                    instance = new PortReadinessProber();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Completes once the port accepts a connection, or exceptionally with a {@link TimeoutException}.
+     */
+    public CompletableFuture<Void> awaitReady(String host, int port, long timeoutMillis) {
+        Probe probe = new Probe(host, port, System.currentTimeMillis() + timeoutMillis);
+        submitted.add(probe);
+        selector.wakeup();
+        return probe.future;
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                long now = System.currentTimeMillis();
+                Probe probe;
+                while ((probe = submitted.poll()) != null) {
+                    probe.nextAttempt = now;
+                    waiting.add(probe);
+                }
+                while (!waiting.isEmpty() && waiting.peek().nextAttempt <= now) {
+                    attempt(waiting.poll(), now);
+                }
+                expireConnects(now);
+
+                long wait = MAX_INTERVAL_MILLIS;
+                if (!waiting.isEmpty()) {
+                    wait = Math.max(1, waiting.peek().nextAttempt - now);
+                }
+                selector.select(Math.min(wait, MAX_INTERVAL_MILLIS));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    finishConnect(key, System.currentTimeMillis());
+                }
+            } catch (Throwable e) {
+                LOGGER.log(Level.WARNING, "PortReadinessProber: unexpected error", e);
+            }
+        }
+    }
+
+    private void attempt(Probe probe, long now) {
+        if (now >= probe.deadline) {
+            probe.future.completeExceptionally(new TimeoutException(
+                    String.format("Port %s is not ready", probe)));
+            return;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(probe.host, probe.port))) {
+                channel.close();
+                probe.future.complete(null);
+                return;
+            }
+            probe.connectStarted = now;
+            channel.register(selector, SelectionKey.OP_CONNECT, probe);
+        } catch (IOException | UnresolvedAddressException e) {
+            LOGGER.log(Level.FINEST, "PortReadinessProber: {0} not ready: {1}", new Object[]{probe, e});
+            close(channel);
+            retry(probe, now);
+        } catch (RuntimeException e) {
+            close(channel);
+            fail(probe, e);
+        }
+    }
+
+    private void finishConnect(SelectionKey key, long now) {
+        Probe probe = (Probe) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        key.cancel();
+        try {
+            if (channel.finishConnect()) {
+                probe.future.complete(null);
+                close(channel);
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, "PortReadinessProber: {0} not ready: {1}",
+                    new Object[]{probe, e.getMessage()});
+        } catch (RuntimeException e) {
+            close(channel);
+            fail(probe, e);
+            return;
+        }
+        close(channel);
+        retry(probe, now);
+    }
+
+    private static void fail(Probe probe, RuntimeException e) {
+        LOGGER.log(Level.FINE, "PortReadinessProber: cannot probe {0}: {1}", new Object[]{probe, e});
+        probe.future.completeExceptionally(e);
+    }
+
+    private void expireConnects(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Probe probe = (Probe) key.attachment();
+            if (key.isValid() && now - probe.connectStarted >= CONNECT_TIMEOUT_MILLIS) {
+                key.cancel();
+                close(key.channel());
+                retry(probe, now);
+            }
+        }
+    }
+
+    private void retry(Probe probe, long now) {
+        probe.nextAttempt = now + probe.interval;
+        probe.interval = Math.min(probe.interval * 2, MAX_INTERVAL_MILLIS);
+        waiting.add(probe);
+    }
+
+    private static void close(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+
+        }
+    }
+
+    private static final class Probe implements Comparable<Probe> {
+        private final String host;
+        private final int port;
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long interval = INITIAL_INTERVAL_MILLIS;
+        private long nextAttempt;
+        private long connectStarted;
+
+        Probe(String host, int port, long deadline) {
+            this.host = host;
+            this.port = port;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+            return Long.compare(nextAttempt, other.nextAttempt);
+        }
+    }
+}
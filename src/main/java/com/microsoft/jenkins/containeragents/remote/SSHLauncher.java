@@ -4,27 +4,32 @@ import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
-import com.microsoft.jenkins.azurecommons.remote.SSHClient;
+import com.jcraft.jsch.SftpException;
 import com.microsoft.jenkins.containeragents.helper.RetryTask;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
 import hudson.model.Slave;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 import hudson.util.Secret;
-import jenkins.model.Jenkins;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +38,13 @@ public class SSHLauncher extends ComputerLauncher {
     private static final int RETRY_LIMIT = 3;
     private static final int RETRY_INTERVAL = 10;
 
+    private static final long READY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    // how much later than the prober itself the launch stops waiting for it
+    private static final long READY_SLACK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    public static final String HANDSHAKE_METRIC = "ssh.handshake";
+
     @Override
     public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
         if (computer == null) {
@@ -62,41 +74,64 @@ public class SSHLauncher extends ComputerLauncher {
 
         LOGGER.log(Level.INFO, "SSHLauncher: Start to connect node {0} : {1} via SSH",
                 new Object[]{node.getDisplayName(), host});
-        try {
-            SSHClient sshClient = new RetryTask<SSHClient>(new Callable<SSHClient>() {
-                @Override
-                public SSHClient call() throws Exception {
-                    return new SSHClient(host, port, credentials).connect().withLogger(logger);
-                }
-            }, new SSHRetryStrategy(RETRY_LIMIT, RETRY_INTERVAL)).call();
 
-            InputStream inputStream = new ByteArrayInputStream(Jenkins.getInstance().getJnlpJars("slave.jar")
-                    .readFully());
-            sshClient.copyTo(inputStream, "slave.jar");
-            LOGGER.log(Level.INFO, "SSHLauncher: Copy slave.jar to remote host successfully");
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "SSHLauncher: Copy slave.jar to remote host failed");
-            computer.setAcceptingTasks(false);
-            throw new InterruptedException(e.toString());
+        // Only start the SSH handshake once sshd accepts connections, instead of sleeping between full connects.
+        try {
+            PortReadinessProber.getInstance().awaitReady(host, port, READY_TIMEOUT_MILLIS)
+                    .get(READY_TIMEOUT_MILLIS + READY_SLACK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | IOException e) {
+            LOGGER.log(Level.INFO, "SSHLauncher: port {0} of {1} is not ready yet, trying to connect anyway: {2}",
+                    new Object[]{port, host, e.getMessage()});
         }
 
         // A lot of codes copied from commons-plugin as there is a classloader issue.
         // JSch class in commons-plugin conflict with the same class in maven-plugin
         // Will reuse commons-plugin whenever it moved to a jar package.
+        // The jar copy, the checksum probe and the agent itself all run as channels of this one session.
         Session session = null;
         try {
+            // Identities are parsed once, only the connect itself is retried.
+            final JSch jsch = getJSch(credentials);
             session = new RetryTask<Session>(new Callable<Session>() {
                 @Override
                 public Session call() throws Exception {
-                    Session session = getSession(credentials, host, port);
+                    Session session = getSession(jsch, credentials, host, port);
 
+                    long start = System.currentTimeMillis();
                     session.connect();
+                    long handshake = System.currentTimeMillis() - start;
+                    ContainerMetrics.record(HANDSHAKE_METRIC, handshake);
+                    LOGGER.log(Level.FINE, "SSHLauncher: SSH handshake with {0} took {1} ms",
+                            new Object[]{host, handshake});
                     return session;
                 }
             }, new SSHRetryStrategy(RETRY_LIMIT, RETRY_INTERVAL)).call();
+        } catch (Exception e) {
+            LOGGER.log(Level.INFO, "SSHLauncher: connecting to agent failed");
+            computer.setAcceptingTasks(false);
+            throw new InterruptedException(e.toString());
+        }
+
+        try {
+            final AgentJarCache.Entry agentJar = AgentJarCache.get();
+            if (agentJar.getChecksum().equals(remoteChecksum(session))) {
+                LOGGER.log(Level.INFO, "SSHLauncher: {0} on remote host is up to date, skip copying",
+                        AgentJarCache.JAR_NAME);
+            } else {
+                copyAgentJar(session, agentJar);
+                LOGGER.log(Level.INFO, "SSHLauncher: Copy slave.jar to remote host successfully");
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "SSHLauncher: Copy slave.jar to remote host failed");
+            session.disconnect();
+            computer.setAcceptingTasks(false);
+            throw new InterruptedException(e.toString());
+        }
 
+        final Session agentSession = session;
+        try {
             final ChannelExec channelExec = (ChannelExec) session.openChannel("exec");
-            final String execCommand = "java -jar slave.jar";
+            final String execCommand = "java -jar " + AgentJarCache.JAR_NAME;
             channelExec.setCommand(execCommand);
             channelExec.connect();
 
@@ -109,6 +144,7 @@ public class SSHLauncher extends ComputerLauncher {
                     if (channelExec != null) {
                         channelExec.disconnect();
                     }
+                    agentSession.disconnect();
                 }
             });
             LOGGER.log(Level.INFO, "SSHLauncher: launched agent successfully");
@@ -123,7 +159,93 @@ public class SSHLauncher extends ComputerLauncher {
 
     }
 
-    private Session getSession(StandardUsernameCredentials credentials, String host, int port) throws JSchException {
+    /**
+     * The SHA-256 of the agent jar already on the remote host, or {@code null} if there is none or it cannot be
+     * computed there.
+     */
+    private String remoteChecksum(Session session) {
+        ChannelExec channel = null;
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+            channel.setCommand("sha256sum " + AgentJarCache.JAR_NAME + " 2>/dev/null");
+            InputStream output = channel.getInputStream();
+            channel.connect();
+            String result = IOUtils.toString(output, StandardCharsets.UTF_8).trim();
+            return StringUtils.isEmpty(result) ? null : StringUtils.substringBefore(result, " ").toLowerCase();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "SSHLauncher: cannot probe remote checksum: {0}", e.getMessage());
+            return null;
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Copies the agent jar over SFTP, or over SCP when the SSH server has no SFTP subsystem.
+     */
+    private void copyAgentJar(Session session, AgentJarCache.Entry agentJar) throws Exception {
+        try {
+            copyAgentJarSftp(session, agentJar);
+        } catch (JSchException | SftpException e) {
+            LOGGER.log(Level.INFO, "SSHLauncher: SFTP copy of {0} failed, falling back to SCP: {1}",
+                    new Object[]{AgentJarCache.JAR_NAME, e.getMessage()});
+            copyAgentJarScp(session, agentJar);
+        }
+    }
+
+    private void copyAgentJarSftp(Session session, AgentJarCache.Entry agentJar)
+            throws JSchException, SftpException, IOException {
+        ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+        try (InputStream inputStream = agentJar.openStream()) {
+            channel.connect();
+            channel.put(inputStream, AgentJarCache.JAR_NAME, ChannelSftp.OVERWRITE);
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private void copyAgentJarScp(Session session, AgentJarCache.Entry agentJar) throws JSchException, IOException {
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        channel.setCommand("scp -t " + AgentJarCache.JAR_NAME);
+        try (InputStream inputStream = agentJar.openStream()) {
+            OutputStream out = channel.getOutputStream();
+            InputStream in = channel.getInputStream();
+            channel.connect();
+            checkScpAck(in);
+
+            String header = "C0644 " + agentJar.getLength() + " " + AgentJarCache.JAR_NAME + "\n";
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            checkScpAck(in);
+
+            IOUtils.copy(inputStream, out);
+            out.write(0);
+            out.flush();
+            checkScpAck(in);
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private static void checkScpAck(InputStream in) throws IOException {
+        int status = in.read();
+        if (status == 0) {
+            return;
+        }
+        if (status == -1) {
+            throw new IOException("SCP: remote end closed the connection");
+        }
+        StringBuilder message = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            message.append((char) c);
+        }
+        throw new IOException("SCP: " + message);
+    }
+
+    private JSch getJSch(StandardUsernameCredentials credentials) throws JSchException {
         JSch jsch = new JSch();
         if (credentials instanceof SSHUserPrivateKey) {
             SSHUserPrivateKey sshUserPrivateKey = (SSHUserPrivateKey) credentials;
@@ -142,7 +264,11 @@ public class SSHLauncher extends ComputerLauncher {
                 jsch.addIdentity(name, privateKey.getBytes(StandardCharsets.UTF_8), null, passphraseBytes);
             }
         }
+        return jsch;
+    }
 
+    private Session getSession(JSch jsch, StandardUsernameCredentials credentials, String host, int port)
+            throws JSchException {
         Session session = jsch.getSession(credentials.getUsername(), host, port);
 
         Properties config = new Properties();
@@ -19,13 +19,10 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import javax.annotation.concurrent.GuardedBy;
-import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.util.logging.Level.WARNING;
-
 public class ContainerIdleRetentionStrategy extends CloudRetentionStrategy {
     private static final Logger LOGGER = Logger.getLogger(ContainerIdleRetentionStrategy.class.getName());
 
@@ -62,11 +59,8 @@ public class ContainerIdleRetentionStrategy extends CloudRetentionStrategy {
                     && !neverConnected
                     && idleMilliseconds > TimeUnit.MINUTES.toMillis(idleMinutes)) {
                 LOGGER.log(Level.INFO, "Disconnecting {0}", c.getName());
-                try {
-                    computerNode.terminate();
-                } catch (InterruptedException | IOException e) {
-                    LOGGER.log(WARNING, "Failed to terminate " + c.getName(), e);
-                }
+                // check runs under the queue lock, the node is removed on the termination pipeline
+                DelayedTermination.terminate(c);
             }
         }
         return 1;
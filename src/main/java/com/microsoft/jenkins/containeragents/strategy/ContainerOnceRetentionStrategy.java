@@ -13,7 +13,6 @@ import hudson.model.Executor;
 import hudson.model.ExecutorListener;
 import hudson.model.Queue;
 import hudson.slaves.AbstractCloudComputer;
-import hudson.slaves.AbstractCloudSlave;
 import hudson.slaves.CloudRetentionStrategy;
 import hudson.slaves.EphemeralNode;
 import hudson.slaves.RetentionStrategy;
@@ -22,7 +21,6 @@ import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,7 +28,6 @@ import java.util.logging.Logger;
 public class ContainerOnceRetentionStrategy extends CloudRetentionStrategy implements ExecutorListener {
     private static final Logger LOGGER = Logger.getLogger(ContainerOnceRetentionStrategy.class.getName());
     private static final transient int IDLE_MINUTES = 10;
-    private static final transient int WAIT_TIME = 10 * 1000;
     private static final transient int LAPSE = 5;
 
     @DataBoundConstructor
@@ -44,6 +41,13 @@ public class ContainerOnceRetentionStrategy extends CloudRetentionStrategy imple
 
     @Override
     public long check(final AbstractCloudComputer c) {
+        // A drained agent whose last tasks finished at the same time may have been left by taskCompleted.
+        if (c.isIdle() && !c.isAcceptingTasks() && c.getNode() != null
+                && System.currentTimeMillis() - c.getIdleStartMilliseconds() > TimeUnit.MINUTES.toMillis(1)) {
+            LOGGER.log(Level.INFO, "Disconnecting drained {0}", c.getName());
+            done(c);
+            return 1;
+        }
         // When the slave is idle we should disable accepting tasks and check to see if it is already trying to
         // terminate. If it's not already trying to terminate then lets terminate manually.
         if (c.isIdle() && !disabled) {
@@ -95,42 +99,24 @@ public class ContainerOnceRetentionStrategy extends CloudRetentionStrategy imple
     }
 
     private void done(Executor executor) {
-        try {
-            Thread.sleep(WAIT_TIME);
-        } catch (Exception e) {
-            LOGGER.info(e.getMessage());
-        }
         final AbstractCloudComputer<?> c = (AbstractCloudComputer) executor.getOwner();
         Queue.Executable exec = executor.getCurrentExecutable();
 
+        // An agent with several executors takes no new tasks once a task finished, and is terminated with
+        // the last of the running ones.
+        c.setAcceptingTasks(false);
+        for (Executor other : c.getAllExecutors()) {
+            if (other != executor && other.isBusy()) {
+                LOGGER.log(Level.INFO, "draining {0} since {1} seems to be finished", new Object[] {c.getName(), exec});
+                return;
+            }
+        }
         LOGGER.log(Level.INFO, "terminating {0} since {1} seems to be finished", new Object[] {c.getName(), exec});
-        done(c);
+        DelayedTermination.schedule(c);
     }
 
     private void done(final AbstractCloudComputer<?> c) {
-        c.setAcceptingTasks(false); // just in case
-        synchronized (this) {
-            Computer.threadPoolForRemoting.submit(new Runnable() {
-                @Override
-                public void run() {
-                    Queue.withLock(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                AbstractCloudSlave node = c.getNode();
-                                if (node != null) {
-                                    node.terminate();
-                                }
-                            } catch (InterruptedException | IOException e) {
-                                LOGGER.log(Level.WARNING, "Failed to terminate {0}: {1}",
-                                        new Object[]{c.getName(), e});
-                            }
-                        }
-                    });
-                }
-            });
-        }
-
+        DelayedTermination.terminate(c);
     }
 
     @Override
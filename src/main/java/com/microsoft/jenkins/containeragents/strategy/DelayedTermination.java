@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.strategy;
+
+import com.microsoft.jenkins.containeragents.Messages;
+import com.microsoft.jenkins.containeragents.helper.ProvisioningScheduler;
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import hudson.model.Computer;
+import hudson.model.Queue;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.OfflineCause;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Termination pipeline of the retention strategies. Once-agents are terminated a short while after their build
+ * finished, without holding a thread in the meantime.
+ *
+ * <p>The computer stops accepting tasks as soon as it is scheduled. Computers scheduled within the same delay
+ * window are terminated together by a single task. The computers are only taken offline under the queue lock, so
+ * the queue no longer counts them, the nodes are removed and their containers deleted outside of it, one task per
+ * node.</p>
+ */
+public final class DelayedTermination {
+    private static final Logger LOGGER = Logger.getLogger(DelayedTermination.class.getName());
+
+    public static final String QUEUE_LOCK_METRIC = "termination.queueLock";
+
+    public static final String TERMINATE_METRIC = "termination.terminate";
+
+    public static final String TERMINATE_FAILED_METRIC = "termination.failed";
+
+    static final long DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Object LOCK = new Object();
+
+    @GuardedBy("LOCK")
+    private static final Set<AbstractCloudComputer<?>> PENDING = new LinkedHashSet<>();
+
+    @GuardedBy("LOCK")
+    private static boolean flushScheduled;
+
+    public static void schedule(AbstractCloudComputer<?> computer) {
+        // only the teardown is delayed, the queue must not hand the computer new work meanwhile
+        computer.setAcceptingTasks(false);
+        synchronized (LOCK) {
+            PENDING.add(computer);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        ProvisioningScheduler.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static int getPending() {
+        synchronized (LOCK) {
+            return PENDING.size();
+        }
+    }
+
+    /**
+     * Terminates the computer without delay, through the same pipeline as the delayed terminations.
+     */
+    public static void terminate(final AbstractCloudComputer<?> computer) {
+        computer.setAcceptingTasks(false);
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                terminate(Collections.<AbstractCloudComputer<?>>singletonList(computer));
+            }
+        });
+    }
+
+    static void flush() {
+        final List<AbstractCloudComputer<?>> batch;
+        synchronized (LOCK) {
+            batch = new ArrayList<>(PENDING);
+            PENDING.clear();
+            flushScheduled = false;
+        }
+        LOGGER.log(Level.FINE, "DelayedTermination: terminating {0} agents", batch.size());
+        terminate(batch);
+    }
+
+    private static void terminate(final List<AbstractCloudComputer<?>> batch) {
+        // only take the computers offline under the queue lock, removing the nodes persists the configuration and
+        // deletes the containers, which must not stall scheduling
+        Queue.withLock(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                for (AbstractCloudComputer<?> computer : batch) {
+                    computer.setTemporarilyOffline(true, OfflineCause.create(Messages._Agent_Terminating()));
+                }
+                ContainerMetrics.record(QUEUE_LOCK_METRIC, System.currentTimeMillis() - start);
+            }
+        });
+        for (final AbstractCloudComputer<?> computer : batch) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    removeNode(computer);
+                }
+            });
+        }
+    }
+
+    private static void removeNode(AbstractCloudComputer<?> computer) {
+        long start = System.currentTimeMillis();
+        try {
+            AbstractCloudSlave node = computer.getNode();
+            if (node != null) {
+                node.terminate();
+            }
+            ContainerMetrics.record(TERMINATE_METRIC, System.currentTimeMillis() - start);
+        } catch (InterruptedException | IOException e) {
+            ContainerMetrics.increment(TERMINATE_FAILED_METRIC);
+            LOGGER.log(Level.WARNING, "Failed to terminate {0}: {1}", new Object[]{computer.getName(), e});
+        }
+    }
+
+    private DelayedTermination() {
+
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.strategy;
+
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-horizon forecast of the executor demand of each label.
+ *
+ * <p>The forecast blends an exponentially smoothed level with a time-of-day profile, so that a recurring
+ * nightly fan-out or morning rush is anticipated from the previous days. Each forecast is compared with the
+ * demand actually observed in its slot, the errors are counted as {@link #ABSOLUTE_ERROR_METRIC} against
+ * {@link #ACTUAL_METRIC} and logged as a mean absolute error by
+ * {@link com.microsoft.jenkins.containeragents.ContainerMetricsTask}.</p>
+ *
+ * <p>A label without demand for {@link #IDLE_MILLIS} is forgotten, so that labels of jobs that are gone do not
+ * stay forever.</p>
+ */
+public class DemandForecaster {
+
+    public static final String SAMPLES_METRIC = "forecast.samples";
+    public static final String ACTUAL_METRIC = "forecast.actual";
+    public static final String ABSOLUTE_ERROR_METRIC = "forecast.absoluteError";
+
+    static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    static final int SLOTS_PER_DAY = (int) (TimeUnit.DAYS.toMillis(1) / SLOT_MILLIS);
+
+    static final double LEVEL_SMOOTHING = 0.5;
+
+    // a slot gets about 15 samples a day, so that the profile still follows the last days
+    static final double PROFILE_SMOOTHING = 0.05;
+
+    static final double PROFILE_WEIGHT = 0.7;
+
+    static final long IDLE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    private final TimeZone timeZone;
+
+    public DemandForecaster() {
+        this(TimeZone.getDefault());
+    }
+
+    DemandForecaster(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Records the demand observed now, i.e. the busy executors plus the queued items of the label.
+     */
+    public void record(String label, int demand, long now) {
+        Series s = series.get(label);
+        if (s == null) {
+            if (demand == 0) {
+                return;
+            }
+            Series created = new Series();
+            s = series.putIfAbsent(label, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        synchronized (s) {
+            if (demand > 0) {
+                s.lastDemandAt = now;
+            } else if (now - s.lastDemandAt >= IDLE_MILLIS) {
+                series.remove(label, s);
+                return;
+            }
+            long slot = now / SLOT_MILLIS;
+            Double predicted = s.predictions.get(slot);
+            if (predicted != null) {
+                ContainerMetrics.increment(SAMPLES_METRIC);
+                ContainerMetrics.add(ACTUAL_METRIC, demand);
+                ContainerMetrics.add(ABSOLUTE_ERROR_METRIC, Math.round(Math.abs(predicted - demand)));
+            }
+            for (Iterator<Long> it = s.predictions.keySet().iterator(); it.hasNext();) {
+                if (it.next() < slot) {
+                    it.remove();
+                }
+            }
+
+            s.level = s.initialized ? s.level + LEVEL_SMOOTHING * (demand - s.level) : demand;
+            s.initialized = true;
+            int daySlot = daySlot(now);
+            s.profile[daySlot] = s.seen[daySlot]
+                    ? s.profile[daySlot] + PROFILE_SMOOTHING * (demand - s.profile[daySlot]) : demand;
+            s.seen[daySlot] = true;
+        }
+    }
+
+    /**
+     * The demand expected at the given time, 0 for a label without history.
+     */
+    public double forecast(String label, long at) {
+        Series s = series.get(label);
+        if (s == null) {
+            return 0;
+        }
+        synchronized (s) {
+            int daySlot = daySlot(at);
+            double value = s.seen[daySlot]
+                    ? PROFILE_WEIGHT * s.profile[daySlot] + (1 - PROFILE_WEIGHT) * s.level
+                    : s.level;
+            long slot = at / SLOT_MILLIS;
+            if (!s.predictions.containsKey(slot)) {
+                s.predictions.put(slot, value);
+            }
+            return value;
+        }
+    }
+
+    public Set<String> getLabels() {
+        return series.keySet();
+    }
+
+    private int daySlot(long time) {
+        long local = time + timeZone.getOffset(time);
+        return (int) ((local / SLOT_MILLIS) % SLOTS_PER_DAY);
+    }
+
+    private static final class Series {
+        private double level;
+        private boolean initialized;
+        private long lastDemandAt;
+        private final double[] profile = new double[SLOTS_PER_DAY];
+        private final boolean[] seen = new boolean[SLOTS_PER_DAY];
+        // first forecast made for each upcoming slot, to be scored once the slot is observed
+        private final Map<Long, Double> predictions = new HashMap<>();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.strategy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory accounting of live agents and in-flight creates, per cloud and per template.
+ *
+ * <p>All checks are lock-free and never call the cluster or ARM, so they are safe to use from
+ * {@code canProvision}. The counters drift if a create or delete is missed, which is why the owning cloud
+ * periodically {@link #reconcile reconciles} them against what actually runs.</p>
+ */
+public class InstanceCapStrategy {
+
+    private final Counter total = new Counter();
+
+    private final Map<String, Counter> templates = new ConcurrentHashMap<>();
+
+    // agent name -> template name of the creates that are still in flight
+    private final Map<String, String> inFlightAgents = new ConcurrentHashMap<>();
+
+    public boolean canProvision(String template, InstanceCap cloudCap, InstanceCap templateCap) {
+        return total.hasRoom(cloudCap) && counter(template).hasRoom(templateCap);
+    }
+
+    /**
+     * Acquires up to {@code count} instance and in-flight slots.
+     *
+     * @return the number of slots granted, each of which must eventually be given back through
+     * {@link #createFinished} and {@link #released}, or through {@link #cancel}
+     */
+    public int tryAcquire(String template, InstanceCap cloudCap, InstanceCap templateCap, int count) {
+        Counter templateCounter = counter(template);
+        int granted = 0;
+        while (granted < count) {
+            if (!total.tryIncrement(cloudCap)) {
+                break;
+            }
+            if (!templateCounter.tryIncrement(templateCap)) {
+                total.decrement();
+                break;
+            }
+            granted++;
+        }
+        return granted;
+    }
+
+    /**
+     * Gives back slots that were acquired but never used for a create.
+     */
+    public void cancel(String template, int count) {
+        Counter templateCounter = counter(template);
+        for (int i = 0; i < count; i++) {
+            total.decrement();
+            templateCounter.decrement();
+        }
+    }
+
+    public void createStarted(String template, String agentName) {
+        inFlightAgents.put(agentName, template);
+    }
+
+    public void createFinished(String template, String agentName) {
+        if (agentName != null) {
+            inFlightAgents.remove(agentName);
+        }
+        decrement(total.inFlight);
+        decrement(counter(template).inFlight);
+    }
+
+    public void released(String template) {
+        decrement(total.instances);
+        decrement(counter(template).instances);
+    }
+
+    /**
+     * Replaces the instance counters with the agents observed on the cluster or in ARM, keeping the creates
+     * that are in flight but not visible yet.
+     *
+     * <p>The in-flight counters are rebuilt from the creates that have started, so a slot that was never given
+     * back only lowers the caps until the next reconcile. Slots acquired for creates that have not started yet
+     * are not counted until then.</p>
+     *
+     * @param observed agent names per template name
+     */
+    public void reconcile(Map<String, ? extends Collection<String>> observed) {
+        Map<String, Integer> started = new HashMap<>();
+        for (String template : inFlightAgents.values()) {
+            started.merge(template, 1, Integer::sum);
+        }
+        int instances = 0;
+        int inFlight = 0;
+        for (String template : templates.keySet()) {
+            if (!observed.containsKey(template)) {
+                instances += reconcileTemplate(template, Collections.<String>emptyList(), started);
+                inFlight += started.getOrDefault(template, 0);
+            }
+        }
+        for (Map.Entry<String, ? extends Collection<String>> entry : observed.entrySet()) {
+            instances += reconcileTemplate(entry.getKey(), entry.getValue(), started);
+            inFlight += started.getOrDefault(entry.getKey(), 0);
+        }
+        total.instances.set(instances);
+        total.inFlight.set(inFlight);
+    }
+
+    private int reconcileTemplate(String template, Collection<String> agents, Map<String, Integer> started) {
+        Counter counter = counter(template);
+        int inFlight = started.getOrDefault(template, 0);
+        counter.inFlight.set(inFlight);
+        int visibleInFlight = 0;
+        for (String agent : agents) {
+            if (template.equals(inFlightAgents.get(agent))) {
+                visibleInFlight++;
+            }
+        }
+        int instances = agents.size() + inFlight - visibleInFlight;
+        counter.instances.set(instances);
+        return instances;
+    }
+
+    public int getInstances() {
+        return total.instances.get();
+    }
+
+    public int getInFlight() {
+        return total.inFlight.get();
+    }
+
+    public int getInstances(String template) {
+        return counter(template).instances.get();
+    }
+
+    public int getInFlight(String template) {
+        return counter(template).inFlight.get();
+    }
+
+    private Counter counter(String template) {
+        Counter counter = templates.get(template);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = templates.putIfAbsent(template, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static boolean increment(AtomicInteger value, int max) {
+        while (true) {
+            int current = value.get();
+            if (max > 0 && current >= max) {
+                return false;
+            }
+            if (value.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void decrement(AtomicInteger value) {
+        while (true) {
+            int current = value.get();
+            if (current <= 0 || value.compareAndSet(current, current - 1)) {
+                return;
+            }
+        }
+    }
+
+    private static final class Counter {
+        private final AtomicInteger instances = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        boolean hasRoom(InstanceCap cap) {
+            return (cap.getMaxInstances() <= 0 || instances.get() < cap.getMaxInstances())
+                    && (cap.getMaxConcurrentCreates() <= 0 || inFlight.get() < cap.getMaxConcurrentCreates());
+        }
+
+        boolean tryIncrement(InstanceCap cap) {
+            if (!increment(instances, cap.getMaxInstances())) {
+                return false;
+            }
+            if (!increment(inFlight, cap.getMaxConcurrentCreates())) {
+                InstanceCapStrategy.decrement(instances);
+                return false;
+            }
+            return true;
+        }
+
+        void decrement() {
+            InstanceCapStrategy.decrement(instances);
+            InstanceCapStrategy.decrement(inFlight);
+        }
+    }
+
+    /**
+     * Limits of a cloud or a template, 0 meaning unlimited.
+     */
+    public static final class InstanceCap {
+        public static final InstanceCap UNLIMITED = new InstanceCap(0, 0);
+
+        private final int maxInstances;
+        private final int maxConcurrentCreates;
+
+        public InstanceCap(int maxInstances, int maxConcurrentCreates) {
+            this.maxInstances = maxInstances;
+            this.maxConcurrentCreates = maxConcurrentCreates;
+        }
+
+        public int getMaxInstances() {
+            return maxInstances;
+        }
+
+        public int getMaxConcurrentCreates() {
+            return maxConcurrentCreates;
+        }
+    }
+}
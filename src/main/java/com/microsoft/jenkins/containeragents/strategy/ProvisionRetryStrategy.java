@@ -7,7 +7,14 @@ public class ProvisionRetryStrategy {
     private static final int MAX_INTERVAL = 10 * 60 * 1000;    // 10 minutes
     private Map<String, Record> records = new ConcurrentHashMap<>();
 
-    public synchronized void failure(String name) {
+    public void failure(String name) {
+        failure(name, null);
+    }
+
+    /**
+     * @param cause why the provisioning failed, kept so that a template that keeps failing can be explained
+     */
+    public synchronized void failure(String name, String cause) {
         Record record = records.get(name);
         if (record == null) {
             record = new Record();
@@ -18,6 +25,7 @@ public class ProvisionRetryStrategy {
             record.setInterval(nextInterval);
         }
         record.setLastFail(System.currentTimeMillis());
+        record.setLastCause(cause);
     }
 
     public synchronized void success(String name) {
@@ -32,6 +40,11 @@ public class ProvisionRetryStrategy {
         return record.getLastFail() + record.getInterval();
     }
 
+    public String getLastCause(String name) {
+        Record record = records.get(name);
+        return record == null ? null : record.getLastCause();
+    }
+
     public boolean isEnabled(String name) {
         return isEnabled(name, System.currentTimeMillis());
     }
@@ -48,6 +61,7 @@ public class ProvisionRetryStrategy {
         private static final int INITIAL_INTERVAL = 5 * 1000;   // 5 sec.
         private long lastFail;
         private int interval = INITIAL_INTERVAL;
+        private String lastCause;
 
         public long getLastFail() {
             return lastFail;
@@ -64,5 +78,13 @@ public class ProvisionRetryStrategy {
         public void setInterval(int interval) {
             this.interval = interval;
         }
+
+        public String getLastCause() {
+            return lastCause;
+        }
+
+        public void setLastCause(String lastCause) {
+            this.lastCause = lastCause;
+        }
     }
 }
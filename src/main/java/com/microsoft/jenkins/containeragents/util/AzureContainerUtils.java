@@ -45,6 +45,19 @@ public final class AzureContainerUtils {
         return String.format("%s-%s", name, randString);
     }
 
+    /**
+     * Turns an arbitrary name into a valid Kubernetes label value.
+     */
+    public static String toLabelValue(String name) {
+        final int maxLabelLength = 63;
+        if (StringUtils.isEmpty(name)) {
+            return "";
+        }
+        String value = name.replaceAll("[^A-Za-z0-9_.-]", "-");
+        value = value.substring(0, Math.min(value.length(), maxLabelLength));
+        return value.replaceAll("^[^A-Za-z0-9]+", "").replaceAll("[^A-Za-z0-9]+$", "");
+    }
+
     private AzureContainerUtils() {
 
     }
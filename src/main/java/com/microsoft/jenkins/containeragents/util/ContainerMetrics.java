@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory timers and counters of the plugin, meant for tuning rather than for telemetry. They are logged
+ * periodically by {@link com.microsoft.jenkins.containeragents.ContainerMetricsTask}.
+ */
+public final class ContainerMetrics {
+
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+    public static void record(String name, long millis) {
+        Timer timer = TIMERS.get(name);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = TIMERS.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        timer.record(millis);
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        AtomicLong counter = COUNTERS.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = COUNTERS.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    public static Timer getTimer(String name) {
+        Timer timer = TIMERS.get(name);
+        return timer == null ? new Timer() : timer;
+    }
+
+    public static long getCount(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * All the metrics by name, timers as count, mean and max in milliseconds.
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Timer> entry : TIMERS.entrySet()) {
+            Timer timer = entry.getValue();
+            result.put(entry.getKey() + ".count", timer.getCount());
+            result.put(entry.getKey() + ".meanMillis", timer.getMeanMillis());
+            result.put(entry.getKey() + ".maxMillis", timer.getMaxMillis());
+        }
+        return result;
+    }
+
+    public static final class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            long current = max.get();
+            while (millis > current && !max.compareAndSet(current, millis)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+
+        public long getMaxMillis() {
+            return max.get();
+        }
+    }
+
+    private ContainerMetrics() {
+
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.util;
+
+import io.fabric8.kubernetes.api.model.Quantity;
+import org.apache.commons.lang.StringUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public final class QuantityUtils {
+
+    private static final BigDecimal THOUSAND = BigDecimal.valueOf(1000);
+
+    private static final String[] BINARY_SUFFIXES = {"Ki", "Mi", "Gi", "Ti", "Pi", "Ei"};
+
+    private static final String[] DECIMAL_SUFFIXES = {"k", "M", "G", "T", "P", "E"};
+
+    private static final long BINARY_BASE = 1024L;
+
+    private static final long DECIMAL_BASE = 1000L;
+
+    public static final long BYTES_IN_MI = BINARY_BASE * BINARY_BASE;
+
+    /**
+     * Converts a Kubernetes CPU quantity (e.g. "2", "0.5", "250m") to millicores.
+     */
+    public static long toCpuMillis(Quantity quantity) {
+        return toCpuMillis(toString(quantity));
+    }
+
+    public static long toCpuMillis(String value) {
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+        String trimmed = value.trim();
+        if (trimmed.endsWith("m")) {
+            return new BigDecimal(trimmed.substring(0, trimmed.length() - 1))
+                    .setScale(0, RoundingMode.CEILING).longValue();
+        }
+        return parse(trimmed).multiply(THOUSAND).setScale(0, RoundingMode.CEILING).longValue();
+    }
+
+    /**
+     * Converts a Kubernetes memory quantity (e.g. "512Mi", "1G", "1073741824") to bytes.
+     */
+    public static long toBytes(Quantity quantity) {
+        return toBytes(toString(quantity));
+    }
+
+    public static long toBytes(String value) {
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+        return parse(value.trim()).setScale(0, RoundingMode.CEILING).longValue();
+    }
+
+    public static long toLong(Quantity quantity) {
+        String value = toString(quantity);
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+        return parse(value.trim()).longValue();
+    }
+
+    private static BigDecimal parse(String value) {
+        for (int i = 0; i < BINARY_SUFFIXES.length; i++) {
+            if (value.endsWith(BINARY_SUFFIXES[i])) {
+                return new BigDecimal(value.substring(0, value.length() - BINARY_SUFFIXES[i].length()))
+                        .multiply(BigDecimal.valueOf(BINARY_BASE).pow(i + 1));
+            }
+        }
+        for (int i = 0; i < DECIMAL_SUFFIXES.length; i++) {
+            if (value.endsWith(DECIMAL_SUFFIXES[i])) {
+                return new BigDecimal(value.substring(0, value.length() - DECIMAL_SUFFIXES[i].length()))
+                        .multiply(BigDecimal.valueOf(DECIMAL_BASE).pow(i + 1));
+            }
+        }
+        if (value.endsWith("m")) {
+            return new BigDecimal(value.substring(0, value.length() - 1)).divide(THOUSAND);
+        }
+        // the metrics API reports CPU in nanocores
+        if (value.endsWith("u")) {
+            return new BigDecimal(value.substring(0, value.length() - 1)).divide(THOUSAND.pow(2));
+        }
+        if (value.endsWith("n")) {
+            return new BigDecimal(value.substring(0, value.length() - 1)).divide(THOUSAND.pow(3));
+        }
+        return new BigDecimal(value);
+    }
+
+    private static String toString(Quantity quantity) {
+        if (quantity == null || quantity.getAmount() == null) {
+            return null;
+        }
+        // Older models keep the whole quantity in amount, newer ones split the suffix into format.
+        return quantity.getAmount() + StringUtils.defaultString(quantity.getFormat());
+    }
+
+    private QuantityUtils() {
+
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CPU and memory the agents of a template actually used, per executor, and the requests and limits they
+ * suggest.
+ *
+ * <p>Requests follow the 90th percentile: CPU of all samples, memory of the peak of each agent. Limits leave
+ * headroom above the 99th percentile of the CPU samples, against throttling, and above the highest memory peak
+ * of an agent, against OOM kills. There is no recommendation until enough agents have been sampled.</p>
+ *
+ * <p>Usage is kept by kind of cloud, cloud name and template name, in memory, for the most recent samples and
+ * agents only. Once a recommendation has been applied the usage starts over, without the agents that still run
+ * under the previous configuration.</p>
+ */
+public final class TemplateUsage {
+
+    static final int MAX_SAMPLES = 10000;
+
+    static final int MAX_AGENTS = 500;
+
+    public static final int MIN_AGENTS = 5;
+
+    static final double LIMIT_HEADROOM = 1.2;
+
+    // a recommendation is only applied when it differs more than this from the configured value
+    static final double APPLY_THRESHOLD = 0.1;
+
+    private static final int P50 = 50;
+    private static final int P90 = 90;
+    private static final int P99 = 99;
+
+    private static final double PERCENT = 100.0;
+
+    private static final long MIN_CPU_MILLIS = 10;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final Map<String, TemplateUsage> USAGES = new ConcurrentHashMap<>();
+
+    /**
+     * The kinds of clouds, whose templates are kept apart even if they have the same name.
+     */
+    public enum Kind {
+        KUBERNETES,
+        ACI
+    }
+
+    private final long[] cpuSamples = new long[MAX_SAMPLES];
+
+    // agents created before the configuration the usage is recorded for
+    private final Set<String> previousAgents;
+
+    private int sampleCount;
+
+    private int nextSample;
+
+    // agent -> highest memory in bytes, least recently sampled first
+    private final LinkedHashMap<String, Long> memoryPeaks = new LinkedHashMap<String, Long>(
+            MAX_AGENTS, LOAD_FACTOR, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_AGENTS;
+        }
+    };
+
+    private TemplateUsage(Set<String> previousAgents) {
+        this.previousAgents = previousAgents;
+    }
+
+    public static TemplateUsage of(Kind kind, String cloudName, String templateName) {
+        return USAGES.computeIfAbsent(key(kind, cloudName, templateName),
+                key -> new TemplateUsage(Collections.<String>emptySet()));
+    }
+
+    /**
+     * The recommendation for the template, null without enough usage.
+     */
+    public static Recommendation recommend(Kind kind, String cloudName, String templateName) {
+        TemplateUsage usage = USAGES.get(key(kind, cloudName, templateName));
+        return usage == null ? null : usage.recommend();
+    }
+
+    /**
+     * Starts the usage of the template over, e.g. once its recommendation has been applied.
+     *
+     * @param previousAgents the agents of the template that run under the previous configuration, their samples
+     *                       are ignored from now on
+     */
+    public static void reset(Kind kind, String cloudName, String templateName, Collection<String> previousAgents) {
+        USAGES.put(key(kind, cloudName, templateName), new TemplateUsage(new HashSet<>(previousAgents)));
+    }
+
+    private static String key(Kind kind, String cloudName, String templateName) {
+        return kind + "/" + cloudName + "/" + templateName;
+    }
+
+    /**
+     * Records a sample of an agent.
+     *
+     * @param cpuMillis   the CPU the agent used, in millicores per executor
+     * @param memoryBytes the memory the agent used, in bytes per executor
+     */
+    public synchronized void record(String agentName, long cpuMillis, long memoryBytes) {
+        if (previousAgents.contains(agentName)) {
+            return;
+        }
+        cpuSamples[nextSample] = cpuMillis;
+        nextSample = (nextSample + 1) % MAX_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+        Long peak = memoryPeaks.get(agentName);
+        memoryPeaks.put(agentName, peak == null ? memoryBytes : Math.max(peak, memoryBytes));
+    }
+
+    public synchronized Recommendation recommend() {
+        if (memoryPeaks.size() < MIN_AGENTS) {
+            return null;
+        }
+        long[] cpu = Arrays.copyOf(cpuSamples, sampleCount);
+        Arrays.sort(cpu);
+        List<Long> peaks = new ArrayList<>(memoryPeaks.values());
+        Collections.sort(peaks);
+        long[] memory = new long[peaks.size()];
+        for (int i = 0; i < memory.length; i++) {
+            memory[i] = peaks.get(i);
+        }
+        return new Recommendation(cpu, memory);
+    }
+
+    /**
+     * Whether a recommended value is worth applying over the configured one.
+     */
+    public static boolean differs(long configured, long recommended) {
+        return configured <= 0 || Math.abs(recommended - configured) > configured * APPLY_THRESHOLD;
+    }
+
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / PERCENT * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Requests and limits per executor with the percentiles they come from.
+     */
+    public static final class Recommendation {
+        private final int samples;
+        private final int agents;
+        private final long cpuP50;
+        private final long cpuP90;
+        private final long cpuP99;
+        private final long memoryP50;
+        private final long memoryP90;
+        private final long memoryMax;
+
+        Recommendation(long[] sortedCpu, long[] sortedMemoryPeaks) {
+            this.samples = sortedCpu.length;
+            this.agents = sortedMemoryPeaks.length;
+            this.cpuP50 = percentile(sortedCpu, P50);
+            this.cpuP90 = percentile(sortedCpu, P90);
+            this.cpuP99 = percentile(sortedCpu, P99);
+            this.memoryP50 = percentile(sortedMemoryPeaks, P50);
+            this.memoryP90 = percentile(sortedMemoryPeaks, P90);
+            this.memoryMax = sortedMemoryPeaks.length == 0 ? 0 : sortedMemoryPeaks[sortedMemoryPeaks.length - 1];
+        }
+
+        public long getRequestCpuMillis() {
+            return Math.max(MIN_CPU_MILLIS, cpuP90);
+        }
+
+        public long getLimitCpuMillis() {
+            return Math.max(getRequestCpuMillis(), (long) Math.ceil(cpuP99 * LIMIT_HEADROOM));
+        }
+
+        public long getRequestMemoryBytes() {
+            return Math.max(QuantityUtils.BYTES_IN_MI, memoryP90);
+        }
+
+        public long getLimitMemoryBytes() {
+            return Math.max(getRequestMemoryBytes(), (long) Math.ceil(memoryMax * LIMIT_HEADROOM));
+        }
+
+        /**
+         * As a Kubernetes quantity, e.g. {@code 250m}.
+         */
+        public static String toCpuQuantity(long millis) {
+            return millis + "m";
+        }
+
+        /**
+         * As a Kubernetes quantity rounded up to whole mebibytes, e.g. {@code 512Mi}.
+         */
+        public static String toMemoryQuantity(long bytes) {
+            return ((bytes + QuantityUtils.BYTES_IN_MI - 1) / QuantityUtils.BYTES_IN_MI) + "Mi";
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public int getAgents() {
+            return agents;
+        }
+
+        public String getSummary() {
+            return String.format("CPU request %s, limit %s (p50 %s, p90 %s, p99 %s of %d samples); "
+                            + "memory request %s, limit %s (agent peaks p50 %s, p90 %s, max %s of %d agents), "
+                            + "per executor",
+                    toCpuQuantity(getRequestCpuMillis()), toCpuQuantity(getLimitCpuMillis()),
+                    toCpuQuantity(cpuP50), toCpuQuantity(cpuP90), toCpuQuantity(cpuP99), samples,
+                    toMemoryQuantity(getRequestMemoryBytes()), toMemoryQuantity(getLimitMemoryBytes()),
+                    toMemoryQuantity(memoryP50), toMemoryQuantity(memoryP90), toMemoryQuantity(memoryMax), agents);
+        }
+
+        @Override
+        public String toString() {
+            return getSummary();
+        }
+    }
+}
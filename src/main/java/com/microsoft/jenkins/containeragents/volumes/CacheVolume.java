@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.containeragents.volumes;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import io.fabric8.kubernetes.api.model.Volume;
+import io.fabric8.kubernetes.api.model.VolumeBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A build cache, e.g. of Maven, Gradle or npm, on a persistent volume claim leased from a pool of claims of
+ * the template. Each agent gets a claim no other agent uses, warm from an earlier agent if one is free.
+ */
+public class CacheVolume extends PodVolume {
+
+    public static final String DEFAULT_SIZE = "10Gi";
+
+    public static final int DEFAULT_MAX_CLAIMS = 10;
+
+    private String mountPath;
+    private String storageClassName;
+    private String size;
+    private int maxClaims;
+
+    @DataBoundConstructor
+    public CacheVolume(String mountPath, String storageClassName, String size, int maxClaims) {
+        this.mountPath = mountPath;
+        this.storageClassName = storageClassName;
+        this.size = size;
+        this.maxClaims = maxClaims;
+    }
+
+    @Override
+    public String getMountPath() {
+        return mountPath;
+    }
+
+    /**
+     * A volume without the cache, for a pod that could not lease a claim.
+     */
+    @Override
+    public Volume buildVolume(String volumeName) {
+        return new VolumeBuilder()
+                .withName(volumeName)
+                .withNewEmptyDir()
+                .endEmptyDir()
+                .build();
+    }
+
+    public Volume buildVolume(String volumeName, String claimName) {
+        if (StringUtils.isBlank(claimName)) {
+            return buildVolume(volumeName);
+        }
+        return new VolumeBuilder()
+                .withName(volumeName)
+                .withNewPersistentVolumeClaim()
+                    .withClaimName(claimName)
+                    .withReadOnly(false)
+                .endPersistentVolumeClaim()
+                .build();
+    }
+
+    public String getStorageClassName() {
+        return storageClassName;
+    }
+
+    public String getSize() {
+        return StringUtils.defaultIfBlank(size, DEFAULT_SIZE);
+    }
+
+    public int getMaxClaims() {
+        return maxClaims > 0 ? maxClaims : DEFAULT_MAX_CLAIMS;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PodVolume> {
+        @Override
+        public String getDisplayName() {
+            return "Leased Cache Volume";
+        }
+    }
+}
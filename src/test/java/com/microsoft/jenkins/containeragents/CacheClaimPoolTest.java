@@ -0,0 +1,38 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CacheClaimPoolTest {
+
+    @Test
+    public void testFindFree() {
+        // the agents of all leases are gone, only claims no pod mounts are free
+        List<PersistentVolumeClaim> claims = Arrays.asList(
+                claim("used-last", "agent-1", 300),
+                claim("still-mounted", "agent-2", 200),
+                claim("used-first", null, 100));
+        List<PersistentVolumeClaim> free = CacheClaimPool.findFree(claims, Collections.singleton("still-mounted"));
+        Assert.assertEquals(2, free.size());
+        Assert.assertEquals("used-first", free.get(0).getMetadata().getName());
+        Assert.assertEquals("used-last", free.get(1).getMetadata().getName());
+    }
+
+    private static PersistentVolumeClaim claim(String name, String lease, long lastUsed) {
+        PersistentVolumeClaimBuilder builder = new PersistentVolumeClaimBuilder()
+                .withNewMetadata()
+                    .withName(name)
+                    .addToAnnotations(CacheClaimPool.LAST_USED_ANNOTATION, String.valueOf(lastUsed))
+                .endMetadata();
+        if (lease != null) {
+            builder.editMetadata().addToLabels(CacheClaimPool.LEASE_LABEL_KEY, lease).endMetadata();
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,735 @@
+package com.microsoft.jenkins.containeragents;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Kubernetes API server, enough to provision agents against it: objects of any
+ * resource are kept in memory and can be created, read, listed by label and field selectors, in pages when asked
+ * for a {@code limit}, replaced, deleted and watched over web sockets.
+ *
+ * <p>Created pods are {@code Pending} and turn {@code Running} on one of the fake nodes after the configured
+ * start latency. Every request can be delayed by a configured API latency. Requests are counted by method and
+ * resource. Patches are not supported.</p>
+ */
+public class FakeKubernetesApiServer implements Closeable {
+
+    /**
+     * Names of the threads of the server, to tell them from those of the code under test.
+     */
+    public static final String THREAD_PREFIX = "fake-apiserver-";
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final Map<String, String> LIST_KINDS = new HashMap<>();
+
+    static {
+        LIST_KINDS.put("pods", "PodList");
+        LIST_KINDS.put("nodes", "NodeList");
+        LIST_KINDS.put("secrets", "SecretList");
+        LIST_KINDS.put("events", "EventList");
+        LIST_KINDS.put("namespaces", "NamespaceList");
+        LIST_KINDS.put("resourcequotas", "ResourceQuotaList");
+        LIST_KINDS.put("limitranges", "LimitRangeList");
+        LIST_KINDS.put("persistentvolumeclaims", "PersistentVolumeClaimList");
+        LIST_KINDS.put("daemonsets", "DaemonSetList");
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService connections;
+
+    private final ScheduledExecutorService lifecycle;
+
+    private final long podStartMillis;
+
+    private final long apiLatencyMillis;
+
+    // resource -> namespace/name -> object, cluster scoped objects have an empty namespace
+    private final Map<String, Map<String, ObjectNode>> store = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalRequests = new AtomicLong();
+
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Long> runningSince = new ConcurrentHashMap<>();
+
+    private final AtomicLong resourceVersion = new AtomicLong();
+
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    private final List<String> nodeNames = new ArrayList<>();
+
+    private volatile boolean closed;
+
+    /**
+     * @param nodes            the number of ready nodes of the cluster
+     * @param podStartMillis   how long a created pod stays pending
+     * @param apiLatencyMillis how long each request takes at least
+     */
+    public FakeKubernetesApiServer(int nodes, long podStartMillis, long apiLatencyMillis) throws IOException {
+        this.podStartMillis = podStartMillis;
+        this.apiLatencyMillis = apiLatencyMillis;
+        AtomicInteger threadIds = new AtomicInteger();
+        this.connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, THREAD_PREFIX + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lifecycle = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, THREAD_PREFIX + "lifecycle-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < nodes; i++) {
+            String name = "node-" + i;
+            nodeNames.add(name);
+            put("nodes", "", buildNode(name));
+        }
+        this.serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        connections.execute(this::accept);
+    }
+
+    public String getUrl() {
+        return "http://" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort() + "/";
+    }
+
+    public long getRequestCount() {
+        return totalRequests.get();
+    }
+
+    /**
+     * The requests by method and resource, e.g. {@code GET pods}, watches as {@code WATCH events}.
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * When the pod started running, null while it is pending or if it does not exist.
+     */
+    public Long getRunningSince(String podName) {
+        return runningSince.get(podName);
+    }
+
+    public int getObjectCount(String resource) {
+        Map<String, ObjectNode> objects = store.get(resource);
+        return objects == null ? 0 : objects.size();
+    }
+
+    public int getOpenWatches() {
+        return watches.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Watch watch : watches) {
+            watch.close();
+        }
+        lifecycle.shutdownNow();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!closed) {
+                Request request = Request.read(in);
+                if (request == null) {
+                    break;
+                }
+                totalRequests.incrementAndGet();
+                if (apiLatencyMillis > 0) {
+                    Thread.sleep(apiLatencyMillis);
+                }
+                if ("websocket".equalsIgnoreCase(request.headers.get("upgrade"))) {
+                    count("WATCH", request);
+                    watch(request, socket, in, out);
+                    return;
+                }
+                count(request.method, request);
+                Response response = handle(request);
+                byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 " + response.code + " " + (response.code < 400 ? "OK" : "Error") + "\r\n"
+                        + "Content-Type: application/json\r\n"
+                        + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(body);
+                out.flush();
+            }
+        } catch (SocketException | EOFException e) {
+            // the client went away
+        } catch (Exception e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void count(String method, Request request) {
+        requests.computeIfAbsent(method + " " + request.path().resource, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    private Response handle(Request request) throws IOException {
+        Path path = request.path();
+        if (path.resource == null) {
+            return new Response(200, "{\"major\":\"1\",\"minor\":\"8\",\"gitVersion\":\"v1.8.0-fake\"}");
+        }
+        switch (request.method) {
+            case "GET":
+                if (path.name == null) {
+                    return new Response(200, mapper.writeValueAsString(list(path, request.query)));
+                }
+                ObjectNode object = get(path);
+                return object == null ? notFound(path) : new Response(200, mapper.writeValueAsString(object));
+            case "POST":
+                return create(path, (ObjectNode) mapper.readTree(request.body));
+            case "PUT":
+                return replace(path, (ObjectNode) mapper.readTree(request.body));
+            case "DELETE":
+                return delete(path, request.query);
+            default:
+                return status(405, "MethodNotAllowed", request.method + " is not supported");
+        }
+    }
+
+    private ObjectNode get(Path path) {
+        Map<String, ObjectNode> objects = store.get(path.resource);
+        return objects == null ? null : objects.get(path.key());
+    }
+
+    private ObjectNode list(Path path, Map<String, String> query) {
+        ObjectNode list = mapper.createObjectNode();
+        list.put("apiVersion", "v1");
+        list.put("kind", LIST_KINDS.containsKey(path.resource) ? LIST_KINDS.get(path.resource) : "List");
+        list.putObject("metadata").put("resourceVersion", String.valueOf(resourceVersion.get()));
+        ArrayNode items = list.putArray("items");
+        List<ObjectNode> selected = select(path, query);
+        if (!query.containsKey("limit")) {
+            for (ObjectNode object : selected) {
+                items.add(object);
+            }
+            return list;
+        }
+        // pages in the order of the object keys, the continue token is the key of the last object of the page
+        int limit = Integer.parseInt(query.get("limit"));
+        String after = query.get("continue");
+        TreeMap<String, ObjectNode> sorted = new TreeMap<>();
+        for (ObjectNode object : selected) {
+            sorted.put(key(object), object);
+        }
+        for (Map.Entry<String, ObjectNode> entry
+                : (after == null ? sorted : sorted.tailMap(after, false)).entrySet()) {
+            if (items.size() == limit) {
+                ((ObjectNode) list.get("metadata")).put("continue", key((ObjectNode) items.get(limit - 1)));
+                break;
+            }
+            items.add(entry.getValue());
+        }
+        return list;
+    }
+
+    private static String key(ObjectNode object) {
+        return object.path("metadata").path("namespace").asText() + "/" + object.path("metadata").path("name").asText();
+    }
+
+    private List<ObjectNode> select(Path path, Map<String, String> query) {
+        List<ObjectNode> result = new ArrayList<>();
+        Map<String, ObjectNode> objects = store.get(path.resource);
+        if (objects == null) {
+            return result;
+        }
+        Map<String, String> labels = parseSelector(query.get("labelSelector"));
+        Map<String, String> fields = parseSelector(query.get("fieldSelector"));
+        for (ObjectNode object : objects.values()) {
+            if (matches(object, path.namespace, labels, fields)) {
+                result.add(object);
+            }
+        }
+        return result;
+    }
+
+    private Response create(Path path, ObjectNode object) {
+        String name = object.path("metadata").path("name").asText();
+        String namespace = path.namespace == null ? "" : path.namespace;
+        Map<String, ObjectNode> objects = store.computeIfAbsent(path.resource, key -> new ConcurrentHashMap<>());
+        if (objects.containsKey(namespace + "/" + name)) {
+            return status(409, "AlreadyExists", path.resource + " \"" + name + "\" already exists");
+        }
+        ObjectNode metadata = (ObjectNode) object.get("metadata");
+        if (!namespace.isEmpty()) {
+            metadata.put("namespace", namespace);
+        }
+        metadata.put("uid", UUID.randomUUID().toString());
+        metadata.put("creationTimestamp", now());
+        if ("pods".equals(path.resource)) {
+            object.putObject("status").put("phase", "Pending");
+            lifecycle.schedule(() -> start(namespace, name), podStartMillis, TimeUnit.MILLISECONDS);
+        }
+        put(path.resource, namespace, object);
+        return new Response(201, object.toString());
+    }
+
+    private Response replace(Path path, ObjectNode object) {
+        if (get(path) == null) {
+            return notFound(path);
+        }
+        put(path.resource, path.namespace == null ? "" : path.namespace, object);
+        return new Response(200, object.toString());
+    }
+
+    private Response delete(Path path, Map<String, String> query) {
+        Map<String, ObjectNode> objects = store.get(path.resource);
+        if (path.name == null) {
+            for (ObjectNode object : select(path, query)) {
+                remove(path.resource, object);
+            }
+            return status(200, null, null);
+        }
+        ObjectNode object = objects == null ? null : objects.get(path.key());
+        if (object == null) {
+            return notFound(path);
+        }
+        remove(path.resource, object);
+        return status(200, null, null);
+    }
+
+    private void start(String namespace, String name) {
+        Map<String, ObjectNode> pods = store.get("pods");
+        ObjectNode pod = pods == null ? null : pods.get(namespace + "/" + name);
+        if (pod == null) {
+            return;
+        }
+        ObjectNode updated = pod.deepCopy();
+        int node = nextNode.getAndIncrement();
+        ((ObjectNode) updated.with("spec")).put("nodeName", nodeNames.isEmpty() ? "node-0"
+                : nodeNames.get(node % nodeNames.size()));
+        ObjectNode status = updated.putObject("status");
+        status.put("phase", "Running");
+        status.put("podIP", "10.244." + (node / 250 % 250) + "." + (node % 250 + 1));
+        status.put("startTime", now());
+        ArrayNode containerStatuses = status.putArray("containerStatuses");
+        for (JsonNode container : updated.path("spec").path("containers")) {
+            ObjectNode containerStatus = containerStatuses.addObject();
+            containerStatus.put("name", container.path("name").asText());
+            containerStatus.put("image", container.path("image").asText());
+            containerStatus.put("ready", true);
+            containerStatus.put("restartCount", 0);
+            containerStatus.putObject("state").putObject("running").put("startedAt", now());
+        }
+        put("pods", namespace, updated);
+        runningSince.put(name, System.currentTimeMillis());
+    }
+
+    private void put(String resource, String namespace, ObjectNode object) {
+        ObjectNode metadata = (ObjectNode) object.with("metadata");
+        metadata.put("resourceVersion", String.valueOf(resourceVersion.incrementAndGet()));
+        String key = namespace + "/" + metadata.path("name").asText();
+        ObjectNode previous = store.computeIfAbsent(resource, k -> new ConcurrentHashMap<>()).put(key, object);
+        notify(resource, previous == null ? "ADDED" : "MODIFIED", object);
+    }
+
+    private void remove(String resource, ObjectNode object) {
+        String namespace = object.path("metadata").path("namespace").asText("");
+        String name = object.path("metadata").path("name").asText();
+        store.get(resource).remove(namespace + "/" + name);
+        if ("pods".equals(resource)) {
+            runningSince.remove(name);
+        }
+        notify(resource, "DELETED", object);
+    }
+
+    private void notify(String resource, String type, ObjectNode object) {
+        for (Watch watch : watches) {
+            if (watch.resource.equals(resource)
+                    && matches(object, watch.namespace, watch.labels, watch.fields)) {
+                ObjectNode event = mapper.createObjectNode();
+                event.put("type", type);
+                event.set("object", object);
+                watch.send(event.toString());
+            }
+        }
+    }
+
+    private void watch(Request request, Socket socket, InputStream in, OutputStream out) throws IOException {
+        String accept = Base64.encodeBase64String(DigestUtils.sha1(request.headers.get("sec-websocket-key")
+                + WEBSOCKET_GUID));
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        Path path = request.path();
+        Watch watch = new Watch(path.resource, path.namespace, parseSelector(request.query.get("labelSelector")),
+                parseSelector(request.query.get("fieldSelector")), socket, out);
+        watches.add(watch);
+        try {
+            watch.readFrames(in);
+        } finally {
+            watches.remove(watch);
+        }
+    }
+
+    private Response notFound(Path path) {
+        return status(404, "NotFound", path.resource + " \"" + path.name + "\" not found");
+    }
+
+    private Response status(int code, String reason, String message) {
+        ObjectNode status = mapper.createObjectNode();
+        status.put("apiVersion", "v1");
+        status.put("kind", "Status");
+        status.putObject("metadata");
+        status.put("status", code < 400 ? "Success" : "Failure");
+        if (reason != null) {
+            status.put("reason", reason);
+            status.put("message", message);
+        }
+        status.put("code", code);
+        return new Response(code, status.toString());
+    }
+
+    private static boolean matches(ObjectNode object, String namespace, Map<String, String> labels,
+                                   Map<String, String> fields) {
+        JsonNode metadata = object.path("metadata");
+        if (namespace != null && !namespace.equals(metadata.path("namespace").asText(""))) {
+            return false;
+        }
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            JsonNode value = metadata.path("labels").path(label.getKey());
+            if (value.isMissingNode() || (label.getValue() != null && !label.getValue().equals(value.asText()))) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            JsonNode value = object;
+            for (String part : field.getKey().split("\\.")) {
+                value = value.path(part);
+            }
+            if (!String.valueOf(field.getValue()).equals(value.asText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equality selectors, {@code key=value} or {@code key} for the existence of a label.
+     */
+    private static Map<String, String> parseSelector(String selector) {
+        Map<String, String> result = new HashMap<>();
+        if (selector == null || selector.isEmpty()) {
+            return result;
+        }
+        for (String term : selector.split(",")) {
+            int equals = term.indexOf('=');
+            if (equals < 0) {
+                result.put(term.trim(), null);
+            } else {
+                result.put(term.substring(0, equals).replace("!", "").trim(),
+                        term.substring(term.lastIndexOf('=') + 1).trim());
+            }
+        }
+        return result;
+    }
+
+    private ObjectNode buildNode(String name) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("apiVersion", "v1");
+        node.put("kind", "Node");
+        ObjectNode metadata = node.putObject("metadata");
+        metadata.put("name", name);
+        metadata.putObject("labels").put(PodScheduling.HOSTNAME_LABEL, name);
+        ObjectNode status = node.putObject("status");
+        status.putObject("allocatable").put("cpu", "64").put("memory", "256Gi").put("pods", "1000");
+        status.putObject("capacity").put("cpu", "64").put("memory", "256Gi").put("pods", "1000");
+        status.putArray("conditions").addObject().put("type", "Ready").put("status", "True");
+        return node;
+    }
+
+    private static String now() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    private static final class Path {
+        private String namespace;
+        private String resource;
+        private String name;
+
+        String key() {
+            return (namespace == null ? "" : namespace) + "/" + name;
+        }
+    }
+
+    private static final class Response {
+        private final int code;
+        private final String body;
+
+        Response(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private static final class Request {
+        private String method;
+        private String target;
+        private final Map<String, String> headers = new HashMap<>();
+        private final Map<String, String> query = new HashMap<>();
+        private byte[] body = new byte[0];
+
+        static Request read(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null || line.isEmpty()) {
+                return null;
+            }
+            Request request = new Request();
+            String[] parts = line.split(" ");
+            request.method = parts[0];
+            request.target = parts[1];
+            for (String header = readLine(in); header != null && !header.isEmpty(); header = readLine(in)) {
+                int colon = header.indexOf(':');
+                request.headers.put(header.substring(0, colon).trim().toLowerCase(),
+                        header.substring(colon + 1).trim());
+            }
+            if (request.target.contains("?")) {
+                for (String pair : request.target.substring(request.target.indexOf('?') + 1).split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        request.query.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+                    }
+                }
+            }
+            if (request.headers.containsKey("content-length")) {
+                request.body = readFully(in, Integer.parseInt(request.headers.get("content-length")));
+            } else if ("chunked".equalsIgnoreCase(request.headers.get("transfer-encoding"))) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                for (int size = Integer.parseInt(readLine(in).trim(), 16); size > 0;
+                     size = Integer.parseInt(readLine(in).trim(), 16)) {
+                    body.write(readFully(in, size));
+                    readLine(in);
+                }
+                readLine(in);
+                request.body = body.toByteArray();
+            }
+            return request;
+        }
+
+        Path path() {
+            String raw = target.contains("?") ? target.substring(0, target.indexOf('?')) : target;
+            List<String> segments = new ArrayList<>();
+            for (String segment : raw.split("/")) {
+                if (!segment.isEmpty()) {
+                    segments.add(segment);
+                }
+            }
+            // /api/v1/... or /apis/group/version/...
+            int start = segments.isEmpty() ? 0 : "apis".equals(segments.get(0)) ? 3 : 2;
+            List<String> rest = segments.size() > start ? segments.subList(start, segments.size())
+                    : new ArrayList<>();
+            Path path = new Path();
+            if (rest.size() >= 3 && "namespaces".equals(rest.get(0))) {
+                path.namespace = rest.get(1);
+                path.resource = rest.get(2);
+                path.name = rest.size() > 3 ? rest.get(3) : null;
+            } else if (!rest.isEmpty()) {
+                path.resource = rest.get(0);
+                path.name = rest.size() > 1 ? rest.get(1) : null;
+            }
+            return path;
+        }
+
+        private static String decode(String value) throws UnsupportedEncodingException {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    return line.size() == 0 ? null : line.toString("ISO-8859-1");
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            return line.toString("ISO-8859-1");
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] result = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(result, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return result;
+    }
+
+    /**
+     * A watch over a web socket: events go out as text frames, pings are answered, a close frame ends it.
+     */
+    private static final class Watch {
+        private static final int OPCODE_TEXT = 0x1;
+        private static final int OPCODE_CLOSE = 0x8;
+        private static final int OPCODE_PING = 0x9;
+        private static final int OPCODE_PONG = 0xA;
+
+        private final String resource;
+        private final String namespace;
+        private final Map<String, String> labels;
+        private final Map<String, String> fields;
+        private final Socket socket;
+        private final OutputStream out;
+
+        Watch(String resource, String namespace, Map<String, String> labels, Map<String, String> fields,
+              Socket socket, OutputStream out) {
+            this.resource = resource;
+            this.namespace = namespace;
+            this.labels = labels;
+            this.fields = fields;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void send(String text) {
+            try {
+                frame(OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void readFrames(InputStream in) throws IOException {
+            while (true) {
+                int first = in.read();
+                int second = in.read();
+                if (first < 0 || second < 0) {
+                    return;
+                }
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = ((in.read() & 0xFF) << 8) | (in.read() & 0xFF);
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | (in.read() & 0xFF);
+                    }
+                }
+                byte[] mask = (second & 0x80) != 0 ? readFully(in, 4) : null;
+                byte[] payload = readFully(in, (int) length);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                }
+                int opcode = first & 0x0F;
+                if (opcode == OPCODE_PING) {
+                    frame(OPCODE_PONG, payload);
+                } else if (opcode == OPCODE_CLOSE) {
+                    frame(OPCODE_CLOSE, payload);
+                    return;
+                }
+            }
+        }
+
+        private void frame(int opcode, byte[] payload) throws IOException {
+            synchronized (out) {
+                out.write(0x80 | opcode);
+                if (payload.length < 126) {
+                    out.write(payload.length);
+                } else if (payload.length < 65536) {
+                    out.write(126);
+                    out.write(payload.length >>> 8);
+                    out.write(payload.length & 0xFF);
+                } else {
+                    out.write(127);
+                    for (int i = 7; i >= 0; i--) {
+                        out.write(i >= 4 ? 0 : (payload.length >>> (8 * i)) & 0xFF);
+                    }
+                }
+                out.write(payload);
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.extensions.DaemonSet;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ImagePrePullerTest {
+
+    @Test
+    public void testMatches() {
+        List<String> names = Arrays.asList("docker.io/library/maven@sha256:0123", "docker.io/library/maven:3");
+        Assert.assertTrue(ImagePrePuller.matches(names, "maven:3"));
+        Assert.assertTrue(ImagePrePuller.matches(names, "library/maven:3"));
+        Assert.assertFalse(ImagePrePuller.matches(names, "maven:3.5"));
+        Assert.assertFalse(ImagePrePuller.matches(names, "maven"));
+
+        List<String> latest = Arrays.asList("myregistry.azurecr.io/jenkins/agent:latest");
+        Assert.assertTrue(ImagePrePuller.matches(latest, "myregistry.azurecr.io/jenkins/agent"));
+        Assert.assertFalse(ImagePrePuller.matches(latest, "jenkins/agent:2"));
+        Assert.assertFalse(ImagePrePuller.matches(null, "jenkins/agent"));
+    }
+
+    @Test
+    public void testDaemonSetFollowsTemplateConstraints() {
+        KubernetesCloud cloud = Mockito.mock(KubernetesCloud.class);
+        Mockito.when(cloud.getDisplayName()).thenReturn("cloud");
+        PodTemplate gpu = new PodTemplate();
+        gpu.setImage("cuda:9");
+        gpu.setNodeSelector("accelerator=nvidia");
+        gpu.setTolerations("gpu=true:NoSchedule");
+        PodTemplate plain = new PodTemplate();
+        plain.setImage("maven:3");
+        Assert.assertNotEquals(ImagePrePuller.getGroupKey(gpu), ImagePrePuller.getGroupKey(plain));
+
+        DaemonSet daemonSet = new ImagePrePuller(cloud).buildDaemonSet("jenkins-prepull-cloud-0123abcd", "0123abcd",
+                "hash", Collections.singleton("cuda:9"), Collections.<String>emptySet(), gpu);
+        PodSpec spec = daemonSet.getSpec().getTemplate().getSpec();
+        Assert.assertEquals(Collections.singletonMap("accelerator", "nvidia"), spec.getNodeSelector());
+        Assert.assertEquals(1, spec.getTolerations().size());
+        Assert.assertEquals("gpu", spec.getTolerations().get(0).getKey());
+        Assert.assertEquals("NoSchedule", spec.getTolerations().get(0).getEffect());
+        Assert.assertEquals("0123abcd",
+                daemonSet.getSpec().getSelector().getMatchLabels().get(ImagePrePuller.GROUP_LABEL_KEY));
+    }
+
+    @Test
+    public void testSyncOnlyWhileDaemonSetsAreLeft() throws Exception {
+        try (FakeKubernetesApiServer server = new FakeKubernetesApiServer(0, 0, 0)) {
+            KubernetesClient client = new DefaultKubernetesClient(new ConfigBuilder()
+                    .withMasterUrl(server.getUrl())
+                    .withNamespace("default")
+                    .build());
+            KubernetesCloud cloud = Mockito.mock(KubernetesCloud.class);
+            Mockito.when(cloud.getDisplayName()).thenReturn("cloud");
+            Mockito.when(cloud.getNamespace()).thenReturn("default");
+            Mockito.when(cloud.getTemplates()).thenReturn(Collections.<PodTemplate>emptyList());
+            Mockito.doReturn(client).when(cloud).connect();
+            ImagePrePuller prePuller = new ImagePrePuller(cloud);
+
+            // left from when pre-pulling was on
+            PodTemplate template = new PodTemplate();
+            client.extensions().daemonSets().inNamespace("default").create(prePuller.buildDaemonSet(
+                    "jenkins-prepull-cloud-0123abcd", "0123abcd", "hash", Collections.singleton("maven:3"),
+                    Collections.<String>emptySet(), template));
+
+            Assert.assertTrue(prePuller.isSyncNeeded());
+            prePuller.sync();
+            Assert.assertEquals(0, server.getObjectCount("daemonsets"));
+            Assert.assertFalse(prePuller.isSyncNeeded());
+
+            Mockito.when(cloud.isPrePullImages()).thenReturn(true);
+            Assert.assertTrue(prePuller.isSyncNeeded());
+            client.close();
+        }
+    }
+}
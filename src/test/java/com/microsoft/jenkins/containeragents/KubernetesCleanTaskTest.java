@@ -0,0 +1,137 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class KubernetesCleanTaskTest {
+
+    private static final String NAMESPACE = "default";
+
+    private static final int PODS = 7;
+
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    private FakeKubernetesApiServer server;
+
+    private KubernetesClient client;
+
+    private KubernetesCloud cloud;
+
+    private PodDeletionQueue queue;
+
+    // when every pod created by the test is old enough to be cleaned
+    private long now;
+
+    private final KubernetesCleanTask task = new KubernetesCleanTask();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeKubernetesApiServer(0, 0, 0);
+        client = new DefaultKubernetesClient(new ConfigBuilder()
+                .withMasterUrl(server.getUrl())
+                .withNamespace(NAMESPACE)
+                .build());
+        queue = Mockito.mock(PodDeletionQueue.class);
+        cloud = Mockito.mock(KubernetesCloud.class);
+        Mockito.when(cloud.getNamespace()).thenReturn(NAMESPACE);
+        Mockito.when(cloud.getPodDeletionQueue()).thenReturn(queue);
+        Mockito.doReturn(client).when(cloud).connect();
+
+        for (int i = 0; i < PODS; i++) {
+            createPod("agent-" + i, PodTemplate.getInstanceLabelValue());
+        }
+        // an agent of another Jenkins
+        createPod("other-0", "other");
+        now = System.currentTimeMillis() + KubernetesCleanTask.MIN_POD_AGE_MILLIS + TimeUnit.SECONDS.toMillis(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testPagesThroughOrphans() {
+        // created after the cycle started
+        Pod young = client.pods().inNamespace(NAMESPACE).withName("agent-5").get();
+        young.getMetadata().setCreationTimestamp(new DateTime(now).toString());
+        client.pods().inNamespace(NAMESPACE).withName("agent-5").replace(young);
+
+        long lists = getPodLists();
+        Assert.assertEquals(PODS - 2, task.clean(cloud, Collections.singleton("agent-2"), 100, 2, now));
+        // 7 pods in pages of 2
+        Assert.assertEquals(4, getPodLists() - lists);
+
+        for (String podName : new String[]{"agent-0", "agent-1", "agent-3", "agent-4", "agent-6"}) {
+            Mockito.verify(queue).delete(podName);
+        }
+        Mockito.verify(queue, Mockito.never()).delete("agent-2");
+        Mockito.verify(queue, Mockito.never()).delete("agent-5");
+        Mockito.verify(queue, Mockito.never()).delete("other-0");
+    }
+
+    @Test
+    public void testStopsAtBudget() {
+        long lists = getPodLists();
+        Assert.assertEquals(3, task.clean(cloud, Collections.<String>emptySet(), 3, 2, now));
+        // the second page used up the budget, the rest is left to the next cycle
+        Assert.assertEquals(2, getPodLists() - lists);
+        Mockito.verify(queue, Mockito.times(3)).delete(Mockito.anyString());
+    }
+
+    @Test
+    public void testTooYoung() {
+        Assert.assertEquals(0, task.clean(cloud, Collections.<String>emptySet(), 100, 2,
+                now - KubernetesCleanTask.MIN_POD_AGE_MILLIS));
+        Mockito.verify(queue, Mockito.never()).delete(Mockito.anyString());
+    }
+
+    @Test
+    public void testListFails() throws Exception {
+        Mockito.doThrow(new KubernetesClientException("connection refused")).when(cloud).connect();
+        Assert.assertEquals(0, task.clean(cloud, Collections.<String>emptySet(), 100, 2, now));
+        Mockito.verify(queue, Mockito.never()).delete(Mockito.anyString());
+    }
+
+    @Test
+    public void testIsOldEnough() {
+        long created = new DateTime("2018-03-01T10:00:00Z").getMillis();
+        Assert.assertTrue(KubernetesCleanTask.isOldEnough("2018-03-01T10:00:00Z",
+                created + KubernetesCleanTask.MIN_POD_AGE_MILLIS));
+        Assert.assertFalse(KubernetesCleanTask.isOldEnough("2018-03-01T10:00:00Z",
+                created + KubernetesCleanTask.MIN_POD_AGE_MILLIS - 1));
+        Assert.assertFalse(KubernetesCleanTask.isOldEnough("", created));
+        Assert.assertFalse(KubernetesCleanTask.isOldEnough("yesterday", created));
+    }
+
+    private void createPod(String name, String instance) {
+        client.pods().inNamespace(NAMESPACE).createNew()
+                .withNewMetadata()
+                    .withName(name)
+                    .addToLabels(PodTemplate.LABEL_KEY, PodTemplate.LABEL_VALUE)
+                    .addToLabels(PodTemplate.INSTANCE_LABEL_KEY, instance)
+                .endMetadata()
+                .done();
+    }
+
+    private long getPodLists() {
+        Long count = server.getRequestCounts().get("GET pods");
+        return count == null ? 0 : count;
+    }
+}
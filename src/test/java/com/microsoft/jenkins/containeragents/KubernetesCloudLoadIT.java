@@ -0,0 +1,227 @@
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.builders.KubernetesCloudBuilder;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.Channel;
+import hudson.slaves.NodeProvisioner;
+import hudson.slaves.SlaveComputer;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness for {@link KubernetesCloud#provision}: provisions many agents against a
+ * {@link FakeKubernetesApiServer} and reports provisions per second, API requests per agent, threads and heap
+ * growth. Runs with the integration tests, sized by system properties:
+ * <ul>
+ *     <li>{@code load.agents}, the agents to provision, 1000 by default</li>
+ *     <li>{@code load.batch}, the excess workload of each provision call, 50 by default</li>
+ *     <li>{@code load.podStartMillis}, how long pods stay pending, 2000 by default</li>
+ *     <li>{@code load.connectMillis}, how long a running agent takes to connect, 500 by default</li>
+ *     <li>{@code load.apiLatencyMillis}, the latency of each API request, 0 by default</li>
+ *     <li>{@code load.nodes}, the nodes of the fake cluster, 50 by default</li>
+ * </ul>
+ *
+ * <p>Agents do not run a remoting agent, a fake connector puts a mock channel on the computer of each agent once
+ * its pod has been running for the connect latency, which is all the provisioning waits for.</p>
+ */
+public class KubernetesCloudLoadIT {
+
+    private static final int AGENTS = Integer.getInteger("load.agents", 1000);
+    private static final int BATCH = Integer.getInteger("load.batch", 50);
+    private static final long POD_START_MILLIS = Long.getLong("load.podStartMillis", 2000);
+    private static final long CONNECT_MILLIS = Long.getLong("load.connectMillis", 500);
+    private static final long API_LATENCY_MILLIS = Long.getLong("load.apiLatencyMillis", 0);
+    private static final int NODES = Integer.getInteger("load.nodes", 50);
+
+    private static final String LABEL = "load";
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 200;
+
+    static {
+        // provisioning 1000 agents takes longer than the default timeout of a test
+        System.setProperty("jenkins.test.timeout", "0");
+    }
+
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    private FakeKubernetesApiServer server;
+
+    private ScheduledExecutorService sampler;
+
+    private final AtomicInteger peakThreads = new AtomicInteger();
+
+    private final AtomicInteger connected = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeKubernetesApiServer(NODES, POD_START_MILLIS, API_LATENCY_MILLIS);
+        sampler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sampler.shutdownNow();
+        // the mock channels would break the disconnect on shutdown
+        for (Node node : rule.jenkins.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer instanceof SlaveComputer) {
+                setChannel((SlaveComputer) computer, null);
+            }
+        }
+        server.close();
+    }
+
+    @Test
+    public void provisionAgents() throws Exception {
+        KubernetesCloud cloud = new KubernetesCloudBuilder()
+                .withCloudName("load")
+                .withNamespace("default")
+                .withStartupTimeout(30)
+                .addNewTemplate()
+                    .withName("load")
+                    .withLabel(LABEL)
+                    .withIdleRetentionStrategy(60)
+                    .withRequestCpu("100")
+                    .withRequestMemory("128")
+                    .withJNLPLaunchMethod()
+                .endTemplate()
+                .build();
+        cloud.setClientFactory(new KubernetesClientFactory() {
+            @Override
+            public KubernetesClient create(KubernetesCloud target) {
+                return new DefaultKubernetesClient(new ConfigBuilder()
+                        .withMasterUrl(server.getUrl())
+                        .withNamespace("default")
+                        .build());
+            }
+        });
+        rule.jenkins.clouds.add(cloud);
+        Label label = rule.jenkins.getLabel(LABEL);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = countThreads();
+        long requestsBefore = server.getRequestCount();
+        sampler.scheduleWithFixedDelay(this::sample, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        long started = System.currentTimeMillis();
+        List<Future<Node>> futures = new ArrayList<>();
+        while (futures.size() < AGENTS) {
+            int before = futures.size();
+            for (NodeProvisioner.PlannedNode planned
+                    : cloud.provision(label, Math.min(BATCH, AGENTS - futures.size()))) {
+                futures.add(planned.future);
+            }
+            if (futures.size() == before) {
+                // nothing admitted, e.g. all concurrent provisions taken, wait for some to finish
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            }
+        }
+        long submitted = System.currentTimeMillis();
+
+        int failed = 0;
+        for (Future<Node> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        long finished = System.currentTimeMillis();
+        sampler.shutdownNow();
+
+        long requests = server.getRequestCount() - requestsBefore;
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+        double seconds = (finished - started) / 1000.0;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%nKubernetesCloud load: %d agents, batches of %d, pods start in %d ms, "
+                        + "agents connect in %d ms, API latency %d ms, %d nodes%n",
+                AGENTS, BATCH, POD_START_MILLIS, CONNECT_MILLIS, API_LATENCY_MILLIS, NODES));
+        report.append(String.format("  provisioned      %d, failed %d, connected %d%n", AGENTS - failed, failed,
+                connected.get()));
+        report.append(String.format("  submitted in     %.1f s%n", (submitted - started) / 1000.0));
+        report.append(String.format("  all done in      %.1f s, %.1f provisions/s%n", seconds,
+                (AGENTS - failed) / seconds));
+        report.append(String.format("  API requests     %d, %.1f per agent%n", requests, (double) requests / AGENTS));
+        for (Map.Entry<String, Long> entry : server.getRequestCounts().entrySet()) {
+            report.append(String.format("    %-28s %.2f per agent%n", entry.getKey(),
+                    (double) entry.getValue() / AGENTS));
+        }
+        report.append(String.format("  threads          %d before, %d at peak, fake server excluded%n",
+                threadsBefore, peakThreads.get()));
+        report.append(String.format("  heap growth      %.1f MiB, %.1f KiB per agent%n",
+                (heapAfter - heapBefore) / 1024.0 / 1024.0, (heapAfter - heapBefore) / 1024.0 / AGENTS));
+        report.append(String.format("  open watches     %d%n", server.getOpenWatches()));
+        System.out.println(report);
+
+        Assert.assertEquals("failed provisions", 0, failed);
+        Assert.assertEquals(AGENTS, server.getObjectCount("pods"));
+    }
+
+    /**
+     * Samples the threads and connects the agents whose pod has been running long enough.
+     */
+    private void sample() {
+        try {
+            peakThreads.accumulateAndGet(countThreads(), Math::max);
+            long now = System.currentTimeMillis();
+            for (Node node : rule.jenkins.getNodes()) {
+                if (!(node instanceof KubernetesAgent)) {
+                    continue;
+                }
+                Long running = server.getRunningSince(node.getNodeName());
+                Computer computer = node.toComputer();
+                if (running != null && now - running >= CONNECT_MILLIS
+                        && computer instanceof SlaveComputer && computer.isOffline()) {
+                    setChannel((SlaveComputer) computer, Mockito.mock(Channel.class));
+                    connected.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int countThreads() {
+        int result = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith(FakeKubernetesApiServer.THREAD_PREFIX)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static void setChannel(SlaveComputer computer, Channel channel) throws Exception {
+        Field field = SlaveComputer.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        field.set(computer, channel);
+    }
+}
@@ -1,10 +1,14 @@
 package com.microsoft.jenkins.containeragents;
 
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import hudson.model.Computer;
 import hudson.slaves.Cloud;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
 
 /**
  * Created by xianyu on 7/20/2017.
@@ -24,4 +28,50 @@ public class KubernetesCloudTest {
         final Cloud actual = rule.jenkins.clouds.get(0);
         rule.assertEqualBeans(cloud, actual, "name");
     }
+
+    @Test
+    public void testReconcileRemovesAgentsWithoutPod() throws Exception {
+        KubernetesAgent gone = Mockito.mock(KubernetesAgent.class);
+        KubernetesCloud.reconcileAgent(gone, null);
+        Mockito.verify(gone).terminate();
+
+        KubernetesAgent succeeded = Mockito.mock(KubernetesAgent.class);
+        KubernetesCloud.reconcileAgent(succeeded, pod("Succeeded"));
+        Mockito.verify(succeeded).terminate();
+    }
+
+    @Test
+    public void testReconcileReconnectsSshAgents() throws Exception {
+        Computer computer = Mockito.mock(Computer.class);
+        Mockito.when(computer.isOffline()).thenReturn(true);
+        KubernetesAgent agent = Mockito.mock(KubernetesAgent.class);
+        Mockito.when(agent.isSshLaunchType()).thenReturn(true);
+        Mockito.when(agent.toComputer()).thenReturn(computer);
+
+        KubernetesCloud.reconcileAgent(agent, pod("Running"));
+        Mockito.verify(agent).setHost("10.0.0.5");
+        Mockito.verify(agent).save();
+        Mockito.verify(computer).connect(false);
+        Mockito.verify(agent, Mockito.never()).terminate();
+    }
+
+    @Test
+    public void testReconcileLeavesPendingAgents() throws Exception {
+        Computer computer = Mockito.mock(Computer.class);
+        Mockito.when(computer.isOffline()).thenReturn(true);
+        KubernetesAgent agent = Mockito.mock(KubernetesAgent.class);
+        Mockito.when(agent.isSshLaunchType()).thenReturn(true);
+        Mockito.when(agent.toComputer()).thenReturn(computer);
+
+        KubernetesCloud.reconcileAgent(agent, pod("Pending"));
+        Mockito.verify(agent, Mockito.never()).terminate();
+        Mockito.verify(computer, Mockito.never()).connect(Mockito.anyBoolean());
+    }
+
+    private static Pod pod(String phase) {
+        return new PodBuilder()
+                .withNewMetadata().withName("agent-1").endMetadata()
+                .withNewStatus().withPhase(phase).withPodIP("10.0.0.5").endStatus()
+                .build();
+    }
 }
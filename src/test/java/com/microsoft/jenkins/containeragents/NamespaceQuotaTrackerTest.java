@@ -0,0 +1,200 @@
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import hudson.model.Label;
+import io.fabric8.kubernetes.api.model.LimitRange;
+import io.fabric8.kubernetes.api.model.LimitRangeBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceQuota;
+import io.fabric8.kubernetes.api.model.ResourceQuotaBuilder;
+import io.fabric8.kubernetes.api.model.Status;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+public class NamespaceQuotaTrackerTest {
+
+    private static final String NAMESPACE = "default";
+
+    private static final long WAIT_MILLIS = 10000;
+
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    private FakeKubernetesApiServer server;
+
+    private KubernetesClient client;
+
+    private NamespaceQuotaTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeKubernetesApiServer(0, 0, 0);
+        client = new DefaultKubernetesClient(new ConfigBuilder()
+                .withMasterUrl(server.getUrl())
+                .withNamespace(NAMESPACE)
+                .build());
+        tracker = new NamespaceQuotaTracker("key", client, NAMESPACE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tracker.close();
+        server.close();
+    }
+
+    @Test
+    public void testReserveWithinQuota() {
+        client.resourceQuotas().inNamespace(NAMESPACE).create(quota("3", "2", "0", "0"));
+
+        List<NamespaceQuotaTracker.Reservation> reserved = tracker.reserve(template("800", "512"), null, 5);
+        Assert.assertEquals(2, reserved.size());
+        Assert.assertEquals(0, admitted(template("800", "512"), 1));
+        Assert.assertEquals(1, admitted(template("400", "512"), 1));
+    }
+
+    @Test
+    public void testReleaseGivesQuotaBack() {
+        client.resourceQuotas().inNamespace(NAMESPACE).create(quota("2", "4", "0", "0"));
+
+        List<NamespaceQuotaTracker.Reservation> reserved = tracker.reserve(template("500", "512"), null, 2);
+        Assert.assertEquals(2, reserved.size());
+        Assert.assertEquals(0, admitted(template("500", "512"), 1));
+
+        reserved.get(0).release();
+        // a second release must not give the quota back twice
+        reserved.get(0).release();
+        Assert.assertEquals(1, admitted(template("500", "512"), 2));
+    }
+
+    @Test
+    public void testDeletedPodIsCredited() throws Exception {
+        client.resourceQuotas().inNamespace(NAMESPACE).create(quota("2", "4", "0", "0"));
+
+        List<NamespaceQuotaTracker.Reservation> reserved = tracker.reserve(template("500", "512"), null, 2);
+        reserved.get(0).commit("agent-0");
+        reserved.get(1).commit("agent-1");
+        // the quota controller accounts for both pods
+        client.resourceQuotas().inNamespace(NAMESPACE).createOrReplace(quota("2", "4", "2", "1"));
+        waitFor(() -> admitted(template("500", "512"), 1) == 0);
+
+        tracker.podDeleted("agent-0");
+        Assert.assertEquals(1, admitted(template("500", "512"), 2));
+        tracker.podDeleted("unknown");
+        Assert.assertEquals(1, admitted(template("500", "512"), 2));
+
+        // the next status is authoritative, e.g. a pod of somebody else took the place, the credit is dropped
+        client.resourceQuotas().inNamespace(NAMESPACE).createOrReplace(quota("2", "4", "2", "1"));
+        waitFor(() -> admitted(template("500", "512"), 2) == 0);
+    }
+
+    @Test
+    public void testLimitRangeDefaults() {
+        LimitRange limitRange = new LimitRangeBuilder()
+                .withNewMetadata().withName("defaults").endMetadata()
+                .withNewSpec()
+                    .addNewLimit()
+                        .withType("Container")
+                        .addToDefault("cpu", new Quantity("1"))
+                        .addToDefault("memory", new Quantity("1Gi"))
+                        .addToDefaultRequest("memory", new Quantity("256Mi"))
+                    .endLimit()
+                .endSpec()
+                .build();
+        client.limitRanges().inNamespace(NAMESPACE).create(limitRange);
+        tracker.reserve(template(null, null), null, 0);
+
+        Map<String, Long> usage = tracker.podUsage(template(null, null));
+        Assert.assertEquals(Long.valueOf(1), usage.get(NamespaceQuotaTracker.PODS));
+        Assert.assertEquals(Long.valueOf(1000), usage.get(NamespaceQuotaTracker.LIMITS_CPU));
+        // a missing request defaults to the limit
+        Assert.assertEquals(Long.valueOf(1000), usage.get(NamespaceQuotaTracker.REQUESTS_CPU));
+        Assert.assertEquals(Long.valueOf(256 * QuantityUtils.BYTES_IN_MI),
+                usage.get(NamespaceQuotaTracker.REQUESTS_MEMORY));
+        Assert.assertEquals(Long.valueOf(1024 * QuantityUtils.BYTES_IN_MI),
+                usage.get(NamespaceQuotaTracker.LIMITS_MEMORY));
+
+        // the template wins over the defaults
+        usage = tracker.podUsage(template("250", "128"));
+        Assert.assertEquals(Long.valueOf(250), usage.get(NamespaceQuotaTracker.REQUESTS_CPU));
+        Assert.assertEquals(Long.valueOf(128 * QuantityUtils.BYTES_IN_MI),
+                usage.get(NamespaceQuotaTracker.REQUESTS_MEMORY));
+    }
+
+    @Test
+    public void testDeferredLabelIsWokenUp() {
+        client.resourceQuotas().inNamespace(NAMESPACE).create(quota("1", "4", "0", "0"));
+        Label label = rule.jenkins.getLabel("quota");
+
+        List<NamespaceQuotaTracker.Reservation> reserved = tracker.reserve(template("500", "512"), label, 2);
+        Assert.assertEquals(1, reserved.size());
+        Assert.assertTrue(tracker.isDeferred(label));
+
+        reserved.get(0).release();
+        Assert.assertFalse(tracker.isDeferred(label));
+    }
+
+    @Test
+    public void testIsQuotaExceeded() {
+        Assert.assertTrue(NamespaceQuotaTracker.isQuotaExceeded(new KubernetesClientException(
+                "pods \"agent\" is forbidden: exceeded quota: agents, requested: pods=1, used: pods=3, limited: "
+                        + "pods=3", 403, new Status())));
+        Assert.assertFalse(NamespaceQuotaTracker.isQuotaExceeded(new KubernetesClientException(
+                "pods \"agent\" is forbidden: User cannot create pods", 403, new Status())));
+        Assert.assertFalse(NamespaceQuotaTracker.isQuotaExceeded(new IllegalStateException("exceeded quota")));
+    }
+
+    /**
+     * The number of pods of the template the tracker admits now, without keeping their reservations.
+     */
+    private int admitted(PodTemplate template, int count) {
+        List<NamespaceQuotaTracker.Reservation> reserved = tracker.reserve(template, null, count);
+        for (NamespaceQuotaTracker.Reservation reservation : reserved) {
+            reservation.release();
+        }
+        return reserved.size();
+    }
+
+    private static PodTemplate template(String requestCpu, String requestMemory) {
+        PodTemplate template = new PodTemplate();
+        template.setName("quota");
+        template.setRequestCpu(requestCpu);
+        template.setRequestMemory(requestMemory);
+        return template;
+    }
+
+    private static ResourceQuota quota(String pods, String cpu, String usedPods, String usedCpu) {
+        return new ResourceQuotaBuilder()
+                .withNewMetadata().withName("agents").endMetadata()
+                .withNewSpec()
+                    .addToHard("pods", new Quantity(pods))
+                    .addToHard("requests.cpu", new Quantity(cpu))
+                .endSpec()
+                .withNewStatus()
+                    .addToHard("pods", new Quantity(pods))
+                    .addToHard("requests.cpu", new Quantity(cpu))
+                    .addToUsed("pods", new Quantity(usedPods))
+                    .addToUsed("requests.cpu", new Quantity(usedCpu))
+                .endStatus()
+                .build();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+}
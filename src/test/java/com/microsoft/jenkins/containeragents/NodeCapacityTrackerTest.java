@@ -0,0 +1,69 @@
+package com.microsoft.jenkins.containeragents;
+
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.PodSpecBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NodeCapacityTrackerTest {
+
+    @Test
+    public void testContainersAreSummed() {
+        PodSpec spec = new PodSpecBuilder()
+                .withContainers(container("500m", "256Mi"), container("250m", "128Mi"), container(null, null))
+                .build();
+        long[] requests = NodeCapacityTracker.getRequests(spec);
+        Assert.assertEquals(750, requests[0]);
+        Assert.assertEquals(384 * QuantityUtils.BYTES_IN_MI, requests[1]);
+    }
+
+    @Test
+    public void testLargestInitContainerCounts() {
+        // the init containers run one at a time, so only the largest one counts, and only where it exceeds the sum
+        PodSpec spec = new PodSpecBuilder()
+                .withInitContainers(container("2", "64Mi"), container("1", "128Mi"))
+                .withContainers(container("500m", "256Mi"), container("250m", "128Mi"))
+                .build();
+        long[] requests = NodeCapacityTracker.getRequests(spec);
+        Assert.assertEquals(2000, requests[0]);
+        Assert.assertEquals(384 * QuantityUtils.BYTES_IN_MI, requests[1]);
+    }
+
+    @Test
+    public void testAdmitsWithoutSyncedCapacity() {
+        KubernetesClient client = Mockito.mock(KubernetesClient.class);
+        Mockito.when(client.nodes()).thenThrow(new KubernetesClientException("connection refused"));
+        NodeCapacityTracker tracker = new NodeCapacityTracker("key", client);
+
+        List<NodeCapacityTracker.Reservation> reserved = tracker.reserve(new PodTemplate(), 3);
+        Assert.assertEquals(3, reserved.size());
+        Assert.assertNull(reserved.get(0).getNodeName());
+    }
+
+    private static Container container(String cpu, String memory) {
+        Map<String, Quantity> requests = new HashMap<>();
+        if (cpu != null) {
+            requests.put("cpu", new Quantity(cpu));
+        }
+        if (memory != null) {
+            requests.put("memory", new Quantity(memory));
+        }
+        return new ContainerBuilder()
+                .withName("container")
+                .withNewResources()
+                    .withRequests(requests)
+                .endResources()
+                .build();
+    }
+}
@@ -0,0 +1,109 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.DefaultKubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.concurrent.TimeUnit;
+
+public class PodDeletionQueueTest {
+
+    // far enough ahead that the flushes the queue schedules itself never find a pod due
+    private final long now = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+    private KubernetesCloud cloud;
+
+    private PodDeletionQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        cloud = Mockito.mock(KubernetesCloud.class);
+        Mockito.when(cloud.getNamespace()).thenReturn("default");
+        Mockito.doThrow(new KubernetesClientException("connection refused")).when(cloud).connect();
+        queue = new PodDeletionQueue(cloud);
+    }
+
+    @Test
+    public void testBackoff() {
+        Assert.assertEquals(TimeUnit.SECONDS.toMillis(2), PodDeletionQueue.backoff(1));
+        Assert.assertEquals(TimeUnit.SECONDS.toMillis(4), PodDeletionQueue.backoff(2));
+        Assert.assertEquals(TimeUnit.SECONDS.toMillis(32), PodDeletionQueue.backoff(5));
+        Assert.assertEquals(PodDeletionQueue.MAX_BACKOFF_MILLIS, PodDeletionQueue.backoff(6));
+        Assert.assertEquals(PodDeletionQueue.MAX_BACKOFF_MILLIS, PodDeletionQueue.backoff(30));
+    }
+
+    @Test
+    public void testRetryAndGiveUp() throws Exception {
+        Assert.assertTrue(queue.enqueue("agent-1", now));
+        Assert.assertFalse(queue.enqueue("agent-1", now));
+
+        long at = now;
+        for (int attempt = 1; attempt < PodDeletionQueue.MAX_ATTEMPTS; attempt++) {
+            queue.flush(at);
+            Mockito.verify(cloud, Mockito.times(attempt)).connect();
+            Assert.assertEquals(1, queue.getBacklog());
+
+            // not retried before the backoff has passed
+            long backoff = PodDeletionQueue.backoff(attempt);
+            queue.flush(at + backoff - 1);
+            Mockito.verify(cloud, Mockito.times(attempt)).connect();
+            at += backoff;
+        }
+
+        queue.flush(at);
+        Mockito.verify(cloud, Mockito.times(PodDeletionQueue.MAX_ATTEMPTS)).connect();
+        Assert.assertEquals(0, queue.getBacklog());
+        Mockito.verify(cloud, Mockito.never()).podDeleted(Mockito.anyString());
+    }
+
+    @Test
+    public void testRetrySucceeds() throws Exception {
+        try (FakeKubernetesApiServer server = new FakeKubernetesApiServer(0, 0, 0)) {
+            KubernetesClient client = new DefaultKubernetesClient(new ConfigBuilder()
+                    .withMasterUrl(server.getUrl())
+                    .withNamespace("default")
+                    .build());
+            // without the agent label, so it is deleted by name
+            client.pods().inNamespace("default").createNew()
+                    .withNewMetadata().withName("agent-1").endMetadata()
+                    .done();
+            Mockito.doThrow(new KubernetesClientException("connection refused")).doReturn(client)
+                    .when(cloud).connect();
+
+            queue.enqueue("agent-1", now);
+            queue.flush(now);
+            Assert.assertEquals(1, queue.getBacklog());
+            Assert.assertEquals(1, server.getObjectCount("pods"));
+
+            queue.flush(now + PodDeletionQueue.backoff(1));
+            Assert.assertEquals(0, queue.getBacklog());
+            Assert.assertEquals(0, server.getObjectCount("pods"));
+            Mockito.verify(cloud).podDeleted("agent-1");
+            client.close();
+        }
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        int pods = PodDeletionQueue.MAX_BATCH_SIZE + 10;
+        for (int i = 0; i < pods; i++) {
+            queue.enqueue("agent-" + i, now);
+        }
+
+        queue.flush(now);
+        Mockito.verify(cloud, Mockito.times(1)).connect();
+        Assert.assertEquals(pods, queue.getBacklog());
+
+        // the pods that did not fit are due right away, the failed batch is not
+        queue.flush(now);
+        Mockito.verify(cloud, Mockito.times(2)).connect();
+        queue.flush(now);
+        Mockito.verify(cloud, Mockito.times(2)).connect();
+        Assert.assertEquals(pods, queue.getBacklog());
+    }
+}
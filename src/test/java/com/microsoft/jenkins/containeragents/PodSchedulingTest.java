@@ -0,0 +1,80 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.Affinity;
+import io.fabric8.kubernetes.api.model.Taint;
+import io.fabric8.kubernetes.api.model.TaintBuilder;
+import io.fabric8.kubernetes.api.model.Toleration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class PodSchedulingTest {
+
+    @Test
+    public void testParseNodeSelector() {
+        Map<String, String> selector = PodScheduling.parseNodeSelector("agentpool=builds, disk = ssd\nbroken");
+        Assert.assertEquals(3, selector.size());
+        Assert.assertEquals("builds", selector.get("agentpool"));
+        Assert.assertEquals("ssd", selector.get("disk"));
+        Assert.assertEquals("", selector.get("broken"));
+        Assert.assertTrue(PodScheduling.parseNodeSelector(null).isEmpty());
+    }
+
+    @Test
+    public void testParseTolerations() {
+        List<Toleration> tolerations =
+                PodScheduling.parseTolerations("dedicated=builds:NoSchedule\ngpu\nspot:NoExecute");
+        Assert.assertEquals(3, tolerations.size());
+        Assert.assertEquals("dedicated", tolerations.get(0).getKey());
+        Assert.assertEquals("Equal", tolerations.get(0).getOperator());
+        Assert.assertEquals("builds", tolerations.get(0).getValue());
+        Assert.assertEquals("NoSchedule", tolerations.get(0).getEffect());
+        Assert.assertEquals("gpu", tolerations.get(1).getKey());
+        Assert.assertEquals("Exists", tolerations.get(1).getOperator());
+        Assert.assertNull(tolerations.get(1).getEffect());
+        Assert.assertEquals("Exists", tolerations.get(2).getOperator());
+        Assert.assertEquals("NoExecute", tolerations.get(2).getEffect());
+    }
+
+    @Test
+    public void testTolerates() {
+        List<Toleration> tolerations = PodScheduling.parseTolerations("dedicated=builds:NoSchedule, gpu");
+        Assert.assertTrue(PodScheduling.tolerates(tolerations, taint("dedicated", "builds", "NoSchedule")));
+        Assert.assertFalse(PodScheduling.tolerates(tolerations, taint("dedicated", "other", "NoSchedule")));
+        Assert.assertFalse(PodScheduling.tolerates(tolerations, taint("dedicated", "builds", "NoExecute")));
+        Assert.assertTrue(PodScheduling.tolerates(tolerations, taint("gpu", "true", "NoExecute")));
+        Assert.assertFalse(PodScheduling.tolerates(tolerations, taint("spot", "true", "NoSchedule")));
+        Assert.assertTrue(PodScheduling.tolerates(tolerations, taint("spot", "true", "PreferNoSchedule")));
+        Assert.assertTrue(PodScheduling.tolerates(PodScheduling.parseTolerations(":NoSchedule"),
+                taint("anything", null, "NoSchedule")));
+    }
+
+    @Test
+    public void testBuildImageAffinity() {
+        Assert.assertNull(PodScheduling.buildImageAffinity(Collections.<String>emptyList()));
+
+        Affinity affinity = PodScheduling.buildImageAffinity(Arrays.asList("node-2", "node-1"));
+        Assert.assertEquals(PodScheduling.IMAGE_AFFINITY_WEIGHT, affinity.getNodeAffinity()
+                .getPreferredDuringSchedulingIgnoredDuringExecution().get(0).getWeight().intValue());
+        Assert.assertEquals(Arrays.asList("node-1", "node-2"), affinity.getNodeAffinity()
+                .getPreferredDuringSchedulingIgnoredDuringExecution().get(0).getPreference()
+                .getMatchExpressions().get(0).getValues());
+
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < PodScheduling.MAX_IMAGE_NODES * 2; i++) {
+            many.add("node-" + i);
+        }
+        Assert.assertEquals(PodScheduling.MAX_IMAGE_NODES, PodScheduling.buildImageAffinity(many).getNodeAffinity()
+                .getPreferredDuringSchedulingIgnoredDuringExecution().get(0).getPreference()
+                .getMatchExpressions().get(0).getValues().size());
+    }
+
+    private static Taint taint(String key, String value, String effect) {
+        return new TaintBuilder().withKey(key).withValue(value).withEffect(effect).build();
+    }
+}
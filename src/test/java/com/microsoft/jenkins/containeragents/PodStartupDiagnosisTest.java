@@ -0,0 +1,63 @@
+package com.microsoft.jenkins.containeragents;
+
+import io.fabric8.kubernetes.api.model.ContainerStateTerminated;
+import io.fabric8.kubernetes.api.model.ContainerStateWaiting;
+import io.fabric8.kubernetes.api.model.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PodStartupDiagnosisTest {
+
+    @Test
+    public void testWaitingReasons() {
+        Assert.assertNotNull(PodStartupDiagnosis.fatalReason(waiting("CreateContainerConfigError",
+                "secret \"registry\" not found"), null, false));
+        Assert.assertNotNull(PodStartupDiagnosis.fatalReason(waiting("ErrImagePull",
+                "manifest for jenkins/agent:missing not found"), null, false));
+        Assert.assertNull(PodStartupDiagnosis.fatalReason(waiting("ErrImagePull", "net/http: TLS handshake timeout"),
+                null, false));
+        Assert.assertNull(PodStartupDiagnosis.fatalReason(waiting("ContainerCreating", null), null, false));
+    }
+
+    @Test
+    public void testTerminated() {
+        ContainerStateTerminated oom = new ContainerStateTerminated();
+        oom.setReason("OOMKilled");
+        oom.setExitCode(137);
+        Assert.assertEquals("OOMKilled: exit code 137", PodStartupDiagnosis.fatalReason(null, oom, false));
+
+        ContainerStateTerminated completed = new ContainerStateTerminated();
+        completed.setReason("Completed");
+        completed.setExitCode(0);
+        Assert.assertNull(PodStartupDiagnosis.fatalReason(null, completed, true));
+        Assert.assertNotNull(PodStartupDiagnosis.fatalReason(null, completed, false));
+    }
+
+    @Test
+    public void testEvents() {
+        Assert.assertNotNull(PodStartupDiagnosis.fatalEventReason(event("FailedScheduling",
+                "0/3 nodes are available: 3 node(s) didn't match node selector.")));
+        Assert.assertNull(PodStartupDiagnosis.fatalEventReason(event("FailedScheduling",
+                "0/3 nodes are available: 3 Insufficient cpu.")));
+        Assert.assertNotNull(PodStartupDiagnosis.fatalEventReason(event("FailedMount",
+                "MountVolume.SetUp failed for volume \"cache\" : secret \"cache\" not found")));
+        Assert.assertNull(PodStartupDiagnosis.fatalEventReason(event("FailedMount",
+                "Unable to mount volumes for pod: timeout expired waiting for volumes to attach")));
+        Assert.assertNull(PodStartupDiagnosis.fatalEventReason(event("BackOff", "Back-off pulling image")));
+    }
+
+    private static ContainerStateWaiting waiting(String reason, String message) {
+        ContainerStateWaiting waiting = new ContainerStateWaiting();
+        waiting.setReason(reason);
+        waiting.setMessage(message);
+        return waiting;
+    }
+
+    private static Event event(String reason, String message) {
+        Event event = new Event();
+        event.setType("Warning");
+        event.setReason(reason);
+        event.setMessage(message);
+        return event;
+    }
+}
@@ -0,0 +1,35 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class AciCacheShareTest {
+
+    @Test
+    public void testGetShareName() {
+        Assert.assertEquals("jenkins-cache-maven", AciCacheShare.getShareName(template("maven")));
+        Assert.assertEquals("jenkins-cache-java-8-build", AciCacheShare.getShareName(template("Java 8 / Build")));
+        Assert.assertEquals("jenkins-cache-node", AciCacheShare.getShareName(template("node--")));
+    }
+
+    @Test
+    public void testLongShareName() {
+        String name = AciCacheShare.getShareName(template("a-very-long-template-name-that-is-shared-by-many-"
+                + "teams-xyz"));
+        Assert.assertTrue(name.length() <= 63);
+        Assert.assertFalse(name.endsWith("-"));
+        Assert.assertTrue(name.startsWith("jenkins-cache-a-very-long-template-name"));
+    }
+
+    @Test
+    public void testGetMetricName() {
+        Assert.assertEquals("aci.cache.maven.warm", AciCacheShare.getMetricName(template("maven"), "warm"));
+    }
+
+    private static AciContainerTemplate template(String name) {
+        AciContainerTemplate template = Mockito.mock(AciContainerTemplate.class);
+        Mockito.when(template.getName()).thenReturn(name);
+        return template;
+    }
+}
@@ -0,0 +1,285 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.containeragents.builders.AciCloudBuilder;
+import com.microsoft.jenkins.containeragents.remote.LaunchMethodTypeContent;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.slaves.NodeProvisioner;
+import hudson.slaves.SlaveComputer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Benchmarks of {@link AciCloud} against a {@link FakeArmServer}: provisioning throughput and ARM calls per
+ * agent, with failed deployments, under throttling, and for the deletion and cleanup of container groups. Runs
+ * with the integration tests, sized by system properties:
+ * <ul>
+ *     <li>{@code aci.agents}, the agents to provision, 200 by default</li>
+ *     <li>{@code aci.batch}, the excess workload of each provision call, 20 by default</li>
+ *     <li>{@code aci.pendingMillis} and {@code aci.creatingMillis}, how long container groups stay in these
+ *     states, 1000 and 3000 by default</li>
+ *     <li>{@code aci.connectMillis}, how long a provisioned agent takes to connect, 500 by default</li>
+ *     <li>{@code aci.latencyMillis}, the latency of each ARM request, 0 by default</li>
+ *     <li>{@code aci.requestsPerSecond}, the throttling limit of the throttled benchmark, 20 by default</li>
+ * </ul>
+ *
+ * <p>Agents do not run a remoting agent, a fake connector puts a mock channel on the computer of each agent once
+ * its container group has succeeded for the connect latency.</p>
+ */
+public class AciCloudBenchmarkIT {
+
+    private static final int AGENTS = Integer.getInteger("aci.agents", 200);
+    private static final int BATCH = Integer.getInteger("aci.batch", 20);
+    private static final long PENDING_MILLIS = Long.getLong("aci.pendingMillis", 1000);
+    private static final long CREATING_MILLIS = Long.getLong("aci.creatingMillis", 3000);
+    private static final long CONNECT_MILLIS = Long.getLong("aci.connectMillis", 500);
+    private static final long LATENCY_MILLIS = Long.getLong("aci.latencyMillis", 0);
+    private static final int REQUESTS_PER_SECOND = Integer.getInteger("aci.requestsPerSecond", 20);
+
+    private static final String CREDENTIALS_ID = "fake-arm";
+    private static final String RESOURCE_GROUP = "jenkins-agents";
+    private static final String LABEL = "aci";
+
+    private static final int FAIL_EVERY = 5;
+    private static final int SMALL_RUN = 20;
+    private static final int LEAKED = 5;
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 200;
+    private static final long WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    static {
+        // the benchmarks take longer than the default timeout of a test
+        System.setProperty("jenkins.test.timeout", "0");
+    }
+
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    private FakeArmServer server;
+
+    private ScheduledExecutorService connector;
+
+    private AciCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeArmServer(RESOURCE_GROUP);
+        server.setProvisioningMillis(PENDING_MILLIS, CREATING_MILLIS);
+        server.setLatencyMillis(LATENCY_MILLIS);
+
+        cloud = new AciCloudBuilder()
+                .withCloudName("aci-benchmark")
+                .withAzureCredentialsId(CREDENTIALS_ID)
+                .withResourceGroup(RESOURCE_GROUP)
+                .addNewTemplate()
+                    .withName("benchmark")
+                    .withLabel(LABEL)
+                    .withIdleRetentionStrategy(60)
+                    .withJNLPLaunchMethod()
+                .endTemplate()
+                .build();
+        cloud.setClientFactory(new AciClientFactory() {
+            @Override
+            public Azure create(AciCloud target) {
+                return server.connect();
+            }
+        });
+        // what the configuration form submits for every template
+        cloud.getTemplates().get(0).setLaunchMethodTypeContent(new LaunchMethodTypeContent("", "22"));
+        rule.jenkins.clouds.add(cloud);
+
+        connector = Executors.newSingleThreadScheduledExecutor();
+        connector.scheduleWithFixedDelay(this::connectAgents, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connector.shutdownNow();
+        disconnectAgents();
+        server.close();
+    }
+
+    @Test
+    public void provisionThroughput() throws Exception {
+        Run run = provision(AGENTS);
+        report("provisioning", run);
+
+        Assert.assertEquals("failed provisions", 0, run.failed);
+        Assert.assertEquals(AGENTS, server.getContainerGroupCount());
+    }
+
+    @Test
+    public void provisionWithFailedDeployments() throws Exception {
+        server.setFailEvery(FAIL_EVERY);
+        Run run = provision(AGENTS);
+        report("provisioning, every " + FAIL_EVERY + "th deployment failing", run);
+
+        Assert.assertEquals("failed provisions", AGENTS / FAIL_EVERY, run.failed);
+    }
+
+    @Test
+    public void provisionUnderThrottling() throws Exception {
+        server.setRequestsPerSecond(REQUESTS_PER_SECOND);
+        Run run = provision(AGENTS);
+        report("provisioning, throttled at " + REQUESTS_PER_SECOND + " requests/s", run);
+
+        Assert.assertTrue("no request throttled", server.getThrottledCount() > 0);
+    }
+
+    @Test
+    public void deleteAndCleanUp() throws Exception {
+        Run run = provision(SMALL_RUN);
+        Assert.assertEquals("failed provisions", 0, run.failed);
+        long provisionRequests = server.getRequestCount();
+
+        connector.shutdownNow();
+        disconnectAgents();
+        long started = System.currentTimeMillis();
+        for (Node node : new ArrayList<>(rule.jenkins.getNodes())) {
+            if (node instanceof AciAgent) {
+                ((AciAgent) node).terminate();
+            }
+        }
+        waitFor(() -> server.getContainerGroupCount() == 0);
+        long deleted = System.currentTimeMillis();
+
+        for (int i = 0; i < LEAKED; i++) {
+            server.addContainerGroup(RESOURCE_GROUP, "leaked-" + i,
+                    Collections.singletonMap("JenkinsInstance", rule.jenkins.getLegacyInstanceId()));
+        }
+        long cleanStarted = System.currentTimeMillis();
+        new AciContainerGroupsCleanTask().execute(TaskListener.NULL);
+        waitFor(() -> server.getContainerGroupCount() == 0);
+        long cleaned = System.currentTimeMillis();
+
+        System.out.println(String.format("%nAciCloud deletion: %d agents deleted in %.1f s, %d leaked container "
+                        + "groups cleaned up in %.1f s, %.1f ARM requests per agent after provisioning",
+                SMALL_RUN, (deleted - started) / 1000.0, LEAKED, (cleaned - cleanStarted) / 1000.0,
+                (double) (server.getRequestCount() - provisionRequests) / SMALL_RUN));
+        report("provisioning and deletion", run);
+    }
+
+    private Run provision(int agents) throws Exception {
+        Label label = rule.jenkins.getLabel(LABEL);
+        Run run = new Run(agents);
+        long started = System.currentTimeMillis();
+        List<Future<Node>> futures = new ArrayList<>();
+        while (futures.size() < agents) {
+            int before = futures.size();
+            for (NodeProvisioner.PlannedNode planned
+                    : cloud.provision(label, Math.min(BATCH, agents - futures.size()))) {
+                futures.add(planned.future);
+            }
+            if (futures.size() == before) {
+                // nothing admitted, e.g. all concurrent provisions taken, wait for some to finish
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            }
+        }
+        for (Future<Node> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                run.failed++;
+            }
+        }
+        run.millis = System.currentTimeMillis() - started;
+        return run;
+    }
+
+    private void report(String title, Run run) {
+        double seconds = run.millis / 1000.0;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%nAciCloud %s: %d agents, batches of %d, pending %d ms, creating %d ms, "
+                        + "agents connect in %d ms, ARM latency %d ms%n",
+                title, run.agents, BATCH, PENDING_MILLIS, CREATING_MILLIS, CONNECT_MILLIS, LATENCY_MILLIS));
+        report.append(String.format("  provisioned      %d, failed %d%n", run.agents - run.failed, run.failed));
+        report.append(String.format("  all done in      %.1f s, %.1f provisions/s%n", seconds,
+                (run.agents - run.failed) / seconds));
+        report.append(String.format("  ARM requests     %d, %.1f per agent, %d throttled%n", server.getRequestCount(),
+                (double) server.getRequestCount() / run.agents, server.getThrottledCount()));
+        for (Map.Entry<String, Long> entry : server.getRequestCounts().entrySet()) {
+            report.append(String.format("    %-28s %.2f per agent%n", entry.getKey(),
+                    (double) entry.getValue() / run.agents));
+        }
+        System.out.println(report);
+    }
+
+    /**
+     * Connects the agents whose container group has succeeded long enough.
+     */
+    private void connectAgents() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Node node : rule.jenkins.getNodes()) {
+                if (!(node instanceof AciAgent)) {
+                    continue;
+                }
+                Long succeeded = server.getSucceededSince(((AciAgent) node).getContainerGroupName());
+                Computer computer = node.toComputer();
+                if (succeeded != null && now - succeeded >= CONNECT_MILLIS
+                        && computer instanceof SlaveComputer && computer.isOffline()) {
+                    setChannel((SlaveComputer) computer, Mockito.mock(Channel.class));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes the mock channels away again, they would break the disconnect of the agents.
+     */
+    private void disconnectAgents() throws Exception {
+        for (Node node : rule.jenkins.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer instanceof SlaveComputer) {
+                setChannel((SlaveComputer) computer, null);
+            }
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        }
+    }
+
+    private static void setChannel(SlaveComputer computer, Channel channel) throws Exception {
+        Field field = SlaveComputer.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        field.set(computer, channel);
+    }
+
+    private static final class Run {
+        private final int agents;
+        private int failed;
+        private long millis;
+
+        Run(int agents) {
+            this.agents = agents;
+        }
+    }
+}
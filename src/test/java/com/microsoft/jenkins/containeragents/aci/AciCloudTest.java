@@ -0,0 +1,72 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.management.containerinstance.ContainerGroup;
+import hudson.model.Computer;
+import hudson.model.Node;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class AciCloudTest {
+
+    private final AciCloud cloud = new AciCloud("aci", "credentials", "rg-default",
+            Collections.<AciContainerTemplate>emptyList());
+
+    @Test
+    public void testAgentsByResourceGroup() {
+        AciAgent placed = agent("aci", "rg-1");
+        // from before agents knew their resource group
+        AciAgent legacy = agent("aci", null);
+        AciAgent other = agent("other", "rg-1");
+        List<Node> nodes = Arrays.<Node>asList(placed, legacy, other);
+
+        Map<String, List<AciAgent>> agents = cloud.getAgentsByResourceGroup(nodes);
+        Assert.assertEquals(2, agents.size());
+        Assert.assertEquals(Collections.singletonList(placed), agents.get("rg-1"));
+        Assert.assertEquals(Collections.singletonList(legacy), agents.get("rg-default"));
+    }
+
+    @Test
+    public void testReconcileRemovesAgentsWithoutContainerGroup() throws Exception {
+        AciAgent gone = agent("aci", "rg-1");
+        AciCloud.reconcileAgent(gone, null);
+        Mockito.verify(gone).terminate();
+
+        AciAgent stopped = agent("aci", "rg-1");
+        AciCloud.reconcileAgent(stopped, containerGroup("Stopped"));
+        Mockito.verify(stopped).terminate();
+    }
+
+    @Test
+    public void testReconcileReconnectsSshAgents() throws Exception {
+        Computer computer = Mockito.mock(Computer.class);
+        Mockito.when(computer.isOffline()).thenReturn(true);
+        AciAgent agent = agent("aci", "rg-1");
+        Mockito.when(agent.isSshLaunchType()).thenReturn(true);
+        Mockito.when(agent.toComputer()).thenReturn(computer);
+
+        AciCloud.reconcileAgent(agent, containerGroup("Running"));
+        Mockito.verify(agent).setHost("10.0.0.5");
+        Mockito.verify(computer).connect(false);
+        Mockito.verify(agent, Mockito.never()).terminate();
+    }
+
+    private static AciAgent agent(String cloudName, String resourceGroup) {
+        AciAgent agent = Mockito.mock(AciAgent.class);
+        Mockito.when(agent.getCloudName()).thenReturn(cloudName);
+        Mockito.when(agent.getResourceGroup()).thenReturn(resourceGroup);
+        return agent;
+    }
+
+    private static ContainerGroup containerGroup(String state) {
+        ContainerGroup containerGroup = Mockito.mock(ContainerGroup.class);
+        Mockito.when(containerGroup.state()).thenReturn(state);
+        Mockito.when(containerGroup.ipAddress()).thenReturn("10.0.0.5");
+        return containerGroup;
+    }
+}
@@ -0,0 +1,46 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import hudson.model.Node;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class AciContainerGroupReferencesTest {
+
+    @Test
+    public void testLastAgentReleasesGroup() {
+        AciAgent first = agent("packed-1", "packed", "rg-1");
+        AciAgent second = agent("packed-2", "packed", "rg-1");
+        // same container group name in another resource group
+        AciAgent elsewhere = agent("packed-3", "packed", "rg-2");
+        List<Node> nodes = Arrays.<Node>asList(first, second, elsewhere);
+
+        Assert.assertFalse(AciContainerGroupReferences.release(first, nodes));
+        Assert.assertTrue(AciContainerGroupReferences.release(second, nodes));
+        Assert.assertTrue(AciContainerGroupReferences.release(elsewhere, nodes));
+    }
+
+    @Test
+    public void testUnpackedAgent() {
+        AciAgent agent = agent("single-1", "single-1", null);
+        Assert.assertTrue(AciContainerGroupReferences.release(agent, Arrays.<Node>asList(agent)));
+    }
+
+    @Test
+    public void testAgentAlreadyRemoved() {
+        // the node is gone before its container group is released
+        AciAgent agent = agent("removed-1", "removed", "rg-1");
+        Assert.assertTrue(AciContainerGroupReferences.release(agent, Arrays.<Node>asList()));
+    }
+
+    private static AciAgent agent(String name, String containerGroupName, String resourceGroup) {
+        AciAgent agent = Mockito.mock(AciAgent.class);
+        Mockito.when(agent.getNodeName()).thenReturn(name);
+        Mockito.when(agent.getContainerGroupName()).thenReturn(containerGroupName);
+        Mockito.when(agent.getResourceGroup()).thenReturn(resourceGroup);
+        return agent;
+    }
+}
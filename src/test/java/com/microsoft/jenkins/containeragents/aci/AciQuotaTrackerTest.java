@@ -0,0 +1,54 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.microsoft.azure.CloudError;
+import com.microsoft.azure.CloudException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+
+public class AciQuotaTrackerTest {
+
+    @Test
+    public void testQuotaErrorCodes() {
+        Assert.assertTrue(AciQuotaTracker.isQuotaExceeded(cloudException("ContainerGroupQuotaReached",
+                "Resource type 'Microsoft.ContainerInstance/containerGroups' has reached its quota limit")));
+        Assert.assertTrue(AciQuotaTracker.isQuotaExceeded(cloudException("QuotaExceeded",
+                "Operation results in exceeding quota limits of Core")));
+    }
+
+    @Test
+    public void testOtherErrorsMentioningQuota() {
+        Assert.assertFalse(AciQuotaTracker.isQuotaExceeded(cloudException("InvalidStorageAccountQuota",
+                "The storage account has exceeded its file share quota")));
+        Assert.assertFalse(AciQuotaTracker.isQuotaExceeded(cloudException("InaccessibleImage",
+                "The image 'quota/agent:1' in container group is not accessible")));
+        Assert.assertFalse(AciQuotaTracker.isQuotaExceeded(new IllegalStateException("quota exceeded")));
+        Assert.assertFalse(AciQuotaTracker.isQuotaExceeded(cloudException(null, "quota")));
+    }
+
+    @Test
+    public void testWrappedAndNestedErrors() {
+        Assert.assertTrue(AciQuotaTracker.isQuotaExceeded(new CompletionException(
+                cloudException("ContainerGroupQuotaReached", "quota reached"))));
+
+        CloudError detail = error("ContainerGroupQuotaReached", "quota reached");
+        CloudError deployment = error("DeploymentFailed", "At least one resource deployment operation failed");
+        Mockito.when(deployment.details()).thenReturn(Collections.singletonList(detail));
+        Assert.assertTrue(AciQuotaTracker.isQuotaExceeded(new CloudException(deployment.message(), null,
+                deployment)));
+    }
+
+    private static CloudException cloudException(String code, String message) {
+        return new CloudException(message, null, error(code, message));
+    }
+
+    private static CloudError error(String code, String message) {
+        CloudError error = Mockito.mock(CloudError.class);
+        Mockito.when(error.code()).thenReturn(code);
+        Mockito.when(error.message()).thenReturn(message);
+        return error;
+    }
+}
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertThat;
 public class AciServiceTest {
 
     public static final String RESOURCE_GROUP_NAME = "";
+    public static final String REGION = "eastus";
     private AciCloud cloud;
     private AciContainerTemplate aciContainerTemplate;
     private AciAgent aciAgent;
@@ -76,6 +77,11 @@ public class AciServiceTest {
 
         aciAgent = Mockito.mock(AciAgent.class);
         Mockito.when(aciAgent.getNodeName()).thenReturn("ta-template-ujyht");
+        Mockito.when(aciAgent.getContainerGroupName()).thenReturn("ta-template-ujyht");
+        Mockito.when(aciAgent.getResourceGroup()).thenReturn(RESOURCE_GROUP_NAME);
+
+        // the region comes from the mocked cloud, not from a call to Azure
+        Mockito.when(cloud.getRegion(RESOURCE_GROUP_NAME)).thenReturn(REGION);
     }
 
     @Test
@@ -0,0 +1,570 @@
+package com.microsoft.jenkins.containeragents.aci;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.AzureResponseBuilder;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.serializer.AzureJacksonAdapter;
+import com.microsoft.rest.LogLevel;
+import com.microsoft.rest.RestClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the ARM endpoints the ACI cloud uses: container groups with their logs and
+ * regional usages, resource groups, the generic resources of a resource group and the resource provider.
+ *
+ * <p>Created container groups are {@code Pending}, then {@code Creating}, then {@code Succeeded} after the
+ * configured latencies, or {@code Failed} for every {@link #setFailEvery n-th} one. Every request can be delayed
+ * by a configured latency and throttled with a 429 above a number of requests per second. Requests are counted
+ * by method and resource type, {@link #connect()} builds a client against the server.</p>
+ */
+public class FakeArmServer implements Closeable {
+
+    public static final String SUBSCRIPTION_ID = "00000000-0000-0000-0000-000000000000";
+
+    public static final String TENANT_ID = "00000000-0000-0000-0000-000000000001";
+
+    public static final String REGION = "eastus";
+
+    /**
+     * Names of the threads of the server, to tell them from those of the code under test.
+     */
+    public static final String THREAD_PREFIX = "fake-arm-";
+
+    static final String PROVIDER = "Microsoft.ContainerInstance";
+
+    static final String CONTAINER_GROUPS_TYPE = PROVIDER + "/containerGroups";
+
+    private static final String API_VERSION = "2018-10-01";
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_CREATED = 201;
+
+    private static final int HTTP_NO_CONTENT = 204;
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final int HTTP_INTERNAL_ERROR = 500;
+
+    private static final int BYTE_MASK = 0xff;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final RestClient restClient;
+
+    // resource group in lower case -> its name
+    private final Map<String, String> resourceGroups = new ConcurrentHashMap<>();
+
+    // "resource group/container group" in lower case
+    private final Map<String, ContainerGroup> containerGroups = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private volatile long latencyMillis;
+
+    private volatile long pendingMillis;
+
+    private volatile long creatingMillis;
+
+    private volatile int failEvery;
+
+    private volatile int requestsPerSecond;
+
+    private volatile int groupLimit = Integer.MAX_VALUE;
+
+    private volatile int coreLimit = Integer.MAX_VALUE;
+
+    private long currentSecond;
+
+    private int requestsInSecond;
+
+    public FakeArmServer(String... resourceGroups) throws IOException {
+        for (String resourceGroup : resourceGroups) {
+            addResourceGroup(resourceGroup);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, THREAD_PREFIX + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        restClient = new RestClient.Builder()
+                .withBaseUrl(getUrl())
+                .withCredentials(new AzureTokenCredentials(AzureEnvironment.AZURE, TENANT_ID) {
+                    @Override
+                    public String getToken(String resource) {
+                        return "fake-token";
+                    }
+                })
+                .withSerializerAdapter(new AzureJacksonAdapter())
+                .withResponseBuilderFactory(new AzureResponseBuilder.Factory())
+                .withLogLevel(LogLevel.NONE)
+                .build();
+    }
+
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * A new client against this server, like the plugin creates one for each use.
+     */
+    public Azure connect() {
+        return Azure.authenticate(restClient, TENANT_ID).withSubscription(SUBSCRIPTION_ID);
+    }
+
+    public void addResourceGroup(String name) {
+        resourceGroups.put(name.toLowerCase(), name);
+    }
+
+    /**
+     * Adds a container group that has been provisioned already, e.g. one that has leaked.
+     */
+    public void addContainerGroup(String resourceGroup, String name, Map<String, String> tags) {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("location", REGION);
+        ObjectNode tagNode = body.putObject("tags");
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            tagNode.put(tag.getKey(), tag.getValue());
+        }
+        body.putObject("properties").putArray("containers").addObject().put("name", name)
+                .putObject("properties").put("image", "jenkins/jnlp-slave");
+        containerGroups.put(key(resourceGroup, name), new ContainerGroup(resourceGroup, name, body,
+                System.currentTimeMillis() - pendingMillis - creatingMillis, false));
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * How long created container groups stay {@code Pending} and {@code Creating}.
+     */
+    public void setProvisioningMillis(long pending, long creating) {
+        this.pendingMillis = pending;
+        this.creatingMillis = creating;
+    }
+
+    /**
+     * Makes every n-th created container group end up {@code Failed}, 0 for none.
+     */
+    public void setFailEvery(int n) {
+        this.failEvery = n;
+    }
+
+    /**
+     * Answers requests above the given number per second with 429, 0 for no throttling.
+     */
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public void setQuota(int groups, int cores) {
+        this.groupLimit = groups;
+        this.coreLimit = cores;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Requests by method and resource type, e.g. {@code PUT containerGroups}.
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : requestCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public int getContainerGroupCount() {
+        return containerGroups.size();
+    }
+
+    /**
+     * When the container group of that name has succeeded, null if it has not or does not exist.
+     */
+    public Long getSucceededSince(String name) {
+        long now = System.currentTimeMillis();
+        for (ContainerGroup group : containerGroups.values()) {
+            if (group.name.equalsIgnoreCase(name) && "Succeeded".equals(group.state(now))) {
+                return group.createdAt + pendingMillis + creatingMillis;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+            String type = type(path);
+            requestCount.incrementAndGet();
+            requestCounts.computeIfAbsent(method + " " + type, key -> new AtomicLong()).incrementAndGet();
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (throttled()) {
+                throttledCount.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                error(exchange, HTTP_TOO_MANY_REQUESTS, "TooManyRequests",
+                        "The request is being throttled as the limit has been reached for operation type");
+                return;
+            }
+            route(exchange, method, path, type);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            error(exchange, HTTP_INTERNAL_ERROR, "InternalServerError", String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized boolean throttled() {
+        int limit = requestsPerSecond;
+        if (limit <= 0) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            requestsInSecond = 0;
+        }
+        return ++requestsInSecond > limit;
+    }
+
+    /**
+     * The kind of resource a path addresses, for the request counts.
+     */
+    private static String type(String[] path) {
+        if (path.length < 3 || !"subscriptions".equalsIgnoreCase(path[0])) {
+            return "other";
+        }
+        if ("resourcegroups".equalsIgnoreCase(path[2])) {
+            if (path.length <= 4) {
+                return "resourceGroups";
+            }
+            if (path.length == 5 && "resources".equalsIgnoreCase(path[4])) {
+                return "resources";
+            }
+            if (path.length >= 7 && "containergroups".equalsIgnoreCase(path[6])) {
+                return path.length == 11 && "logs".equalsIgnoreCase(path[10]) ? "logs" : "containerGroups";
+            }
+            return "other";
+        }
+        if ("providers".equalsIgnoreCase(path[2])) {
+            if (path.length == 7 && "usages".equalsIgnoreCase(path[6])) {
+                return "usages";
+            }
+            return path.length == 5 && "containergroups".equalsIgnoreCase(path[4]) ? "containerGroups" : "providers";
+        }
+        return "other";
+    }
+
+    private void route(HttpExchange exchange, String method, String[] path, String type) throws IOException {
+        switch (type) {
+            case "resourceGroups":
+                if (path.length == 3) {
+                    ArrayNode list = mapper.createArrayNode();
+                    for (String name : resourceGroups.values()) {
+                        list.add(resourceGroup(name));
+                    }
+                    respond(exchange, HTTP_OK, list(list));
+                    return;
+                }
+                String resourceGroup = resourceGroups.get(path[3].toLowerCase());
+                if ("PUT".equals(method)) {
+                    addResourceGroup(path[3]);
+                    respond(exchange, HTTP_CREATED, resourceGroup(path[3]));
+                } else if (resourceGroup == null) {
+                    error(exchange, HTTP_NOT_FOUND, "ResourceGroupNotFound",
+                            "Resource group '" + path[3] + "' could not be found.");
+                } else {
+                    respond(exchange, HTTP_OK, resourceGroup(resourceGroup));
+                }
+                return;
+            case "resources":
+                listResources(exchange, path[3]);
+                return;
+            case "containerGroups":
+                if (path.length == 5 || path.length == 7) {
+                    listContainerGroups(exchange, path.length == 7 ? path[3] : null);
+                } else if (path.length == 8) {
+                    containerGroup(exchange, method, path[3], path[7]);
+                } else {
+                    error(exchange, HTTP_NOT_FOUND, "NotFound", "Unsupported path");
+                }
+                return;
+            case "logs":
+                if (!containerGroups.containsKey(key(path[3], path[7]))) {
+                    error(exchange, HTTP_NOT_FOUND, "ResourceNotFound", "Container group not found");
+                    return;
+                }
+                ObjectNode logs = mapper.createObjectNode();
+                logs.put("content", "");
+                respond(exchange, HTTP_OK, logs);
+                return;
+            case "usages":
+                usages(exchange);
+                return;
+            case "providers":
+                provider(exchange);
+                return;
+            default:
+                error(exchange, HTTP_NOT_FOUND, "NotFound", "Unsupported path");
+        }
+    }
+
+    private void containerGroup(HttpExchange exchange, String method, String resourceGroup, String name)
+            throws IOException {
+        String key = key(resourceGroup, name);
+        switch (method) {
+            case "PUT":
+                if (!resourceGroups.containsKey(resourceGroup.toLowerCase())) {
+                    error(exchange, HTTP_NOT_FOUND, "ResourceGroupNotFound",
+                            "Resource group '" + resourceGroup + "' could not be found.");
+                    return;
+                }
+                JsonNode body = mapper.readTree(exchange.getRequestBody());
+                int count = created.incrementAndGet();
+                ContainerGroup group = new ContainerGroup(resourceGroup, name,
+                        body instanceof ObjectNode ? (ObjectNode) body : mapper.createObjectNode(),
+                        System.currentTimeMillis(), failEvery > 0 && count % failEvery == 0);
+                ContainerGroup previous = containerGroups.put(key, group);
+                // polled for the provisioning state after a second
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, previous == null ? HTTP_CREATED : HTTP_OK, group.toJson());
+                return;
+            case "GET":
+                ContainerGroup existing = containerGroups.get(key);
+                if (existing == null) {
+                    error(exchange, HTTP_NOT_FOUND, "ResourceNotFound", "The Resource '" + CONTAINER_GROUPS_TYPE
+                            + "/" + name + "' under resource group '" + resourceGroup + "' was not found.");
+                    return;
+                }
+                if (!"Succeeded".equals(existing.state(System.currentTimeMillis()))) {
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                }
+                respond(exchange, HTTP_OK, existing.toJson());
+                return;
+            case "DELETE":
+                ContainerGroup deleted = containerGroups.remove(key);
+                if (deleted == null) {
+                    respond(exchange, HTTP_NO_CONTENT, null);
+                } else {
+                    respond(exchange, HTTP_OK, deleted.toJson());
+                }
+                return;
+            default:
+                error(exchange, HTTP_NOT_FOUND, "NotFound", "Unsupported method " + method);
+        }
+    }
+
+    private void listContainerGroups(HttpExchange exchange, String resourceGroup) throws IOException {
+        ArrayNode items = mapper.createArrayNode();
+        for (ContainerGroup group : containerGroups.values()) {
+            if (resourceGroup == null || group.resourceGroup.equalsIgnoreCase(resourceGroup)) {
+                items.add(group.toJson());
+            }
+        }
+        respond(exchange, HTTP_OK, list(items));
+    }
+
+    private void listResources(HttpExchange exchange, String resourceGroup) throws IOException {
+        ArrayNode items = mapper.createArrayNode();
+        for (ContainerGroup group : containerGroups.values()) {
+            if (group.resourceGroup.equalsIgnoreCase(resourceGroup)) {
+                ObjectNode item = items.addObject();
+                item.put("id", group.id());
+                item.put("name", group.name);
+                item.put("type", CONTAINER_GROUPS_TYPE);
+                item.put("location", REGION);
+                item.set("tags", group.body.path("tags").deepCopy());
+            }
+        }
+        respond(exchange, HTTP_OK, list(items));
+    }
+
+    private void usages(HttpExchange exchange) throws IOException {
+        double cores = 0;
+        for (ContainerGroup group : containerGroups.values()) {
+            for (JsonNode container : group.body.path("properties").path("containers")) {
+                cores += container.path("properties").path("resources").path("requests").path("cpu").asDouble();
+            }
+        }
+        ArrayNode items = mapper.createArrayNode();
+        usage(items.addObject(), AciQuotaTracker.CONTAINER_GROUPS, containerGroups.size(), groupLimit);
+        usage(items.addObject(), AciQuotaTracker.STANDARD_CORES, (int) Math.ceil(cores), coreLimit);
+        respond(exchange, HTTP_OK, list(items));
+    }
+
+    private static void usage(ObjectNode item, String name, int current, int limit) {
+        item.put("unit", "Count");
+        item.put("currentValue", current);
+        item.put("limit", limit);
+        item.putObject("name").put("value", name).put("localizedValue", name);
+    }
+
+    private void provider(HttpExchange exchange) throws IOException {
+        ObjectNode provider = mapper.createObjectNode();
+        provider.put("id", "/subscriptions/" + SUBSCRIPTION_ID + "/providers/" + PROVIDER);
+        provider.put("namespace", PROVIDER);
+        provider.put("registrationState", "Registered");
+        ObjectNode resourceType = provider.putArray("resourceTypes").addObject();
+        resourceType.put("resourceType", "containerGroups");
+        resourceType.putArray("locations").add(REGION);
+        resourceType.putArray("apiVersions").add(API_VERSION);
+        respond(exchange, HTTP_OK, provider);
+    }
+
+    private ObjectNode resourceGroup(String name) {
+        ObjectNode group = mapper.createObjectNode();
+        group.put("id", "/subscriptions/" + SUBSCRIPTION_ID + "/resourceGroups/" + name);
+        group.put("name", name);
+        group.put("location", REGION);
+        group.putObject("properties").put("provisioningState", "Succeeded");
+        return group;
+    }
+
+    private ObjectNode list(ArrayNode items) {
+        ObjectNode list = mapper.createObjectNode();
+        list.set("value", items);
+        return list;
+    }
+
+    private void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        ObjectNode error = mapper.createObjectNode();
+        error.putObject("error").put("code", code).put("message", message);
+        respond(exchange, status, error);
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().add("x-ms-request-id", Long.toString(requestCount.get()));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String key(String resourceGroup, String name) {
+        return (resourceGroup + "/" + name).toLowerCase();
+    }
+
+    /**
+     * A container group as it was put, with the state of its provisioning derived from its age.
+     */
+    private final class ContainerGroup {
+        private final String resourceGroup;
+        private final String name;
+        private final ObjectNode body;
+        private final long createdAt;
+        private final boolean fails;
+        private final String ip;
+
+        ContainerGroup(String resourceGroup, String name, ObjectNode body, long createdAt, boolean fails) {
+            this.resourceGroup = resourceGroup;
+            this.name = name;
+            this.body = body;
+            this.createdAt = createdAt;
+            this.fails = fails;
+            int count = containerGroups.size() + created.get();
+            this.ip = "10.0." + ((count >> Byte.SIZE) & BYTE_MASK) + "." + (count & BYTE_MASK);
+        }
+
+        String id() {
+            return "/subscriptions/" + SUBSCRIPTION_ID + "/resourceGroups/" + resourceGroup + "/providers/"
+                    + CONTAINER_GROUPS_TYPE + "/" + name;
+        }
+
+        String state(long now) {
+            long age = now - createdAt;
+            if (age < pendingMillis) {
+                return "Pending";
+            }
+            if (age < pendingMillis + creatingMillis) {
+                return "Creating";
+            }
+            return fails ? "Failed" : "Succeeded";
+        }
+
+        ObjectNode toJson() {
+            String state = state(System.currentTimeMillis());
+            ObjectNode json = body.deepCopy();
+            json.put("id", id());
+            json.put("name", name);
+            json.put("type", CONTAINER_GROUPS_TYPE);
+            if (!json.hasNonNull("location")) {
+                json.put("location", REGION);
+            }
+            ObjectNode properties = json.with("properties");
+            properties.put("provisioningState", state);
+            properties.with("instanceView").put("state", "Succeeded".equals(state) ? "Running" : state);
+            if ("Succeeded".equals(state)) {
+                properties.with("ipAddress").put("ip", ip);
+            }
+            String containerState = "Succeeded".equals(state) ? "Running"
+                    : "Failed".equals(state) ? "Terminated" : "Waiting";
+            for (JsonNode container : properties.path("containers")) {
+                if (container instanceof ObjectNode) {
+                    ((ObjectNode) container).with("properties").with("instanceView").with("currentState")
+                            .put("state", containerState);
+                }
+            }
+            return json;
+        }
+    }
+}
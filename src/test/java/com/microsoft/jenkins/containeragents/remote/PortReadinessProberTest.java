@@ -0,0 +1,64 @@
+package com.microsoft.jenkins.containeragents.remote;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class PortReadinessProberTest {
+
+    @Test
+    public void testReadyPort() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            PortReadinessProber.getInstance().awaitReady("127.0.0.1", server.getLocalPort(), 5000)
+                    .get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPortComingUpLater() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        CompletableFuture<Void> ready = PortReadinessProber.getInstance().awaitReady("127.0.0.1", port, 10000);
+        Thread.sleep(500);
+        Assert.assertFalse(ready.isDone());
+        try (ServerSocket server = new ServerSocket(port)) {
+            ready.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        try {
+            PortReadinessProber.getInstance().awaitReady("127.0.0.1", port, 500).get(10, TimeUnit.SECONDS);
+            Assert.fail("Closed port reported as ready");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testUnresolvedHost() throws Exception {
+        // retried like a closed port, the name may only resolve once the container is up
+        CompletableFuture<Void> ready = PortReadinessProber.getInstance().awaitReady("no-such-host.invalid", 22,
+                1000);
+        Thread.sleep(300);
+        Assert.assertFalse(ready.isDone());
+        try {
+            ready.get(30, TimeUnit.SECONDS);
+            Assert.fail("Unresolved host reported as ready");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
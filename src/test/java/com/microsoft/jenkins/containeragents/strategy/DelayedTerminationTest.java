@@ -0,0 +1,62 @@
+package com.microsoft.jenkins.containeragents.strategy;
+
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.OfflineCause;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+public class DelayedTerminationTest {
+
+    private static final long WAIT_MILLIS = 10000;
+
+    @Rule
+    public JenkinsRule rule = new JenkinsRule();
+
+    @Test
+    public void testScheduledAgentsAreTerminatedTogether() throws Exception {
+        AbstractCloudSlave node1 = Mockito.mock(AbstractCloudSlave.class);
+        AbstractCloudSlave node2 = Mockito.mock(AbstractCloudSlave.class);
+        AbstractCloudComputer<?> computer1 = computer(node1);
+        AbstractCloudComputer<?> computer2 = computer(node2);
+
+        DelayedTermination.schedule(computer1);
+        DelayedTermination.schedule(computer2);
+        // scheduling the same computer twice terminates it once
+        DelayedTermination.schedule(computer1);
+        Mockito.verify(computer1, Mockito.times(2)).setAcceptingTasks(false);
+        Mockito.verify(computer2).setAcceptingTasks(false);
+        Mockito.verify(computer1, Mockito.never()).setTemporarilyOffline(Mockito.anyBoolean(),
+                Mockito.any(OfflineCause.class));
+        Assert.assertEquals(2, DelayedTermination.getPending());
+
+        // what the scheduled flush does once the delay has passed
+        DelayedTermination.flush();
+        Assert.assertEquals(0, DelayedTermination.getPending());
+        Mockito.verify(computer1).setTemporarilyOffline(Mockito.eq(true), Mockito.any(OfflineCause.class));
+        Mockito.verify(computer2).setTemporarilyOffline(Mockito.eq(true), Mockito.any(OfflineCause.class));
+        Mockito.verify(node1, Mockito.timeout(WAIT_MILLIS)).terminate();
+        Mockito.verify(node2, Mockito.timeout(WAIT_MILLIS)).terminate();
+    }
+
+    @Test
+    public void testTerminateWithoutDelay() throws Exception {
+        AbstractCloudSlave node = Mockito.mock(AbstractCloudSlave.class);
+        AbstractCloudComputer<?> computer = computer(node);
+
+        DelayedTermination.terminate(computer);
+        Mockito.verify(computer).setAcceptingTasks(false);
+        Mockito.verify(node, Mockito.timeout(WAIT_MILLIS)).terminate();
+        Mockito.verify(computer).setTemporarilyOffline(Mockito.eq(true), Mockito.any(OfflineCause.class));
+        Assert.assertEquals(0, DelayedTermination.getPending());
+    }
+
+    private static AbstractCloudComputer<?> computer(AbstractCloudSlave node) {
+        AbstractCloudComputer<?> computer = Mockito.mock(AbstractCloudComputer.class);
+        Mockito.doReturn(node).when(computer).getNode();
+        return computer;
+    }
+}
@@ -0,0 +1,55 @@
+package com.microsoft.jenkins.containeragents.strategy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+public class DemandForecasterTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final DemandForecaster forecaster = new DemandForecaster(TimeZone.getTimeZone("UTC"));
+
+    @Test
+    public void testUnknownLabel() {
+        Assert.assertEquals(0, forecaster.forecast("linux", 0), 0);
+    }
+
+    @Test
+    public void testLevelFollowsDemand() {
+        for (int i = 0; i < 10; i++) {
+            forecaster.record("linux", 8, i * MINUTE);
+        }
+        Assert.assertEquals(8, forecaster.forecast("linux", 10 * MINUTE), 0.01);
+    }
+
+    @Test
+    public void testDailyPeakIsAnticipated() {
+        long rush = TimeUnit.HOURS.toMillis(9);
+        for (int day = 0; day < 3; day++) {
+            for (long t = day * DAY; t < (day + 1) * DAY; t += MINUTE) {
+                long timeOfDay = t % DAY;
+                forecaster.record("linux", timeOfDay >= rush && timeOfDay < rush + TimeUnit.HOURS.toMillis(1)
+                        ? 20 : 0, t);
+            }
+        }
+        long beforeRush = 3 * DAY + rush - 5 * MINUTE;
+        Assert.assertEquals(0, forecaster.forecast("linux", beforeRush), 0.5);
+        Assert.assertTrue(forecaster.forecast("linux", beforeRush + 10 * MINUTE) > 10);
+    }
+
+    @Test
+    public void testIdleLabelIsForgotten() {
+        forecaster.record("linux", 4, 0);
+        forecaster.record("linux", 0, DemandForecaster.IDLE_MILLIS - MINUTE);
+        Assert.assertTrue(forecaster.getLabels().contains("linux"));
+
+        forecaster.record("linux", 0, DemandForecaster.IDLE_MILLIS);
+        Assert.assertFalse(forecaster.getLabels().contains("linux"));
+        Assert.assertEquals(0, forecaster.forecast("linux", DemandForecaster.IDLE_MILLIS + MINUTE), 0);
+    }
+}
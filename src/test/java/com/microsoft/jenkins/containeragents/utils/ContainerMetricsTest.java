@@ -0,0 +1,43 @@
+package com.microsoft.jenkins.containeragents.utils;
+
+import com.microsoft.jenkins.containeragents.util.ContainerMetrics;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContainerMetricsTest {
+
+    @Test
+    public void testCounters() {
+        assertEquals(0, ContainerMetrics.getCount("test.unknown"));
+        ContainerMetrics.increment("test.counter");
+        ContainerMetrics.add("test.counter", 2);
+        assertEquals(3, ContainerMetrics.getCount("test.counter"));
+        ContainerMetrics.add("test.counter", -1);
+        assertEquals(2, ContainerMetrics.getCount("test.counter"));
+    }
+
+    @Test
+    public void testTimers() {
+        assertEquals(0, ContainerMetrics.getTimer("test.unknownTimer").getCount());
+        ContainerMetrics.record("test.timer", 100);
+        ContainerMetrics.record("test.timer", 300);
+        ContainerMetrics.Timer timer = ContainerMetrics.getTimer("test.timer");
+        assertEquals(2, timer.getCount());
+        assertEquals(200, timer.getMeanMillis());
+        assertEquals(300, timer.getMaxMillis());
+    }
+
+    @Test
+    public void testSnapshot() {
+        ContainerMetrics.increment("test.snapshotCounter");
+        ContainerMetrics.record("test.snapshotTimer", 50);
+        Map<String, Object> snapshot = ContainerMetrics.snapshot();
+        assertEquals(1L, snapshot.get("test.snapshotCounter"));
+        assertEquals(1L, snapshot.get("test.snapshotTimer.count"));
+        assertEquals(50L, snapshot.get("test.snapshotTimer.meanMillis"));
+        assertEquals(50L, snapshot.get("test.snapshotTimer.maxMillis"));
+    }
+}
@@ -0,0 +1,29 @@
+package com.microsoft.jenkins.containeragents.utils;
+
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import io.fabric8.kubernetes.api.model.Quantity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuantityUtilsTest {
+    @Test
+    public void testToCpuMillis() {
+        assertEquals(0, QuantityUtils.toCpuMillis((String) null));
+        assertEquals(250, QuantityUtils.toCpuMillis("250m"));
+        assertEquals(2000, QuantityUtils.toCpuMillis("2"));
+        assertEquals(500, QuantityUtils.toCpuMillis("0.5"));
+        assertEquals(1500, QuantityUtils.toCpuMillis(new Quantity("1500m")));
+        assertEquals(124, QuantityUtils.toCpuMillis("123456789n"));
+        assertEquals(2, QuantityUtils.toCpuMillis("1500u"));
+    }
+
+    @Test
+    public void testToBytes() {
+        assertEquals(0, QuantityUtils.toBytes(""));
+        assertEquals(512L * 1024 * 1024, QuantityUtils.toBytes("512Mi"));
+        assertEquals(1000000000L, QuantityUtils.toBytes("1G"));
+        assertEquals(7289573376L, QuantityUtils.toBytes("7118724Ki"));
+        assertEquals(1073741824L, QuantityUtils.toBytes(new Quantity("1073741824")));
+    }
+}
@@ -0,0 +1,98 @@
+package com.microsoft.jenkins.containeragents.utils;
+
+import com.microsoft.jenkins.containeragents.util.QuantityUtils;
+import com.microsoft.jenkins.containeragents.util.TemplateUsage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.microsoft.jenkins.containeragents.util.TemplateUsage.Kind.KUBERNETES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TemplateUsageTest {
+    private static final long MI = QuantityUtils.BYTES_IN_MI;
+
+    @Test
+    public void testNoRecommendationWithoutEnoughAgents() {
+        TemplateUsage usage = TemplateUsage.of(KUBERNETES, "cloud", "few-agents");
+        for (int i = 0; i < TemplateUsage.MIN_AGENTS - 1; i++) {
+            usage.record("agent-" + i, 100, 100 * MI);
+        }
+        assertNull(usage.recommend());
+        assertNull(TemplateUsage.recommend(KUBERNETES, "cloud", "unknown"));
+
+        usage.record("agent-last", 100, 100 * MI);
+        assertNotNull(TemplateUsage.recommend(KUBERNETES, "cloud", "few-agents"));
+        assertNull(TemplateUsage.recommend(KUBERNETES, "other-cloud", "few-agents"));
+        assertNull(TemplateUsage.recommend(TemplateUsage.Kind.ACI, "cloud", "few-agents"));
+    }
+
+    @Test
+    public void testResetIgnoresPreviousAgents() {
+        TemplateUsage usage = TemplateUsage.of(KUBERNETES, "cloud", "reset");
+        List<String> agents = new ArrayList<>();
+        for (int i = 0; i < TemplateUsage.MIN_AGENTS; i++) {
+            usage.record("agent-" + i, 100, 100 * MI);
+            agents.add("agent-" + i);
+        }
+        assertNotNull(TemplateUsage.recommend(KUBERNETES, "cloud", "reset"));
+
+        TemplateUsage.reset(KUBERNETES, "cloud", "reset", agents);
+        assertNull(TemplateUsage.recommend(KUBERNETES, "cloud", "reset"));
+        usage = TemplateUsage.of(KUBERNETES, "cloud", "reset");
+        for (String agent : agents) {
+            usage.record(agent, 100, 100 * MI);
+        }
+        assertNull(usage.recommend());
+        for (int i = 0; i < TemplateUsage.MIN_AGENTS; i++) {
+            usage.record("new-agent-" + i, 200, 200 * MI);
+        }
+        assertEquals(TemplateUsage.MIN_AGENTS, usage.recommend().getAgents());
+    }
+
+    @Test
+    public void testRecommendation() {
+        TemplateUsage usage = TemplateUsage.of(KUBERNETES, "cloud", "maven");
+        // agent i uses (i + 1) * 10 millicores in each of its samples and peaks at (i + 1) * 100 Mi
+        for (int i = 0; i < 10; i++) {
+            for (int sample = 0; sample < 10; sample++) {
+                usage.record("agent-" + i, (i + 1) * 10, (sample + 1) * (i + 1) * 10 * MI);
+            }
+        }
+        TemplateUsage.Recommendation recommendation = usage.recommend();
+        assertEquals(100, recommendation.getSamples());
+        assertEquals(10, recommendation.getAgents());
+        assertEquals(90, recommendation.getRequestCpuMillis());
+        assertEquals(120, recommendation.getLimitCpuMillis());
+        assertEquals(900 * MI, recommendation.getRequestMemoryBytes());
+        assertEquals(1200 * MI, recommendation.getLimitMemoryBytes());
+        assertEquals("90m", TemplateUsage.Recommendation.toCpuQuantity(recommendation.getRequestCpuMillis()));
+        assertEquals("1200Mi",
+                TemplateUsage.Recommendation.toMemoryQuantity(recommendation.getLimitMemoryBytes()));
+    }
+
+    @Test
+    public void testIdleAgentsGetMinimumRequests() {
+        TemplateUsage usage = TemplateUsage.of(KUBERNETES, "cloud", "idle");
+        for (int i = 0; i < TemplateUsage.MIN_AGENTS; i++) {
+            usage.record("agent-" + i, 0, 0);
+        }
+        TemplateUsage.Recommendation recommendation = usage.recommend();
+        assertEquals(10, recommendation.getRequestCpuMillis());
+        assertEquals(MI, recommendation.getRequestMemoryBytes());
+        assertEquals("1Mi", TemplateUsage.Recommendation.toMemoryQuantity(recommendation.getLimitMemoryBytes()));
+    }
+
+    @Test
+    public void testDiffers() {
+        assertTrue(TemplateUsage.differs(0, 100));
+        assertFalse(TemplateUsage.differs(1000, 1050));
+        assertTrue(TemplateUsage.differs(1000, 1200));
+        assertTrue(TemplateUsage.differs(1000, 500));
+    }
+}